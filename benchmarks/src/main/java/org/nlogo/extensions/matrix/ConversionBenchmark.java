@@ -0,0 +1,58 @@
+package org.nlogo.extensions.matrix;
+
+import java.util.concurrent.TimeUnit;
+
+import org.nlogo.api.ExtensionException;
+import org.nlogo.core.LogoList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The LogoList conversions behind matrix:from-row-list, matrix:to-row-list
+ * and their column counterparts.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConversionBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class Lists {
+    LogoList rows;
+
+    @Setup
+    public void setup(MatrixState state) {
+      rows = MatrixExtension.convertArrayToNestedLogoList(state.a.getArray());
+    }
+  }
+
+  @Benchmark
+  public Object toRowList(MatrixState state) {
+    return MatrixExtension.convertArrayToNestedLogoList(state.a.getArray());
+  }
+
+  @Benchmark
+  public Object toColumnList(MatrixState state) {
+    return MatrixExtension.convertArrayToNestedColumnLogoList(state.a.getArray());
+  }
+
+  @Benchmark
+  public Object fromRowList(Lists lists) throws ExtensionException {
+    return MatrixExtension.convertNestedLogoListToArray(lists.rows);
+  }
+
+  @Benchmark
+  public Object fromColumnList(Lists lists) throws ExtensionException {
+    return MatrixExtension.convertNestedColumnLogoListToArray(lists.rows);
+  }
+}
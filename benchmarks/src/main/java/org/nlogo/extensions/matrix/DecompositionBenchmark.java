@@ -0,0 +1,39 @@
+package org.nlogo.extensions.matrix;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * matrix:solve, matrix:inverse and the eigen primitives, as run by the
+ * selected engine.  These are slow for the biggest sizes, so they are measured a
+ * single shot at a time.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DecompositionBenchmark {
+
+  @Benchmark
+  public Object solve(MatrixState state) {
+    return Backend.current().solve(state.a, state.b);
+  }
+
+  @Benchmark
+  public Object inverse(MatrixState state) {
+    return Backend.current().inverse(state.a);
+  }
+
+  @Benchmark
+  public Object eig(MatrixState state) {
+    return Backend.current().eig(state.a);
+  }
+}
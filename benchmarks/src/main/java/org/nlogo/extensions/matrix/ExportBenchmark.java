@@ -0,0 +1,69 @@
+package org.nlogo.extensions.matrix;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.nlogo.api.ExtensionException;
+import org.nlogo.core.CompilerException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * export-world and import-world of a world holding count matrices of
+ * size x size each.  The round trip writes each matrix the way exportWorld
+ * does and reads it back through readExtensionObject, leaving out only the
+ * CSV quoting that NetLogo adds around it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExportBenchmark {
+
+  @Param({"3", "300", "1000"})
+  public int size;
+
+  @Param({"1", "1000"})
+  public int count;
+
+  private MatrixExtension extension;
+  private MatrixExtension.LogoMatrix[] matrices;
+
+  @Setup
+  public void setup() throws ExtensionException {
+    extension = new MatrixExtension();
+    Random random = new Random(42);
+    matrices = new MatrixExtension.LogoMatrix[count];
+    for (int i = 0; i < count; i++) {
+      matrices[i] = extension.new LogoMatrix(MatrixState.random(size, random));
+      // registers the matrix, as export-world does
+      matrices[i].dump(false, true, true);
+    }
+  }
+
+  @Benchmark
+  public Object exportWorld() {
+    return extension.exportWorld();
+  }
+
+  @Benchmark
+  public int roundTrip() throws CompilerException, ExtensionException {
+    int total = 0;
+    for (MatrixExtension.LogoMatrix mat : matrices) {
+      String value = mat.dump(false, true, false);
+      total += ((MatrixExtension.LogoMatrix) extension.readExtensionObject(null, "matrix", value)).rows();
+    }
+    return total;
+  }
+}
@@ -0,0 +1,66 @@
+package org.nlogo.extensions.matrix;
+
+import java.util.concurrent.TimeUnit;
+
+import org.nlogo.headless.HeadlessWorkspace;
+import org.nlogo.nvm.Procedure;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * matrix:map over a size x size matrix, and over two of them.  MapElements
+ * runs a compiled NetLogo reporter for each element, so this runs the
+ * primitive in a headless workspace, which loads the extension from
+ * matrix.jar (see BUILDING.md).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MapBenchmark {
+
+  @Param({"3", "300", "1000"})
+  public int size;
+
+  private HeadlessWorkspace workspace;
+  private Procedure map;
+  private Procedure map2;
+
+  @Setup
+  public void setup() {
+    workspace = HeadlessWorkspace.newInstance();
+    workspace.initForTesting(5, "extensions [matrix]\nglobals [a b]");
+    workspace.command("random-seed 42 " +
+      "set a matrix:map [ x -> random-float 1 ] matrix:make-constant " + size + " " + size + " 0 " +
+      "set b matrix:map [ x -> random-float 1 ] matrix:make-constant " + size + " " + size + " 0");
+    map = workspace.compileReporter("matrix:map [ x -> x * 2 + 1 ] a");
+    map2 = workspace.compileReporter("matrix:map [ [x y] -> x * y ] a b");
+  }
+
+  @TearDown
+  public void tearDown() throws InterruptedException {
+    workspace.dispose();
+  }
+
+  @Benchmark
+  public Object map() {
+    return workspace.runCompiledReporter(workspace.defaultOwner(), map);
+  }
+
+  @Benchmark
+  public Object mapTwo() {
+    return workspace.runCompiledReporter(workspace.defaultOwner(), map2);
+  }
+}
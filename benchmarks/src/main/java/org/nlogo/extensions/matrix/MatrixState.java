@@ -0,0 +1,44 @@
+package org.nlogo.extensions.matrix;
+
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Square matrices of random elements, shared by the benchmarks, and the
+ * engine (see Backend) to use.  The sizes and engines can be narrowed on
+ * the command line, e.g. -p size=100,1000 -p backend=blocked.
+ */
+@State(Scope.Benchmark)
+public class MatrixState {
+
+  @Param({"3", "30", "300", "1000", "4000"})
+  public int size;
+
+  @Param({"jama", "blocked"})
+  public String backend;
+
+  Jama.Matrix a;
+  Jama.Matrix b;
+
+  @Setup
+  public void setup() {
+    Backend.select(backend);
+    Random random = new Random(42);
+    a = random(size, random);
+    b = random(size, random);
+  }
+
+  static Jama.Matrix random(int size, Random random) {
+    double[][] dArray = new double[size][size];
+    for (double[] row : dArray) {
+      for (int j = 0; j < size; j++) {
+        row[j] = random.nextDouble();
+      }
+    }
+    return new Jama.Matrix(dArray);
+  }
+}
@@ -0,0 +1,56 @@
+package org.nlogo.extensions.matrix;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The arithmetic primitives.  matrix:plus, matrix:times and friends hand
+ * their inputs to Operator.reduce (see VariadicOperator), so the chains
+ * measure exactly what the primitives do, minus argument handling.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OperatorBenchmark {
+
+  @Benchmark
+  public Object applyEquals(MatrixState state) {
+    // in place on a copy, as in the steps of a reduce after the first
+    return MatrixExtension.plusOp.applyEquals(state.a.copy(), (Object) state.b);
+  }
+
+  @Benchmark
+  public Object applyEqualsScalar(MatrixState state) {
+    return MatrixExtension.timesElementsOp.applyEquals(state.a.copy(), (Object) Double.valueOf(2.0));
+  }
+
+  @Benchmark
+  public Object times(MatrixState state) {
+    return MatrixExtension.timesOp.reduce(Arrays.<Object>asList(state.a, state.b).iterator());
+  }
+
+  @Benchmark
+  public Object plusChain(MatrixState state) {
+    return MatrixExtension.plusOp.reduce(Arrays.<Object>asList(state.a, state.b, state.a, state.b).iterator());
+  }
+
+  @Benchmark
+  public Object timesChain(MatrixState state) {
+    return MatrixExtension.timesOp.reduce(Arrays.<Object>asList(state.a, state.b, state.a).iterator());
+  }
+
+  @Benchmark
+  public Object timesScalar(MatrixState state) {
+    return MatrixExtension.timesElementsOp.apply((Object) state.a, (Object) Double.valueOf(2.0));
+  }
+}
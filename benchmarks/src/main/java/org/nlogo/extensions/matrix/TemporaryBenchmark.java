@@ -0,0 +1,78 @@
+package org.nlogo.extensions.matrix;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.nlogo.api.ExtensionException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The temporary matrices that primitives make and a model throws away at
+ * once: the LogoMatrix around each result of matrix:plus, and the one-row
+ * matrices of matrix:from-row-list (list matrix:get-row m i).  The sizes
+ * are small so that what is measured is mostly the cost of making a
+ * LogoMatrix rather than the arithmetic.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TemporaryBenchmark {
+
+  @Param({"3", "30"})
+  public int size;
+
+  private MatrixExtension extension;
+  private MatrixExtension.LogoMatrix a;
+  private MatrixExtension.LogoMatrix b;
+
+  @Setup
+  public void setup() throws ExtensionException {
+    extension = new MatrixExtension();
+    Random random = new Random(42);
+    a = extension.new LogoMatrix(MatrixState.random(size, random));
+    b = extension.new LogoMatrix(MatrixState.random(size, random));
+  }
+
+  @Benchmark
+  public Object wrap() throws ExtensionException {
+    return extension.new LogoMatrix(a.matrix());
+  }
+
+  @Benchmark
+  public Object plus() throws ExtensionException {
+    return extension.getMatrixFromNumeric(MatrixExtension.plusOp.reduce(Arrays.<Object>asList(a.matrix(), b.matrix()).iterator()), "");
+  }
+
+  @Benchmark
+  public Object plusChain() throws ExtensionException {
+    // matrix:plus (matrix:plus a b) a, which makes a matrix for the inner result
+    MatrixExtension.LogoMatrix sum = extension.getMatrixFromNumeric(MatrixExtension.plusOp.reduce(Arrays.<Object>asList(a.matrix(), b.matrix()).iterator()), "");
+    return extension.getMatrixFromNumeric(MatrixExtension.plusOp.reduce(Arrays.<Object>asList(sum.matrix(), a.matrix()).iterator()), "");
+  }
+
+  @Benchmark
+  public int rows() throws ExtensionException {
+    int total = 0;
+    for (int i = 0; i < size; i++) {
+      double[][] row = {a.storage.getRow(i)};
+      MatrixExtension.LogoMatrix mat = extension.new LogoMatrix(new Jama.Matrix(
+          MatrixExtension.convertNestedLogoListToArray(MatrixExtension.convertArrayToNestedLogoList(row))));
+      total += mat.cols();
+    }
+    return total;
+  }
+}
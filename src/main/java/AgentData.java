@@ -0,0 +1,280 @@
+package org.nlogo.extensions.matrix;
+
+import org.nlogo.api.Agent;
+import org.nlogo.api.AgentException;
+import org.nlogo.api.AgentSet;
+import org.nlogo.api.ExtensionException;
+import org.nlogo.api.Link;
+import org.nlogo.api.Patch;
+import org.nlogo.api.Turtle;
+import org.nlogo.api.World;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Bulk copies between agent variables and matrix storage.  These walk the
+ * world's agents directly, so models don't have to build a nested list in
+ * NetLogo code (or call matrix:get once per agent) to move data across.
+ */
+final class AgentData {
+
+  private AgentData() { }
+
+  /**
+   * Looks up the index of a patches-own (or built-in patch) variable.
+   */
+  static int patchVariableIndex(World world, String name) throws ExtensionException {
+    int vn = ((org.nlogo.agent.World) world).patchesOwnIndexOf(name.toUpperCase(Locale.ENGLISH));
+    if (vn == -1) {
+      throw new ExtensionException("There is no patch variable named " + name + ".");
+    }
+    return vn;
+  }
+
+  /**
+   * Copies a patch variable into dest, which must be worldHeight x worldWidth.
+   * Row 0 is the top row of the world (max-pycor) and column 0 is the left
+   * column (min-pxcor), so the matrix reads the same way as the view.  That is
+   * also the order of the world's patch array, so patches are visited in
+   * storage order.
+   */
+  static MatrixStorage gatherPatches(World world, int vn, MatrixStorage dest) throws ExtensionException {
+    int numRows = dest.rows();
+    int numCols = dest.cols();
+    double[] row = new double[numCols];
+    int index = 0;
+    for (int i = 0; i < numRows; i++) {
+      for (int j = 0; j < numCols; j++) {
+        Patch patch = world.getPatch(index++);
+        Object value = patch.getVariable(vn);
+        if (!(value instanceof Double)) {
+          throw new ExtensionException("The value of this variable on patch " + patch.pxcor() + " " + patch.pycor()
+              + " is not a number: " + org.nlogo.api.Dump.logoObject(value));
+        }
+        row[j] = ((Double) value).doubleValue();
+      }
+      dest.setRow(i, 0, row, 0, numCols);
+    }
+    return dest;
+  }
+
+  /**
+   * The inverse of gatherPatches: writes every element of source into the
+   * patch variable at the corresponding position.
+   */
+  static void scatterPatches(World world, int vn, MatrixStorage source) throws ExtensionException {
+    int index = 0;
+    for (int i = 0; i < source.rows(); i++) {
+      for (double elem : source.getRow(i)) {
+        Patch patch = world.getPatch(index++);
+        try {
+          patch.setVariable(vn, Double.valueOf(elem));
+        } catch (AgentException ex) {
+          throw new ExtensionException(ex);
+        }
+      }
+    }
+  }
+
+  static void checkWorldDimensions(World world, int numRows, int numCols) throws ExtensionException {
+    if (numRows != world.worldHeight() || numCols != world.worldWidth()) {
+      throw new ExtensionException("The matrix must have one row per pycor and one column per pxcor ("
+          + world.worldHeight() + "x" + world.worldWidth() + "), but it is " + numRows + "x" + numCols + ".");
+    }
+  }
+
+  /**
+   * Reports the agents of the set in a stable order: ascending by id (who
+   * number for turtles and links, patch index for patches), regardless of
+   * how the agentset happens to store them.
+   */
+  static Agent[] sortedAgents(AgentSet agentSet) {
+    Agent[] agents = new Agent[agentSet.count()];
+    int n = 0;
+    boolean sorted = true;
+    for (Agent agent : agentSet.agents()) {
+      if (n > 0 && agents[n - 1].id() > agent.id()) {
+        sorted = false;
+      }
+      agents[n++] = agent;
+    }
+    if (!sorted) {
+      Arrays.sort(agents, Comparator.comparingLong(Agent::id));
+    }
+    return agents;
+  }
+
+  /**
+   * Resolves variable names to indices for each kind of agent encountered.
+   * Breeds can own extra variables, so the indices are cached per breed
+   * rather than looked up once per agent.
+   */
+  static class VariableIndexer {
+    private final org.nlogo.agent.World world;
+    private final String[] names;
+    private final Map<Object, int[]> cache = new HashMap<Object, int[]>();
+
+    VariableIndexer(World world, String[] names) {
+      this.world = (org.nlogo.agent.World) world;
+      this.names = new String[names.length];
+      for (int i = 0; i < names.length; i++) {
+        this.names[i] = names[i].toUpperCase(Locale.ENGLISH);
+      }
+    }
+
+    int[] indicesFor(Agent agent) throws ExtensionException {
+      Object key;
+      if (agent instanceof Turtle) {
+        key = ((Turtle) agent).getBreed();
+      } else if (agent instanceof Link) {
+        key = ((Link) agent).getBreed();
+      } else {
+        key = agent.getClass();
+      }
+      int[] indices = cache.get(key);
+      if (indices == null) {
+        indices = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+          indices[i] = world.indexOfVariable((org.nlogo.agent.Agent) agent, names[i]);
+          if (indices[i] == -1) {
+            throw new ExtensionException(org.nlogo.api.Dump.logoObject(agent)
+                + " does not own a variable named " + names[i].toLowerCase(Locale.ENGLISH) + ".");
+          }
+        }
+        cache.put(key, indices);
+      }
+      return indices;
+    }
+  }
+
+  /**
+   * Reports a matrix with one row per agent (in the given order) and one
+   * column per variable.
+   */
+  static double[][] gatherAgents(World world, Agent[] agents, String[] names) throws ExtensionException {
+    VariableIndexer indexer = new VariableIndexer(world, names);
+    checkMemory(agents.length, names.length);
+    double[][] dest = new double[agents.length][names.length];
+    for (int i = 0; i < agents.length; i++) {
+      Agent agent = agents[i];
+      int[] indices = indexer.indicesFor(agent);
+      double[] row = dest[i];
+      for (int j = 0; j < indices.length; j++) {
+        Object value = agent.getVariable(indices[j]);
+        if (!(value instanceof Double)) {
+          throw new ExtensionException("The value of " + names[j] + " for " + org.nlogo.api.Dump.logoObject(agent)
+              + " is not a number: " + org.nlogo.api.Dump.logoObject(value));
+        }
+        row[j] = ((Double) value).doubleValue();
+      }
+    }
+    return dest;
+  }
+
+  /**
+   * The inverse of gatherAgents: row i of source is written to agents[i].
+   */
+  static void scatterAgents(World world, Agent[] agents, String[] names, MatrixStorage source) throws ExtensionException {
+    VariableIndexer indexer = new VariableIndexer(world, names);
+    for (int i = 0; i < agents.length; i++) {
+      Agent agent = agents[i];
+      int[] indices = indexer.indicesFor(agent);
+      double[] row = source.getRow(i);
+      for (int j = 0; j < indices.length; j++) {
+        try {
+          agent.setVariable(indices[j], Double.valueOf(row[j]));
+        } catch (AgentException ex) {
+          throw new ExtensionException(ex);
+        }
+      }
+    }
+  }
+
+  /**
+   * Builds the adjacency matrix of the given links in one pass over the
+   * linkset.  Row and column i belong to nodes[i]; when nodes is null they
+   * are all the turtles, in who order, so dead turtles take up no rows.
+   * Links touching a turtle that isn't among the nodes are skipped.
+   * Undirected links are entered in both directions.  When weightName is
+   * null every link counts as 1; otherwise the weights of parallel links
+   * are summed.
+   */
+  static double[][] adjacency(World world, AgentSet links, Agent[] nodes, String weightName)
+      throws ExtensionException {
+    if (nodes == null) {
+      nodes = sortedAgents(world.turtles());
+    }
+    int size = nodes.length;
+    if (size == 0) {
+      throw new ExtensionException("There are no turtles to build an adjacency matrix for.");
+    }
+    // indexed by who number, which is far cheaper than a map per link
+    long maxWho = -1;
+    for (Agent node : nodes) {
+      if (!(node instanceof Turtle) || node.id() < 0) {
+        throw new ExtensionException("Expected turtles, but got " + org.nlogo.api.Dump.logoObject(node) + ".");
+      }
+      maxWho = StrictMath.max(maxWho, node.id());
+    }
+    int[] indexOfWho = new int[(int) (maxWho + 1)];
+    Arrays.fill(indexOfWho, -1);
+    for (int i = 0; i < size; i++) {
+      int who = (int) nodes[i].id();
+      if (indexOfWho[who] != -1) {
+        throw new ExtensionException(org.nlogo.api.Dump.logoObject(nodes[i]) + " is given more than once.");
+      }
+      indexOfWho[who] = i;
+    }
+
+    VariableIndexer indexer = weightName == null ? null : new VariableIndexer(world, new String[]{weightName});
+    checkMemory(size, size);
+    double[][] dest = new double[size][size];
+    for (Agent agent : links.agents()) {
+      if (!(agent instanceof Link)) {
+        throw new ExtensionException("Expected a linkset, but got " + org.nlogo.api.Dump.logoObject(agent) + ".");
+      }
+      Link link = (Link) agent;
+      int from = nodeIndex(indexOfWho, link.end1());
+      int to = nodeIndex(indexOfWho, link.end2());
+      if (from == -1 || to == -1) {
+        continue;
+      }
+      if (indexer == null) {
+        dest[from][to] = 1.0;
+        if (!link.isDirectedLink()) {
+          dest[to][from] = 1.0;
+        }
+      } else {
+        Object value = link.getVariable(indexer.indicesFor(link)[0]);
+        if (!(value instanceof Double)) {
+          throw new ExtensionException("The value of " + weightName + " for " + org.nlogo.api.Dump.logoObject(link)
+              + " is not a number: " + org.nlogo.api.Dump.logoObject(value));
+        }
+        double weight = ((Double) value).doubleValue();
+        dest[from][to] += weight;
+        if (!link.isDirectedLink() && from != to) {
+          dest[to][from] += weight;
+        }
+      }
+    }
+    return dest;
+  }
+
+  // Fails before allocating a matrix that would go over the memory limit.
+  private static void checkMemory(int numRows, int numCols) throws ExtensionException {
+    try {
+      MatrixMemory.checkHeap(numRows, numCols);
+    } catch (MatrixMemory.LimitException ex) {
+      throw new ExtensionException(ex.getMessage());
+    }
+  }
+
+  private static int nodeIndex(int[] indexOfWho, Turtle turtle) {
+    long who = turtle.id();
+    return who < indexOfWho.length ? indexOfWho[(int) who] : -1;
+  }
+}
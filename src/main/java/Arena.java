@@ -0,0 +1,144 @@
+package org.nlogo.extensions.matrix;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Recycles the arrays of heap matrices made inside matrix:with-arena.
+ *
+ * Models that compute many temporary matrices of the same shapes every tick
+ * otherwise allocate a new double[][] for each, and the garbage collector
+ * has to clear them all away again.  Inside with-arena, the results of
+ * arithmetic (see Backend.create() and copy()) are made from arrays that
+ * an earlier matrix of the same shape no longer needs.
+ *
+ * A NetLogo model can keep a matrix anywhere (a variable, a list, a
+ * table...), so whether a result escapes the block can't be told from the
+ * block itself.  Instead, the arena only holds each matrix it hands out
+ * weakly, and takes its array back once the garbage collector has found
+ * the matrix unreachable: nothing can see the array any more, wherever the
+ * matrix went.  In steady state the temporaries of one tick are collected
+ * by a cheap young collection and their arrays are reused the next tick.
+ *
+ * Each workspace has its own arena, used only by its job thread while the
+ * block runs; computations on the worker threads never use it.
+ */
+final class Arena {
+
+  private static final ThreadLocal<Arena> CURRENT = new ThreadLocal<Arena>();
+
+  // Free arrays kept for reuse, at most, across all shapes.
+  static final long MAX_POOLED_BYTES = 256L << 20;
+
+  private final ReferenceQueue<Jama.Matrix> queue = new ReferenceQueue<Jama.Matrix>();
+  // the arrays waiting for their matrix to be collected
+  private final Set<Slot> slots = new HashSet<Slot>();
+  private final Map<Long, ArrayDeque<double[][]>> free = new HashMap<Long, ArrayDeque<double[][]>>();
+  private long pooledBytes = 0;
+  private int depth = 0;
+
+  private static final class Slot extends WeakReference<Jama.Matrix> {
+    final double[][] array;
+
+    Slot(Jama.Matrix matrix, double[][] array, ReferenceQueue<Jama.Matrix> queue) {
+      super(matrix, queue);
+      this.array = array;
+    }
+  }
+
+  /** Makes this the arena of the calling thread until the matching exit(). */
+  void enter() {
+    if (depth++ == 0) {
+      CURRENT.set(this);
+    }
+  }
+
+  void exit() {
+    if (--depth == 0) {
+      CURRENT.remove();
+    }
+  }
+
+  /** Drops the free arrays, for clear-all. */
+  void clear() {
+    free.clear();
+    pooledBytes = 0;
+  }
+
+  /**
+   * Reports a new, zeroed matrix: from the calling thread's arena if it is
+   * inside matrix:with-arena, and freshly allocated otherwise.
+   */
+  static Jama.Matrix create(int rows, int cols) {
+    MatrixMemory.checkHeap(rows, cols);
+    Arena arena = CURRENT.get();
+    return arena == null ? new Jama.Matrix(rows, cols) : arena.allocate(rows, cols, true);
+  }
+
+  /** Reports a copy of a matrix, made like create(). */
+  static Jama.Matrix copy(Jama.Matrix matrix) {
+    MatrixMemory.checkHeap(matrix.getRowDimension(), matrix.getColumnDimension());
+    Arena arena = CURRENT.get();
+    if (arena == null) {
+      return matrix.copy();
+    }
+    int rows = matrix.getRowDimension();
+    int cols = matrix.getColumnDimension();
+    Jama.Matrix result = arena.allocate(rows, cols, false);
+    double[][] source = matrix.getArray();
+    double[][] dest = result.getArray();
+    for (int i = 0; i < rows; i++) {
+      System.arraycopy(source[i], 0, dest[i], 0, cols);
+    }
+    return result;
+  }
+
+  private Jama.Matrix allocate(int rows, int cols, boolean zero) {
+    reclaim();
+    ArrayDeque<double[][]> arrays = free.get(key(rows, cols));
+    double[][] array = arrays == null ? null : arrays.poll();
+    if (array != null) {
+      pooledBytes -= bytes(rows, cols);
+      if (zero) {
+        for (double[] row : array) {
+          Arrays.fill(row, 0.0);
+        }
+      }
+    } else {
+      array = new double[rows][cols];
+    }
+    Jama.Matrix matrix = new Jama.Matrix(array, rows, cols);
+    slots.add(new Slot(matrix, array, queue));
+    return matrix;
+  }
+
+  // Takes back the arrays of the matrices that have been collected.
+  private void reclaim() {
+    Slot slot;
+    while ((slot = (Slot) queue.poll()) != null) {
+      slots.remove(slot);
+      double[][] array = slot.array;
+      int rows = array.length;
+      int cols = rows == 0 ? 0 : array[0].length;
+      long size = bytes(rows, cols);
+      if (pooledBytes + size <= MAX_POOLED_BYTES) {
+        free.computeIfAbsent(key(rows, cols), k -> new ArrayDeque<double[][]>()).push(array);
+        pooledBytes += size;
+      }
+    }
+  }
+
+  private static long key(int rows, int cols) {
+    return ((long) rows << 32) | (cols & 0xffffffffL);
+  }
+
+  private static long bytes(int rows, int cols) {
+    return (long) rows * cols * 8;
+  }
+}
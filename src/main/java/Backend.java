@@ -0,0 +1,111 @@
+package org.nlogo.extensions.matrix;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.DoubleBinaryOperator;
+
+/**
+ * The engine that does the numerical work on heap matrices: creating them,
+ * multiplying them (GEMM), element-wise arithmetic, and the decompositions
+ * behind matrix:solve, matrix:inverse, matrix:det, matrix:rank,
+ * matrix:cond and the eigen primitives.  Primitives never call these
+ * algorithms on a Jama.Matrix themselves but go through current().
+ *
+ * Matrices are exchanged as Jama.Matrix, since that is what HeapStorage
+ * keeps and what a matrix is made of everywhere else; an engine only
+ * provides the algorithms.  JamaBackend, Jama's own algorithms, is the
+ * reference that any other engine must agree with.  Each workspace has an
+ * engine of its own (see WorkspaceState), which starts as the one named by
+ * the netlogo.matrix.backend system property, if any, and can be changed at
+ * any time with matrix:set-backend.
+ */
+abstract class Backend {
+
+  private static final Map<String, Backend> BACKENDS = new LinkedHashMap<>();
+
+  static {
+    register(new JamaBackend());
+    register(new BlockedBackend());
+  }
+
+  private static void register(Backend backend) {
+    BACKENDS.put(backend.name(), backend);
+  }
+
+  /** The engine a new workspace starts with. */
+  static Backend initial() {
+    String name = System.getProperty("netlogo.matrix.backend");
+    if (name != null && BACKENDS.containsKey(name)) {
+      return BACKENDS.get(name);
+    }
+    return BACKENDS.get(JamaBackend.NAME);
+  }
+
+  /** The engine of the workspace the calling thread works for. */
+  static Backend current() {
+    return WorkspaceState.current().backend;
+  }
+
+  /**
+   * Selects the named engine for the calling thread's workspace; fails with
+   * an IllegalArgumentException if there is none.
+   */
+  static void select(String name) {
+    Backend backend = BACKENDS.get(name);
+    if (backend == null) {
+      throw new IllegalArgumentException("Unknown backend \"" + name + "\". Expected one of \""
+          + String.join("\", \"", names()) + "\".");
+    }
+    WorkspaceState.current().backend = backend;
+  }
+
+  static String[] names() {
+    return BACKENDS.keySet().toArray(new String[0]);
+  }
+
+  /** The name matrix:set-backend knows this engine by. */
+  abstract String name();
+
+  /** Reports a new, zeroed matrix for a result; see Arena. */
+  Jama.Matrix create(int rows, int cols) {
+    return Arena.create(rows, cols);
+  }
+
+  /** The matrix product a * b. */
+  abstract Jama.Matrix times(Jama.Matrix a, Jama.Matrix b);
+
+  /** Sets each element of acc to op(acc element, elem element). */
+  abstract void elementwise(double[][] acc, double[][] elem, DoubleBinaryOperator op);
+
+  /** Sets each element of acc to op(acc element, scalar). */
+  abstract void elementwise(double[][] acc, double scalar, DoubleBinaryOperator op);
+
+  /**
+   * The solution X of a * X = b: exact for a square a, least squares
+   * otherwise.
+   */
+  abstract Jama.Matrix solve(Jama.Matrix a, Jama.Matrix b);
+
+  abstract Jama.Matrix inverse(Jama.Matrix a);
+
+  abstract double det(Jama.Matrix a);
+
+  abstract int rank(Jama.Matrix a);
+
+  abstract double cond(Jama.Matrix a);
+
+  abstract Eigen eig(Jama.Matrix a);
+
+  /** The eigenvalues and eigenvectors of a square matrix. */
+  static final class Eigen {
+    final double[] realValues;
+    final double[] imagValues;
+    final Jama.Matrix vectors;
+
+    Eigen(double[] realValues, double[] imagValues, Jama.Matrix vectors) {
+      this.realValues = realValues;
+      this.imagValues = imagValues;
+      this.vectors = vectors;
+    }
+  }
+}
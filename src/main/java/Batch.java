@@ -0,0 +1,245 @@
+package org.nlogo.extensions.matrix;
+
+/**
+ * The loops behind the batch primitives (matrix:batch-times,
+ * matrix:batch-det, matrix:batch-inverse and matrix:batch-solve), which do
+ * the same operation on each of a list of small matrices of the same
+ * dimensions, such as one per turtle.
+ *
+ * Calling the ordinary primitive from an ask costs, for each matrix, a
+ * trip through the interpreter and a Jama decomposition object with its
+ * own arrays, which for a 3x3 matrix is much more work than the arithmetic.
+ * Here a single loop goes through the batch, factoring each matrix in
+ * scratch arrays that are reused from one matrix to the next.  The
+ * algorithms are Jama's own (LU decomposition with partial pivoting, and
+ * the product), step for step, so each result is the same to the last bit
+ * as the ordinary primitive's with the default engine.  Big batches are
+ * split between the worker threads (see Workers).
+ *
+ * Batch index i takes operand i from each array, or operand 0 from an
+ * array of length 1, which is how one matrix is combined with every matrix
+ * of the batch.  The caller checks the dimensions.
+ */
+final class Batch {
+
+  private Batch() { }
+
+  // Batches needing fewer multiply-adds than this are done on the calling
+  // thread.
+  static final long PARALLEL_THRESHOLD = 1L << 20;
+
+  // The results are made on the calling thread before the work is split,
+  // so that matrix:with-arena can supply them (see Arena).
+  private static Jama.Matrix[] create(int count, int rows, int cols) {
+    Jama.Matrix[] results = new Jama.Matrix[count];
+    for (int i = 0; i < count; i++) {
+      results[i] = Arena.create(rows, cols);
+    }
+    return results;
+  }
+
+  private static double[][] operand(double[][][] batch, int i) {
+    return batch[batch.length == 1 ? 0 : i];
+  }
+
+  static Jama.Matrix[] times(double[][][] a, double[][][] b, int count) {
+    int n = a[0].length;
+    int inner = b[0].length;
+    int m = b[0][0].length;
+    Jama.Matrix[] results = create(count, n, m);
+    Workers.forEach(count, (long) count * n * inner * m, PARALLEL_THRESHOLD, (from, to) -> {
+      for (int item = from; item < to; item++) {
+        double[][] aArray = operand(a, item);
+        double[][] bArray = operand(b, item);
+        double[][] cArray = results[item].getArray();
+        // The terms of each element are added in the same order as by
+        // Jama's Matrix.times, a row at a time rather than a column.
+        for (int i = 0; i < n; i++) {
+          double[] aRow = aArray[i];
+          double[] cRow = cArray[i];
+          for (int k = 0; k < inner; k++) {
+            double aik = aRow[k];
+            double[] bRow = bArray[k];
+            for (int j = 0; j < m; j++) {
+              cRow[j] += aik * bRow[j];
+            }
+          }
+        }
+      }
+    });
+    return results;
+  }
+
+  static double[] det(double[][][] a) {
+    int count = a.length;
+    int n = a[0].length;
+    double[] results = new double[count];
+    Workers.forEach(count, (long) count * n * n * n, PARALLEL_THRESHOLD, (from, to) -> {
+      LU lu = new LU(n);
+      for (int item = from; item < to; item++) {
+        results[item] = lu.factor(a[item]);
+        for (int j = 0; j < n; j++) {
+          results[item] *= lu.lu[j][j];
+        }
+      }
+    });
+    return results;
+  }
+
+  static Jama.Matrix[] inverse(double[][][] a) {
+    int count = a.length;
+    int n = a[0].length;
+    Jama.Matrix[] results = create(count, n, n);
+    Workers.forEach(count, (long) count * n * n * n, PARALLEL_THRESHOLD, (from, to) -> {
+      LU lu = new LU(n);
+      for (int item = from; item < to; item++) {
+        lu.factor(a[item]);
+        lu.checkNonsingular(item);
+        double[][] x = results[item].getArray();
+        for (int i = 0; i < n; i++) {
+          x[i][lu.piv[i]] = 1.0;
+        }
+        lu.solve(x);
+      }
+    });
+    return results;
+  }
+
+  /**
+   * Solves a * x = b for each item: exactly for square a, and in the least
+   * squares sense, by the engine in use, otherwise.
+   */
+  static Jama.Matrix[] solve(double[][][] a, double[][][] b, int count) {
+    int n = a[0].length;
+    int p = a[0][0].length;
+    int m = b[0][0].length;
+    if (n != p) {
+      Jama.Matrix[] results = new Jama.Matrix[count];
+      Workers.forEach(count, (long) count * n * p * p, PARALLEL_THRESHOLD, (from, to) -> {
+        for (int item = from; item < to; item++) {
+          results[item] = Backend.current().solve(new Jama.Matrix(operand(a, item)), new Jama.Matrix(operand(b, item)));
+        }
+      });
+      return results;
+    }
+    Jama.Matrix[] results = create(count, n, m);
+    boolean shared = a.length == 1;
+    Workers.forEach(count, (long) count * n * n * (n + m), PARALLEL_THRESHOLD, (from, to) -> {
+      LU lu = new LU(n);
+      if (shared) {
+        // one matrix for the whole batch, factored once
+        lu.factor(a[0]);
+        lu.checkNonsingular(-1);
+      }
+      for (int item = from; item < to; item++) {
+        if (!shared) {
+          lu.factor(a[item]);
+          lu.checkNonsingular(item);
+        }
+        double[][] bArray = operand(b, item);
+        double[][] x = results[item].getArray();
+        for (int i = 0; i < n; i++) {
+          System.arraycopy(bArray[lu.piv[i]], 0, x[i], 0, m);
+        }
+        lu.solve(x);
+      }
+    });
+    return results;
+  }
+
+  /**
+   * Jama's LUDecomposition of a square matrix, in arrays that are reused
+   * for every matrix of a batch.
+   */
+  private static final class LU {
+    final int n;
+    final double[][] lu;
+    final int[] piv;
+    final double[] column;
+
+    LU(int n) {
+      this.n = n;
+      lu = new double[n][n];
+      piv = new int[n];
+      column = new double[n];
+    }
+
+    /** Factors a, and reports the sign of the row permutation. */
+    double factor(double[][] a) {
+      for (int i = 0; i < n; i++) {
+        System.arraycopy(a[i], 0, lu[i], 0, n);
+        piv[i] = i;
+      }
+      double pivsign = 1.0;
+      for (int j = 0; j < n; j++) {
+        for (int i = 0; i < n; i++) {
+          column[i] = lu[i][j];
+        }
+        for (int i = 0; i < n; i++) {
+          double[] row = lu[i];
+          int kmax = StrictMath.min(i, j);
+          double s = 0.0;
+          for (int k = 0; k < kmax; k++) {
+            s += row[k] * column[k];
+          }
+          row[j] = column[i] -= s;
+        }
+        int p = j;
+        for (int i = j + 1; i < n; i++) {
+          if (StrictMath.abs(column[i]) > StrictMath.abs(column[p])) {
+            p = i;
+          }
+        }
+        if (p != j) {
+          double[] row = lu[p];
+          lu[p] = lu[j];
+          lu[j] = row;
+          int k = piv[p];
+          piv[p] = piv[j];
+          piv[j] = k;
+          pivsign = -pivsign;
+        }
+        if (lu[j][j] != 0.0) {
+          for (int i = j + 1; i < n; i++) {
+            lu[i][j] /= lu[j][j];
+          }
+        }
+      }
+      return pivsign;
+    }
+
+    /** Fails unless the matrix factored is nonsingular; item -1 is a matrix given on its own. */
+    void checkNonsingular(int item) {
+      for (int j = 0; j < n; j++) {
+        if (lu[j][j] == 0.0) {
+          throw new IllegalArgumentException(item < 0 ? "Matrix is singular." : "Item " + item + " of the list is singular.");
+        }
+      }
+    }
+
+    /** Solves L * U * x = x in place, for x already permuted. */
+    void solve(double[][] x) {
+      int m = x[0].length;
+      for (int k = 0; k < n; k++) {
+        for (int i = k + 1; i < n; i++) {
+          double lik = lu[i][k];
+          for (int j = 0; j < m; j++) {
+            x[i][j] -= x[k][j] * lik;
+          }
+        }
+      }
+      for (int k = n - 1; k >= 0; k--) {
+        double ukk = lu[k][k];
+        for (int j = 0; j < m; j++) {
+          x[k][j] /= ukk;
+        }
+        for (int i = 0; i < k; i++) {
+          double uik = lu[i][k];
+          for (int j = 0; j < m; j++) {
+            x[i][j] -= x[k][j] * uik;
+          }
+        }
+      }
+    }
+  }
+}
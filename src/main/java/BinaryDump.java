@@ -0,0 +1,172 @@
+package org.nlogo.extensions.matrix;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The compact encoding of matrix data used by export-world.
+ *
+ * The encoding is a short header followed by the elements as little-endian
+ * doubles, row by row, in base64:
+ *
+ *   #1 numRows numCols data        (uncompressed)
+ *   #1z numRows numCols data       (deflated before the base64 step)
+ *
+ * The number after the # is the format version.  Rows are written and read
+ * one at a time, so neither side ever holds a text or boxed copy of the
+ * whole matrix.  The older textual format ([ [ 1 2 ][ 3 4 ] ]) never starts
+ * with #, so the two are easy to tell apart when importing.
+ */
+final class BinaryDump {
+
+  private BinaryDump() { }
+
+  static final String VERSION = "1";
+  private static final char MARKER = '#';
+  private static final char COMPRESSED = 'z';
+
+  // Matrices with at least this many elements are deflated.  Below that the
+  // savings don't pay for the compressor's setup.
+  static final int COMPRESSION_THRESHOLD = 4096;
+
+  static boolean isBinary(String data) {
+    return !data.isEmpty() && data.charAt(0) == MARKER;
+  }
+
+  static void append(StringBuilder buf, MatrixStorage storage) {
+    int numRows = storage.rows();
+    int numCols = storage.cols();
+    boolean compress = (long) numRows * numCols >= COMPRESSION_THRESHOLD;
+    buf.append(MARKER).append(VERSION);
+    if (compress) {
+      buf.append(COMPRESSED);
+    } else {
+      buf.ensureCapacity(buf.length() + 32 + (int) StrictMath.min(Integer.MAX_VALUE - 64,
+          4 * (((long) numRows * numCols * 8 + 2) / 3)));
+    }
+    buf.append(' ').append(numRows).append(' ').append(numCols).append(' ');
+
+    ByteBuffer rowBytes = ByteBuffer.allocate(numCols * 8).order(ByteOrder.LITTLE_ENDIAN);
+    DoubleBuffer rowDoubles = rowBytes.asDoubleBuffer();
+    Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+    try (OutputStream out = compress
+        ? new DeflaterOutputStream(Base64.getEncoder().wrap(new AppendingOutputStream(buf)), deflater, 1 << 16)
+        : Base64.getEncoder().wrap(new AppendingOutputStream(buf))) {
+      for (int i = 0; i < numRows; i++) {
+        rowDoubles.clear();
+        rowDoubles.put(storage.getRow(i));
+        out.write(rowBytes.array(), 0, rowBytes.capacity());
+      }
+    } catch (IOException ex) {
+      // we're only writing into a StringBuilder
+      throw new IllegalStateException(ex);
+    } finally {
+      if (deflater != null) {
+        deflater.end();
+      }
+    }
+  }
+
+  static double[][] read(String data) {
+    int start = data.indexOf(' ');
+    int afterRows = start < 0 ? -1 : data.indexOf(' ', start + 1);
+    int afterCols = afterRows < 0 ? -1 : data.indexOf(' ', afterRows + 1);
+    if (afterCols < 0) {
+      throw new IllegalArgumentException("Malformed matrix data.");
+    }
+    String format = data.substring(1, start);
+    boolean compressed = format.endsWith(String.valueOf(COMPRESSED));
+    String version = compressed ? format.substring(0, format.length() - 1) : format;
+    if (!version.equals(VERSION)) {
+      throw new IllegalArgumentException("Unsupported matrix data format version: " + version);
+    }
+    int numRows;
+    int numCols;
+    try {
+      numRows = Integer.parseInt(data.substring(start + 1, afterRows));
+      numCols = Integer.parseInt(data.substring(afterRows + 1, afterCols));
+    } catch (NumberFormatException ex) {
+      throw new IllegalArgumentException("Malformed matrix dimensions.");
+    }
+
+    MatrixMemory.checkHeap(numRows, numCols);
+    double[][] dArray = new double[numRows][numCols];
+    byte[] rowBytes = new byte[numCols * 8];
+    DoubleBuffer rowDoubles = ByteBuffer.wrap(rowBytes).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+    InputStream base64 = Base64.getDecoder().wrap(new CharSequenceInputStream(data, afterCols + 1));
+    try (DataInputStream in = new DataInputStream(compressed ? new InflaterInputStream(base64) : base64)) {
+      for (double[] row : dArray) {
+        in.readFully(rowBytes);
+        rowDoubles.clear();
+        rowDoubles.get(row);
+      }
+    } catch (EOFException ex) {
+      throw new IllegalArgumentException("Matrix data is shorter than its dimensions (" + numRows + "x" + numCols + ").");
+    } catch (IOException ex) {
+      throw new IllegalArgumentException("Malformed matrix data: " + ex.getMessage());
+    }
+    return dArray;
+  }
+
+  /** Appends the (ASCII) bytes written to it onto a StringBuilder. */
+  private static class AppendingOutputStream extends OutputStream {
+    private final StringBuilder buf;
+
+    AppendingOutputStream(StringBuilder buf) {
+      this.buf = buf;
+    }
+
+    @Override
+    public void write(int b) {
+      buf.append((char) (b & 0xff));
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      buf.append(new String(b, off, len, StandardCharsets.ISO_8859_1));
+    }
+  }
+
+  /** Reads the (ASCII) characters of a string, from some offset, as bytes. */
+  private static class CharSequenceInputStream extends InputStream {
+    private final CharSequence chars;
+    private int pos;
+
+    CharSequenceInputStream(CharSequence chars, int start) {
+      this.chars = chars;
+      this.pos = start;
+    }
+
+    @Override
+    public int read() {
+      return pos < chars.length() ? (chars.charAt(pos++) & 0xff) : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      int available = chars.length() - pos;
+      if (available <= 0) {
+        return -1;
+      }
+      int n = StrictMath.min(len, available);
+      for (int i = 0; i < n; i++) {
+        b[off + i] = (byte) chars.charAt(pos++);
+      }
+      return n;
+    }
+  }
+}
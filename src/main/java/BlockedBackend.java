@@ -0,0 +1,204 @@
+package org.nlogo.extensions.matrix;
+
+/**
+ * A pure-Java engine tuned for big matrices.  Jama's algorithms go through
+ * its matrices a column at a time in places, which for big matrices means
+ * a cache miss on nearly every element.  This engine multiplies by blocks
+ * of B that stay in the cache, and factors square matrices with a
+ * row-oriented LU decomposition, so that the inner loops run along rows.
+ * Both split their rows between the extension's worker threads (see
+ * Workers) when the matrices are big enough.
+ *
+ * The product adds up the terms of each element in the same order as Jama,
+ * so it is the same to the last bit; solutions, inverses and determinants
+ * agree with Jama's to within rounding.  Everything else (least squares,
+ * rank, cond and eigen) is Jama's.
+ */
+final class BlockedBackend extends JamaBackend {
+
+  static final String NAME = "blocked";
+
+  // Side of the blocks of B, chosen to keep one (128 KB) in the L2 cache.
+  private static final int BLOCK = 128;
+
+  // Products and eliminations needing fewer multiply-adds than this are
+  // done on the calling thread.
+  static final long PARALLEL_THRESHOLD = 1L << 20;
+
+  @Override
+  String name() {
+    return NAME;
+  }
+
+  @Override
+  Jama.Matrix times(Jama.Matrix a, Jama.Matrix b) {
+    int n = a.getRowDimension();
+    int inner = a.getColumnDimension();
+    int m = b.getColumnDimension();
+    if (b.getRowDimension() != inner) {
+      throw new IllegalArgumentException("Matrix inner dimensions must agree.");
+    }
+    double[][] aArray = a.getArray();
+    double[][] bArray = b.getArray();
+    Jama.Matrix result = create(n, m);
+    double[][] cArray = result.getArray();
+    Workers.forEach(n, (long) n * inner * m, PARALLEL_THRESHOLD, (from, to) -> {
+      for (int k0 = 0; k0 < inner; k0 += BLOCK) {
+        int kEnd = StrictMath.min(k0 + BLOCK, inner);
+        for (int j0 = 0; j0 < m; j0 += BLOCK) {
+          int jEnd = StrictMath.min(j0 + BLOCK, m);
+          for (int i = from; i < to; i++) {
+            double[] aRow = aArray[i];
+            double[] cRow = cArray[i];
+            for (int k = k0; k < kEnd; k++) {
+              double aik = aRow[k];
+              double[] bRow = bArray[k];
+              for (int j = j0; j < jEnd; j++) {
+                cRow[j] += aik * bRow[j];
+              }
+            }
+          }
+        }
+      }
+    });
+    return result;
+  }
+
+  @Override
+  Jama.Matrix solve(Jama.Matrix a, Jama.Matrix b) {
+    if (a.getRowDimension() != a.getColumnDimension()) {
+      return super.solve(a, b);
+    }
+    MatrixMemory.checkHeap(a.getColumnDimension(), b.getColumnDimension());
+    return new LU(a).solve(b);
+  }
+
+  @Override
+  Jama.Matrix inverse(Jama.Matrix a) {
+    int n = a.getRowDimension();
+    if (n != a.getColumnDimension()) {
+      return super.inverse(a);
+    }
+    MatrixMemory.checkHeap(n, n);
+    return new LU(a).solve(Jama.Matrix.identity(n, n));
+  }
+
+  @Override
+  double det(Jama.Matrix a) {
+    if (a.getRowDimension() != a.getColumnDimension()) {
+      return super.det(a);
+    }
+    return new LU(a).det();
+  }
+
+  /**
+   * LU decomposition with partial pivoting of a square matrix, eliminating
+   * a whole row at a time.  Pivots are chosen as in Jama.
+   */
+  private static final class LU {
+    private final double[][] lu;
+    private final int[] piv;
+    private int pivSign = 1;
+
+    LU(Jama.Matrix a) {
+      lu = a.getArrayCopy();
+      int n = lu.length;
+      piv = new int[n];
+      for (int i = 0; i < n; i++) {
+        piv[i] = i;
+      }
+      for (int k = 0; k < n; k++) {
+        int p = k;
+        for (int i = k + 1; i < n; i++) {
+          if (StrictMath.abs(lu[i][k]) > StrictMath.abs(lu[p][k])) {
+            p = i;
+          }
+        }
+        if (p != k) {
+          double[] row = lu[p];
+          lu[p] = lu[k];
+          lu[k] = row;
+          int t = piv[p];
+          piv[p] = piv[k];
+          piv[k] = t;
+          pivSign = -pivSign;
+        }
+        double[] pivotRow = lu[k];
+        double pivot = pivotRow[k];
+        if (pivot != 0.0) {
+          int col = k;
+          Workers.forEach(n - k - 1, (long) (n - k - 1) * (n - k - 1), PARALLEL_THRESHOLD, (from, to) -> {
+            for (int i = col + 1 + from; i < col + 1 + to; i++) {
+              double[] row = lu[i];
+              double factor = row[col] / pivot;
+              row[col] = factor;
+              for (int j = col + 1; j < n; j++) {
+                row[j] -= factor * pivotRow[j];
+              }
+            }
+          });
+        }
+      }
+    }
+
+    boolean isNonsingular() {
+      for (int j = 0; j < lu.length; j++) {
+        if (lu[j][j] == 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    double det() {
+      double d = pivSign;
+      for (int j = 0; j < lu.length; j++) {
+        d *= lu[j][j];
+      }
+      return d;
+    }
+
+    Jama.Matrix solve(Jama.Matrix b) {
+      int n = lu.length;
+      if (b.getRowDimension() != n) {
+        throw new IllegalArgumentException("Matrix row dimensions must agree.");
+      }
+      if (!isNonsingular()) {
+        throw new RuntimeException("Matrix is singular.");
+      }
+      int nx = b.getColumnDimension();
+      double[][] bArray = b.getArray();
+      double[][] x = new double[n][];
+      for (int i = 0; i < n; i++) {
+        x[i] = bArray[piv[i]].clone();
+      }
+      // L * Y = B(piv, :)
+      for (int k = 0; k < n; k++) {
+        double[] xk = x[k];
+        for (int i = k + 1; i < n; i++) {
+          double factor = lu[i][k];
+          double[] xi = x[i];
+          for (int j = 0; j < nx; j++) {
+            xi[j] -= xk[j] * factor;
+          }
+        }
+      }
+      // U * X = Y
+      for (int k = n - 1; k >= 0; k--) {
+        double[] xk = x[k];
+        double pivot = lu[k][k];
+        for (int j = 0; j < nx; j++) {
+          xk[j] /= pivot;
+        }
+        for (int i = 0; i < k; i++) {
+          double factor = lu[i][k];
+          double[] xi = x[i];
+          for (int j = 0; j < nx; j++) {
+            xi[j] -= xk[j] * factor;
+          }
+        }
+      }
+      return new Jama.Matrix(x, n, nx);
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package org.nlogo.extensions.matrix;
+
+import java.lang.ref.Reference;
+import java.nio.DoubleBuffer;
+
+/**
+ * Storage outside of the Java heap, in a sequence of DoubleBuffers holding
+ * the elements row by row.  A single buffer can't cover more than 2 GB, so
+ * the elements are split into chunks of CHUNK_ELEMENTS elements each; a row
+ * may straddle two chunks.  Subclasses decide where the buffers come from.
+ *
+ * The accessors keep the storage reachable until they are done with the
+ * buffers, as its memory may be freed as soon as it becomes unreachable
+ * (see OffHeapStorage).
+ */
+abstract class BufferStorage extends MatrixStorage {
+
+  static final int CHUNK_SHIFT = 27;
+  // 1 GB of doubles per buffer
+  static final long CHUNK_ELEMENTS = 1L << CHUNK_SHIFT;
+  private static final long CHUNK_MASK = CHUNK_ELEMENTS - 1;
+
+  final int numRows;
+  final int numCols;
+  final DoubleBuffer[] chunks;
+
+  BufferStorage(int numRows, int numCols) {
+    this.numRows = numRows;
+    this.numCols = numCols;
+    chunks = new DoubleBuffer[chunkCount((long) numRows * numCols)];
+  }
+
+  static int chunkCount(long count) {
+    return (int) ((count + CHUNK_ELEMENTS - 1) >>> CHUNK_SHIFT);
+  }
+
+  /** The number of elements in chunk k. */
+  long chunkLength(int k) {
+    return StrictMath.min(CHUNK_ELEMENTS, size() - ((long) k << CHUNK_SHIFT));
+  }
+
+  @Override
+  int rows() {
+    return numRows;
+  }
+
+  @Override
+  int cols() {
+    return numCols;
+  }
+
+  @Override
+  double get(int row, int col) {
+    long index = (long) row * numCols + col;
+    try {
+      return chunks[(int) (index >>> CHUNK_SHIFT)].get((int) (index & CHUNK_MASK));
+    } finally {
+      Reference.reachabilityFence(this);
+    }
+  }
+
+  @Override
+  void set(int row, int col, double value) {
+    long index = (long) row * numCols + col;
+    try {
+      chunks[(int) (index >>> CHUNK_SHIFT)].put((int) (index & CHUNK_MASK), value);
+    } finally {
+      Reference.reachabilityFence(this);
+    }
+  }
+
+  @Override
+  void getRow(int row, int col, double[] dest, int offset, int len) {
+    long index = (long) row * numCols + col;
+    try {
+      while (len > 0) {
+        int position = (int) (index & CHUNK_MASK);
+        int n = (int) StrictMath.min(len, CHUNK_ELEMENTS - position);
+        // a duplicate has its own position, so concurrent readers don't interfere
+        DoubleBuffer chunk = chunks[(int) (index >>> CHUNK_SHIFT)].duplicate();
+        chunk.position(position);
+        chunk.get(dest, offset, n);
+        index += n;
+        offset += n;
+        len -= n;
+      }
+    } finally {
+      Reference.reachabilityFence(this);
+    }
+  }
+
+  @Override
+  void setRow(int row, int col, double[] src, int offset, int len) {
+    long index = (long) row * numCols + col;
+    try {
+      while (len > 0) {
+        int position = (int) (index & CHUNK_MASK);
+        int n = (int) StrictMath.min(len, CHUNK_ELEMENTS - position);
+        DoubleBuffer chunk = chunks[(int) (index >>> CHUNK_SHIFT)].duplicate();
+        chunk.position(position);
+        chunk.put(src, offset, n);
+        index += n;
+        offset += n;
+        len -= n;
+      }
+    } finally {
+      Reference.reachabilityFence(this);
+    }
+  }
+
+  @Override
+  boolean outOfCore() {
+    return true;
+  }
+}
@@ -0,0 +1,307 @@
+package org.nlogo.extensions.matrix;
+
+import java.util.Locale;
+
+/**
+ * 2-D convolution of a matrix with a kernel, used by matrix:convolve.
+ *
+ * The result has the same dimensions as the input.  The kernel is centered
+ * on each element (for even-sized kernels the center is just above and to the
+ * left of the middle), and is flipped as in a true convolution, so that
+ *
+ *   out[i][j] = sum over a, b of kernel[a][b] * in[i + ca - a][j + cb - b]
+ *
+ * where (ca, cb) is the kernel's center.  Elements outside of the input are
+ * supplied by the boundary mode.  Small kernels are applied with a direct
+ * loop; when the kernel is large enough that a transform is cheaper, the
+ * work is done with an FFT instead.  Big inputs are split into bands of rows
+ * that are processed in parallel on the extension's worker threads.
+ */
+final class Convolution {
+
+  private Convolution() { }
+
+  enum Boundary {
+    /** elements outside the matrix are zero */
+    ZERO,
+    /** the matrix wraps around in both directions, like a torus-shaped world */
+    WRAP,
+    /** elements outside the matrix take the value of the nearest edge element, like a box-shaped world */
+    CLAMP;
+
+    static Boundary fromName(String name) {
+      for (Boundary boundary : values()) {
+        if (boundary.name().equals(name.toUpperCase(Locale.ENGLISH))) {
+          return boundary;
+        }
+      }
+      throw new IllegalArgumentException("Unknown boundary mode \"" + name + "\". Expected \"zero\", \"wrap\" or \"clamp\".");
+    }
+  }
+
+  // Inputs needing fewer multiply-adds than this are done on the calling thread.
+  static final long PARALLEL_THRESHOLD = 1L << 20;
+
+  static double[][] convolve(double[][] input, double[][] kernel, Boundary boundary) {
+    int numRows = input.length;
+    int numCols = input[0].length;
+    int kernelRows = kernel.length;
+    int kernelCols = kernel[0].length;
+    double[][] padded = pad(input, kernelRows, kernelCols, boundary);
+    if (useFFT(numRows, numCols, kernelRows, kernelCols)) {
+      return viaFFT(padded, kernel, numRows, numCols);
+    } else {
+      return direct(padded, kernel, numRows, numCols);
+    }
+  }
+
+  static boolean useFFT(int numRows, int numCols, int kernelRows, int kernelCols) {
+    int fftRows = nextPowerOfTwo(numRows + kernelRows - 1);
+    int fftCols = nextPowerOfTwo(numCols + kernelCols - 1);
+    double directCost = (double) numRows * numCols * kernelRows * kernelCols;
+    // three 2-D transforms, with a rough constant for the butterfly work
+    double fftCost = 12.0 * fftRows * fftCols * (log2(fftRows) + log2(fftCols));
+    return fftCost < directCost;
+  }
+
+  /**
+   * Reports a copy of the input with kernelRows - 1 extra rows and
+   * kernelCols - 1 extra columns around it, filled according to the boundary.
+   * Element [r][c] of the result corresponds to input[r - top][c - left].
+   */
+  static double[][] pad(double[][] input, int kernelRows, int kernelCols, Boundary boundary) {
+    int numRows = input.length;
+    int numCols = input[0].length;
+    int top = kernelRows / 2;
+    int left = kernelCols / 2;
+    int paddedCols = numCols + kernelCols - 1;
+    MatrixMemory.checkHeap(numRows + kernelRows - 1, paddedCols);
+    double[][] padded = new double[numRows + kernelRows - 1][];
+    for (int r = 0; r < padded.length; r++) {
+      int sourceRow = sourceIndex(r - top, numRows, boundary);
+      double[] row = new double[paddedCols];
+      padded[r] = row;
+      if (sourceRow == -1) {
+        continue;
+      }
+      double[] source = input[sourceRow];
+      System.arraycopy(source, 0, row, left, numCols);
+      for (int c = 0; c < left; c++) {
+        int sourceCol = sourceIndex(c - left, numCols, boundary);
+        row[c] = sourceCol == -1 ? 0.0 : source[sourceCol];
+      }
+      for (int c = left + numCols; c < paddedCols; c++) {
+        int sourceCol = sourceIndex(c - left, numCols, boundary);
+        row[c] = sourceCol == -1 ? 0.0 : source[sourceCol];
+      }
+    }
+    return padded;
+  }
+
+  // -1 means "zero"
+  private static int sourceIndex(int index, int size, Boundary boundary) {
+    if (index >= 0 && index < size) {
+      return index;
+    }
+    switch (boundary) {
+      case WRAP:
+        return Math.floorMod(index, size);
+      case CLAMP:
+        return index < 0 ? 0 : size - 1;
+      default:
+        return -1;
+    }
+  }
+
+  static double[][] direct(double[][] padded, double[][] kernel, int numRows, int numCols) {
+    int kernelRows = kernel.length;
+    int kernelCols = kernel[0].length;
+    MatrixMemory.checkHeap(numRows, numCols);
+    double[][] result = new double[numRows][numCols];
+    forEachBand(numRows, (long) numCols * kernelRows * kernelCols, (from, to) -> {
+      for (int i = from; i < to; i++) {
+        double[] out = result[i];
+        for (int a = 0; a < kernelRows; a++) {
+          double[] in = padded[i + kernelRows - 1 - a];
+          double[] kernelRow = kernel[a];
+          for (int b = 0; b < kernelCols; b++) {
+            double k = kernelRow[b];
+            if (k == 0.0) {
+              continue;
+            }
+            int offset = kernelCols - 1 - b;
+            for (int j = 0; j < numCols; j++) {
+              out[j] += k * in[j + offset];
+            }
+          }
+        }
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Computes the same result as direct() by multiplying transforms.  The
+   * transform size only has to cover the padded input: every output element
+   * we keep comes from a full overlap of kernel and input, so the circular
+   * wrap-around of the FFT never reaches it.
+   */
+  static double[][] viaFFT(double[][] padded, double[][] kernel, int numRows, int numCols) {
+    int kernelRows = kernel.length;
+    int kernelCols = kernel[0].length;
+    int fftRows = nextPowerOfTwo(padded.length);
+    int fftCols = nextPowerOfTwo(padded[0].length);
+
+    // the transforms of the input and the kernel, and then the result
+    MatrixMemory.current().check(4 * MatrixMemory.heapBytes(fftRows, fftCols)
+        + MatrixMemory.heapBytes(numRows, numCols));
+    double[][] re = new double[fftRows][fftCols];
+    double[][] im = new double[fftRows][fftCols];
+    for (int r = 0; r < padded.length; r++) {
+      System.arraycopy(padded[r], 0, re[r], 0, padded[r].length);
+    }
+    double[][] kernelRe = new double[fftRows][fftCols];
+    double[][] kernelIm = new double[fftRows][fftCols];
+    for (int r = 0; r < kernelRows; r++) {
+      System.arraycopy(kernel[r], 0, kernelRe[r], 0, kernelCols);
+    }
+
+    fft2(re, im, false);
+    fft2(kernelRe, kernelIm, false);
+    forEachBand(fftRows, 6L * fftCols, (from, to) -> {
+      for (int r = from; r < to; r++) {
+        double[] aRe = re[r];
+        double[] aIm = im[r];
+        double[] bRe = kernelRe[r];
+        double[] bIm = kernelIm[r];
+        for (int c = 0; c < fftCols; c++) {
+          double x = aRe[c] * bRe[c] - aIm[c] * bIm[c];
+          double y = aRe[c] * bIm[c] + aIm[c] * bRe[c];
+          aRe[c] = x;
+          aIm[c] = y;
+        }
+      }
+    });
+    fft2(re, im, true);
+
+    double scale = 1.0 / ((double) fftRows * fftCols);
+    double[][] result = new double[numRows][numCols];
+    for (int i = 0; i < numRows; i++) {
+      double[] source = re[i + kernelRows - 1];
+      double[] out = result[i];
+      for (int j = 0; j < numCols; j++) {
+        out[j] = source[j + kernelCols - 1] * scale;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * In-place 2-D FFT (unscaled in both directions).  Both dimensions must be
+   * powers of two.
+   */
+  static void fft2(double[][] re, double[][] im, boolean inverse) {
+    int numRows = re.length;
+    int numCols = re[0].length;
+    double[][] rowTwiddles = twiddles(numCols, inverse);
+    long rowWork = (long) numCols * log2(numCols) * 4;
+    forEachBand(numRows, rowWork, (from, to) -> {
+      for (int r = from; r < to; r++) {
+        fft(re[r], im[r], rowTwiddles);
+      }
+    });
+    double[][] colTwiddles = twiddles(numRows, inverse);
+    long colWork = (long) numRows * log2(numRows) * 4;
+    forEachBand(numCols, colWork, (from, to) -> {
+      double[] colRe = new double[numRows];
+      double[] colIm = new double[numRows];
+      for (int c = from; c < to; c++) {
+        for (int r = 0; r < numRows; r++) {
+          colRe[r] = re[r][c];
+          colIm[r] = im[r][c];
+        }
+        fft(colRe, colIm, colTwiddles);
+        for (int r = 0; r < numRows; r++) {
+          re[r][c] = colRe[r];
+          im[r][c] = colIm[r];
+        }
+      }
+    });
+  }
+
+  /**
+   * Reports the cosines and sines of the twiddle factors for a transform of
+   * length n.  Butterflies shorter than n use every (n / length)th entry.
+   */
+  static double[][] twiddles(int n, boolean inverse) {
+    int half = n >> 1;
+    double[] cos = new double[half];
+    double[] sin = new double[half];
+    for (int k = 0; k < half; k++) {
+      double angle = (inverse ? 2 : -2) * StrictMath.PI * k / n;
+      cos[k] = StrictMath.cos(angle);
+      sin[k] = StrictMath.sin(angle);
+    }
+    return new double[][]{cos, sin};
+  }
+
+  /** Iterative radix-2 Cooley-Tukey transform of one sequence. */
+  static void fft(double[] re, double[] im, double[][] twiddles) {
+    int n = re.length;
+    for (int i = 1, j = 0; i < n; i++) {
+      int bit = n >> 1;
+      for (; (j & bit) != 0; bit >>= 1) {
+        j ^= bit;
+      }
+      j ^= bit;
+      if (i < j) {
+        double t = re[i];
+        re[i] = re[j];
+        re[j] = t;
+        t = im[i];
+        im[i] = im[j];
+        im[j] = t;
+      }
+    }
+    double[] cos = twiddles[0];
+    double[] sin = twiddles[1];
+    for (int len = 2; len <= n; len <<= 1) {
+      int span = len >> 1;
+      int stride = n / len;
+      for (int start = 0; start < n; start += len) {
+        for (int k = 0; k < span; k++) {
+          double wRe = cos[k * stride];
+          double wIm = sin[k * stride];
+          int p = start + k;
+          int q = p + span;
+          double xRe = re[q] * wRe - im[q] * wIm;
+          double xIm = re[q] * wIm + im[q] * wRe;
+          re[q] = re[p] - xRe;
+          im[q] = im[p] - xIm;
+          re[p] += xRe;
+          im[p] += xIm;
+        }
+      }
+    }
+  }
+
+  /**
+   * Runs body over [0, numRows), split into bands of rows processed in
+   * parallel (see Workers) when the total work is large enough to be worth it.
+   */
+  static void forEachBand(int numRows, long workPerRow, Workers.Range body) {
+    Workers.forEach(numRows, numRows * workPerRow, PARALLEL_THRESHOLD, body);
+  }
+
+  static int nextPowerOfTwo(int n) {
+    int power = 1;
+    while (power < n) {
+      power <<= 1;
+    }
+    return power;
+  }
+
+  private static int log2(int powerOfTwo) {
+    return Integer.numberOfTrailingZeros(powerOfTwo);
+  }
+}
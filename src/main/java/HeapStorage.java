@@ -0,0 +1,119 @@
+package org.nlogo.extensions.matrix;
+
+/**
+ * The usual storage: a Jama.Matrix on the heap.
+ */
+final class HeapStorage extends MatrixStorage {
+
+  final Jama.Matrix matrix;
+
+  HeapStorage(Jama.Matrix matrix) {
+    this.matrix = matrix;
+  }
+
+  HeapStorage(int rows, int cols) {
+    this(zeroed(rows, cols));
+  }
+
+  private static Jama.Matrix zeroed(int rows, int cols) {
+    MatrixMemory.checkHeap(rows, cols);
+    return new Jama.Matrix(rows, cols);
+  }
+
+  @Override
+  int rows() {
+    return matrix.getRowDimension();
+  }
+
+  @Override
+  int cols() {
+    return matrix.getColumnDimension();
+  }
+
+  @Override
+  double get(int row, int col) {
+    return matrix.getArray()[row][col];
+  }
+
+  @Override
+  void set(int row, int col, double value) {
+    matrix.getArray()[row][col] = value;
+  }
+
+  @Override
+  void getRow(int row, int col, double[] dest, int offset, int len) {
+    System.arraycopy(matrix.getArray()[row], col, dest, offset, len);
+  }
+
+  @Override
+  void setRow(int row, int col, double[] src, int offset, int len) {
+    System.arraycopy(src, offset, matrix.getArray()[row], col, len);
+  }
+
+  @Override
+  double[] getRow(int row) {
+    return matrix.getArray()[row];
+  }
+
+  @Override
+  double[] getColumn(int col) {
+    double[][] dArray = matrix.getArray();
+    double[] result = new double[dArray.length];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = dArray[i][col];
+    }
+    return result;
+  }
+
+  @Override
+  MatrixStorage create(int rows, int cols) {
+    return new HeapStorage(rows, cols);
+  }
+
+  @Override
+  String kind() {
+    return "heap";
+  }
+
+  @Override
+  Jama.Matrix toJama() {
+    return matrix;
+  }
+
+  // Big results go through allocate() so that they can be put off the heap.
+
+  @Override
+  MatrixStorage copy() {
+    if (OffHeapStorage.wanted(size())) {
+      return copyRows(this, allocate(rows(), cols()));
+    }
+    MatrixMemory.checkHeap(rows(), cols());
+    return new HeapStorage(matrix.copy());
+  }
+
+  @Override
+  MatrixStorage transpose() {
+    if (OffHeapStorage.wanted(size())) {
+      return super.transpose();
+    }
+    MatrixMemory.checkHeap(cols(), rows());
+    return new HeapStorage(matrix.transpose());
+  }
+
+  @Override
+  MatrixStorage submatrix(int r1, int r2, int c1, int c2) {
+    if (OffHeapStorage.wanted((long) (r2 - r1) * (c2 - c1))) {
+      return super.submatrix(r1, r2, c1, c2);
+    }
+    MatrixMemory.checkHeap(r2 - r1, c2 - c1);
+    return new HeapStorage(matrix.getMatrix(r1, r2 - 1, c1, c2 - 1));
+  }
+
+  @Override
+  void swapRows(int row1, int row2) {
+    double[][] dArray = matrix.getArray();
+    double[] row = dArray[row1];
+    dArray[row1] = dArray[row2];
+    dArray[row2] = row;
+  }
+}
@@ -0,0 +1,101 @@
+package org.nlogo.extensions.matrix;
+
+import java.util.function.DoubleBinaryOperator;
+
+/**
+ * The reference engine: Jama's own algorithms, as the extension has always
+ * used them.
+ */
+class JamaBackend extends Backend {
+
+  static final String NAME = "jama";
+
+  @Override
+  String name() {
+    return NAME;
+  }
+
+  // Jama's Matrix.times, except that the result comes from create().
+  @Override
+  Jama.Matrix times(Jama.Matrix a, Jama.Matrix b) {
+    int n = a.getColumnDimension();
+    if (b.getRowDimension() != n) {
+      throw new IllegalArgumentException("Matrix inner dimensions must agree.");
+    }
+    int m = a.getRowDimension();
+    int p = b.getColumnDimension();
+    Jama.Matrix result = create(m, p);
+    double[][] aArray = a.getArray();
+    double[][] bArray = b.getArray();
+    double[][] cArray = result.getArray();
+    double[] bColj = new double[n];
+    for (int j = 0; j < p; j++) {
+      for (int k = 0; k < n; k++) {
+        bColj[k] = bArray[k][j];
+      }
+      for (int i = 0; i < m; i++) {
+        double[] aRowi = aArray[i];
+        double s = 0;
+        for (int k = 0; k < n; k++) {
+          s += aRowi[k] * bColj[k];
+        }
+        cArray[i][j] = s;
+      }
+    }
+    return result;
+  }
+
+  @Override
+  void elementwise(double[][] acc, double[][] elem, DoubleBinaryOperator op) {
+    for (int i = 0; i < acc.length; i++) {
+      double[] row = acc[i];
+      double[] elemRow = elem[i];
+      for (int j = 0; j < row.length; j++) {
+        row[j] = op.applyAsDouble(row[j], elemRow[j]);
+      }
+    }
+  }
+
+  @Override
+  void elementwise(double[][] acc, double scalar, DoubleBinaryOperator op) {
+    for (double[] row : acc) {
+      for (int j = 0; j < row.length; j++) {
+        row[j] = op.applyAsDouble(row[j], scalar);
+      }
+    }
+  }
+
+  @Override
+  Jama.Matrix solve(Jama.Matrix a, Jama.Matrix b) {
+    MatrixMemory.checkHeap(a.getColumnDimension(), b.getColumnDimension());
+    return a.solve(b);
+  }
+
+  @Override
+  Jama.Matrix inverse(Jama.Matrix a) {
+    MatrixMemory.checkHeap(a.getColumnDimension(), a.getRowDimension());
+    return a.inverse();
+  }
+
+  @Override
+  double det(Jama.Matrix a) {
+    return a.det();
+  }
+
+  @Override
+  int rank(Jama.Matrix a) {
+    return a.rank();
+  }
+
+  @Override
+  double cond(Jama.Matrix a) {
+    return a.cond();
+  }
+
+  @Override
+  Eigen eig(Jama.Matrix a) {
+    MatrixMemory.checkHeap(a.getRowDimension(), a.getColumnDimension());
+    Jama.EigenvalueDecomposition eig = a.eig();
+    return new Eigen(eig.getRealEigenvalues(), eig.getImagEigenvalues(), eig.getV());
+  }
+}
@@ -0,0 +1,96 @@
+package org.nlogo.extensions.matrix;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Disk-backed storage: the elements live in a memory-mapped file, row by
+ * row, and the operating system pages them in and out as they are used, so
+ * a matrix can be much bigger than the heap (or even than RAM).
+ *
+ * Each chunk of elements (see BufferStorage) is a separate mapping of the
+ * file.  The storage is either a temporary file, which is deleted as soon
+ * as it is mapped (see createTemporary), or the data of an existing .npy
+ * file, which is then updated in place by matrix:set and friends.
+ */
+final class MappedStorage extends BufferStorage {
+
+  private MappedStorage(FileChannel channel, long offset, int numRows, int numCols, ByteOrder order)
+      throws IOException {
+    super(numRows, numCols);
+    for (int k = 0; k < chunks.length; k++) {
+      long first = (long) k << CHUNK_SHIFT;
+      long length = chunkLength(k);
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, offset + first * 8, length * 8);
+      buffer.order(order);
+      chunks[k] = buffer.asDoubleBuffer();
+    }
+  }
+
+  /**
+   * Reports zeroed storage in a new temporary file.  The mappings stay
+   * valid after the file is closed and deleted, so the file is deleted
+   * right away: the space is then reclaimed as soon as the mappings are
+   * garbage collected, or when the JVM exits, whatever happens.  Some
+   * platforms don't allow a mapped file to be deleted; there it is deleted
+   * on exit instead.
+   */
+  static MappedStorage createTemporary(int numRows, int numCols) throws IOException {
+    Path file = Files.createTempFile("netlogo-matrix-", ".bin");
+    MappedStorage storage;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      storage = new MappedStorage(channel, 0, numRows, numCols, ByteOrder.LITTLE_ENDIAN);
+    } catch (IOException ex) {
+      Files.deleteIfExists(file);
+      throw ex;
+    }
+    try {
+      Files.delete(file);
+    } catch (IOException ex) {
+      file.toFile().deleteOnExit();
+    }
+    return storage;
+  }
+
+  /**
+   * Reports storage backed by the data of an existing .npy file, which
+   * must hold a float64 array in C order.  Changes to the matrix are
+   * written to the file.
+   */
+  static MappedStorage openNpy(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      Npy.Header header = Npy.readHeader(channel, path);
+      if (header.dtype != Npy.DType.FLOAT64 || header.fortranOrder) {
+        throw new IOException("Only float64 arrays in C order can be opened as disk-backed matrices. "
+            + "Use matrix:load-npy to load this file into memory instead.");
+      }
+      return new MappedStorage(channel, header.dataStart, header.numRows, header.numCols, header.order);
+    }
+  }
+
+  @Override
+  MatrixStorage create(int rows, int cols) {
+    try {
+      return createTemporary(rows, cols);
+    } catch (IOException ex) {
+      throw new UncheckedIOException("Could not create a disk-backed matrix: " + ex.getMessage(), ex);
+    }
+  }
+
+  @Override
+  String kind() {
+    return "disk";
+  }
+
+  @Override
+  boolean shareable() {
+    return false;
+  }
+
+}
@@ -19,12 +19,34 @@ import java.util.Arrays;
 public class MatrixExtension
     extends org.nlogo.api.DefaultClassManager {
 
-  // the WeakHashMap here may seem a bit odd, but it is apparently the easiest way to handle things
-  // for explanation, see the comment in ArrayExtension.java in the Array extension.
-  private static final java.util.WeakHashMap<LogoMatrix, Long> matrices = new java.util.WeakHashMap<LogoMatrix, Long>();
-  private static long next = 0;
-
-  private static class LogoMatrix
+  // Matrices are only weakly referenced by the registry; see MatrixRegistry.
+  // A matrix is registered (and given an id) only once it escapes into an
+  // exported world, so the many temporaries that primitives create never
+  // touch the registry at all.
+  //
+  // NetLogo makes one instance of this class per workspace, so the registry
+  // and its ids belong to the instance: several headless workspaces running
+  // in one JVM each export, import and clear their own matrices.  For the
+  // same reason LogoMatrix and the primitives are inner classes, so that a
+  // matrix always knows which workspace's registry it belongs to.
+  private final MatrixRegistry<LogoMatrix> matrices = new MatrixRegistry<LogoMatrix>();
+
+  // The ids of the matrices whose elements the last export-world wrote
+  // (see exportWorld()), or null before the first export; guarded by
+  // matrices.
+  private java.util.Set<Long> exported = null;
+
+  // Recycles the arrays of temporary matrices inside matrix:with-arena.
+  private final Arena arena = new Arena();
+
+  // This workspace's settings, such as the off-heap threshold; see
+  // WorkspaceState and addPrimitive().
+  private final WorkspaceState state = new WorkspaceState();
+
+  // LogoMatrix, getMatrixFromNumeric() and the list conversion helpers are
+  // package-private, rather than private, for the tests and the benchmarks
+  // (see the benchmarks project).
+  class LogoMatrix
       // new NetLogo data types defined by extensions must implement
       // this interface
       implements org.nlogo.core.ExtensionObject {
@@ -32,9 +54,15 @@ public class MatrixExtension
     //       the underlying array, it turned out to be simpler to
     //       store the matrix in a member field, rather than have LogoMatrix
     //       be a subclass of Jama.Matrix.
+    //       The elements are usually in a Jama.Matrix on the heap, but may
+    //       be kept elsewhere (on disk, for example); see MatrixStorage.
 
-    Jama.Matrix matrix = null;
-    private final long id;
+    MatrixStorage storage = null;
+    // this matrix's share of the storage, once it shares it with another
+    // matrix, given up when this matrix is garbage collected; see share()
+    private MatrixStorage.Hold hold = null;
+    // -1 until the matrix is first exported or imported; see id()
+    private long id = -1;
 
     /**
      * should be used only when doing importWorld, and
@@ -42,21 +70,98 @@ public class MatrixExtension
      * will be defined later.
      */
     LogoMatrix(long id) {
-      matrix = null;
+      storage = null;
       this.id = id;
-      matrices.put(this, id);
-      next = StrictMath.max(next, id + 1);
+      matrices.register(this, id);
+    }
+
+    LogoMatrix(Jama.Matrix matrixData) throws ExtensionException {
+      this(new HeapStorage(matrixData));
+    }
+
+    LogoMatrix(MatrixStorage storage) throws ExtensionException {
+      this.storage = storage;
+      track(storage);
+    }
+
+    /**
+     * Reports the elements as a Jama.Matrix, for primitives that need Jama's
+     * algorithms.  For heap storage this is the backing matrix itself, and
+     * must not be modified; for other storage it is a copy.
+     */
+    Jama.Matrix matrix() {
+      return storage.toJama();
+    }
+
+    /**
+     * Reports the storage, ready to be written to: matrix:copy shares the
+     * storage of the original matrix, so both are given their own copy of it
+     * on their first change after that, except for the last one left.
+     */
+    MatrixStorage writable() throws ExtensionException {
+      MatrixStorage result = storage.unshare();
+      if (result != storage) {
+        // unshare() has given up this matrix's share of the old storage
+        if (hold != null) {
+          hold.forget();
+          hold = null;
+        }
+        storage = result;
+        track(storage);
+      }
+      return storage;
+    }
+
+    /**
+     * Reports a new matrix with the same elements, sharing this matrix's
+     * storage when it can (see MatrixStorage.share()).  Each of the two gives
+     * up its share when it is garbage collected, so that once one of them
+     * is dropped the other changes the storage in place again.
+     */
+    LogoMatrix share() throws ExtensionException {
+      MatrixStorage shared = storage.share();
+      LogoMatrix result = new LogoMatrix(shared);
+      if (shared == storage) {
+        if (hold == null) {
+          hold = storage.hold(this);
+        }
+        result.hold = shared.hold(result);
+      }
+      return result;
+    }
+
+    int rows() {
+      return storage.rows();
+    }
+
+    int cols() {
+      return storage.cols();
     }
 
-    LogoMatrix(Jama.Matrix matrixData) {
-      matrix = matrixData;
-      matrices.put(this, next);
-      this.id = next;
-      next++;
+    /**
+     * Reports this matrix's id, registering it first if it has never been
+     * exported (or the registry has been cleared since), so that export-world
+     * can find it and references to it in agent variables line up with its data.
+     */
+    long id() {
+      synchronized (matrices) {
+        if (id == -1 || matrices.get(id) != this) {
+          id = matrices.nextId();
+          matrices.register(this, id);
+        }
+        return id;
+      }
     }
 
-    public void replaceData(double[][] dArray) {
-      matrix = new Jama.Matrix(dArray);
+    public void replaceData(double[][] dArray) throws ExtensionException {
+      if (hold != null) {
+        hold.release();
+        hold = null;
+      } else if (storage != null) {
+        storage.release();
+      }
+      storage = new HeapStorage(new Jama.Matrix(dArray));
+      track(storage);
     }
 
     /**
@@ -72,21 +177,48 @@ public class MatrixExtension
       return super.hashCode();
     }
 
+    /**
+     * Whether export-world must write this matrix's elements where it is
+     * referred to, rather than only its id.  The matrix section (see
+     * exportWorld()) holds the elements of every matrix registered by then,
+     * which includes all those referred to by agents and globals, but the
+     * sections of extensions written after it (a table holding a matrix,
+     * say) may still refer to matrices it didn't write.  The elements of
+     * those are written along with the reference.  Before the section of
+     * the next export, the same goes for matrices made since the last one,
+     * so their elements may be written twice, which import-world accepts.
+     */
+    private boolean needsElements() {
+      synchronized (matrices) {
+        long id = id();
+        if (exported == null || exported.contains(id)) {
+          return false;
+        }
+        exported.add(id);
+        return true;
+      }
+    }
+
     @Override
     public String dump(boolean readable, boolean exporting, boolean reference) {
       StringBuilder buf = new StringBuilder();
       if (exporting) {
-        buf.append(id);
+        if (reference && needsElements()) {
+          reference = false;
+        }
+        buf.append(id());
         if (!reference) {
           buf.append(":");
         }
       }
-      if (!(reference && exporting)) {
-        double[][] dArray = this.matrix.getArray();
+      if (exporting && !reference) {
+        // export-world uses the compact binary encoding; see BinaryDump
+        BinaryDump.append(buf, storage);
+      } else if (!exporting) {
         buf.append(" [ ");
-        for (double[] row : dArray) {
+        for (int i = 0; i < storage.rows(); i++) {
           buf.append("[");
-          for (double elem : row) {
+          for (double elem : storage.getRow(i)) {
             buf.append(" ");
             buf.append(org.nlogo.api.Dump.number(elem));
           }
@@ -115,23 +247,47 @@ public class MatrixExtension
       if (!(o instanceof LogoMatrix)) {
         return false;
       }
-      LogoMatrix otherMatrix = (LogoMatrix) o;
-      double[][] otherArray = otherMatrix.matrix.getArray();
-      return java.util.Arrays.deepEquals(matrix.getArray(), otherArray);
+      MatrixStorage other = ((LogoMatrix) o).storage;
+      if (other.rows() != storage.rows() || other.cols() != storage.cols()) {
+        return false;
+      }
+      for (int i = 0; i < storage.rows(); i++) {
+        if (!java.util.Arrays.equals(storage.getRow(i), other.getRow(i))) {
+          return false;
+        }
+      }
+      return true;
     }
   }
 
   @Override
   public void clearAll() {
     matrices.clear();
-    next = 0;
+    arena.clear();
+  }
+
+  // Each workspace using the extension gets its share of the worker
+  // threads; see Workers.
+  @Override
+  public void runOnce(org.nlogo.api.ExtensionManager em) throws ExtensionException {
+    Workers.workspaceLoaded();
+  }
+
+  @Override
+  public void unload(org.nlogo.api.ExtensionManager em) throws ExtensionException {
+    Workers.workspaceUnloaded();
   }
 
   @Override
   public StringBuilder exportWorld() {
     StringBuilder buffer = new StringBuilder();
-    for (LogoMatrix mat : matrices.keySet()) {
+    java.util.Set<Long> written = new java.util.HashSet<Long>();
+    for (LogoMatrix mat : matrices.values()) {
       buffer.append(org.nlogo.api.Dump.csv().encode(org.nlogo.api.Dump.extensionObject(mat, true, true, false)) + "\n");
+      written.add(mat.id());
+    }
+    synchronized (matrices) {
+      exported = written;
     }
     return buffer;
   }
@@ -152,93 +308,168 @@ public class MatrixExtension
   public org.nlogo.core.ExtensionObject readExtensionObject(org.nlogo.api.ExtensionManager reader,
                                                            String typeName, String value)
       throws CompilerException, ExtensionException {
-    String[] s = value.split(":");
-    long id = Long.parseLong(s[0]);
-    LogoMatrix mat = getOrCreateMatrixFromId(id);
-    if (s.length > 1) {
-      LogoList nestedL = (LogoList) reader.readFromString(s[1]);
-      double[][] newData = convertNestedLogoListToArray(nestedL);
-      mat.replaceData(newData);
+    if ("future".equals(typeName)) {
+      return MatrixFuture.imported(value);
+    }
+    // the imported matrices count against this workspace's memory limit
+    WorkspaceState previous = state.enter();
+    try {
+      String[] s = value.split(":");
+      long id = Long.parseLong(s[0]);
+      LogoMatrix mat = getOrCreateMatrixFromId(id);
+      if (s.length > 1) {
+        String data = s[1].trim();
+        if (BinaryDump.isBinary(data)) {
+          try {
+            mat.replaceData(BinaryDump.read(data));
+          } catch (IllegalArgumentException e) {
+            throw new ExtensionException(e.getMessage());
+          }
+        } else {
+          // worlds exported by older versions of the extension
+          LogoList nestedL = (LogoList) reader.readFromString(data);
+          mat.replaceData(convertNestedLogoListToArray(nestedL));
+        }
+      }
+      return mat;
+    } catch (MatrixMemory.LimitException ex) {
+      throw new ExtensionException(ex.getMessage());
+    } finally {
+      WorkspaceState.exit(previous);
     }
-    return mat;
   }
 
-  private static double[][] convertNestedLogoListToArray(LogoList nestedLogoList) throws ExtensionException {
+  // The conversion helpers below walk LogoLists by index and copy straight
+  // into (or out of) the backing double arrays in a single pass, so that no
+  // intermediate Jama.Matrix or transposed copy is built along the way.
+
+  static double[][] convertNestedLogoListToArray(LogoList nestedLogoList) throws ExtensionException {
     int numRows = nestedLogoList.size();
     if (numRows == 0) {
       throw new ExtensionException("input list was empty");
     }
+    double[][] array = new double[numRows][];
     int numCols = -1;
-    // find out the maximum column size of any of the rows,
-    // in case we have a "ragged" right edge, where some rows
-    // have more columns than others.
-    for (Object obj : nestedLogoList.toJava()) {
-      if (obj instanceof LogoList) {
-        LogoList rowList = (LogoList) obj;
-        if (numCols == -1) {
-          numCols = rowList.size();
-        } else if (numCols != rowList.size()) {
-          throw new ExtensionException("To convert a nested list into a matrix, all nested lists must be the same length -- e.g. [[1 2 3 4] [1 2 3]] is invalid, because row 1 has one more entry.");
-        }
-      } else {
+    for (int row = 0; row < numRows; row++) {
+      Object obj = nestedLogoList.get(row);
+      if (!(obj instanceof LogoList)) {
         throw new ExtensionException("To convert a nested list into a matrix, there must be exactly two levels of nesting -- e.g. [[1 2 3] [4 5 6]] creates a good 2x3 matrix.");
       }
+      LogoList rowList = (LogoList) obj;
+      int rowSize = rowList.size();
+      if (numCols == -1) {
+        numCols = rowSize;
+        checkMemory(numRows, numCols);
+      } else if (numCols != rowSize) {
+        throw new ExtensionException("To convert a nested list into a matrix, all nested lists must be the same length -- e.g. [[1 2 3 4] [1 2 3]] is invalid, because row 1 has one more entry.");
+      }
+      array[row] = copyNumbers(rowList, new double[rowSize]);
     }
     if (numCols == 0) {
       throw new ExtensionException("input list contained only empty lists");
     }
-    double[][] array = new double[numRows][numCols];
-    int row = 0;
-    for (Object obj : nestedLogoList.toJava()) {
-      int col = 0;
-      LogoList rowList = (LogoList) obj;
-      for (Object obj2 : rowList.toJava()) {
-        if (obj2 instanceof Number) {
-          array[row][col] = ((Number) obj2).doubleValue();
-          col++;
-        }
+    return array;
+  }
+
+  /**
+   * Same as convertNestedLogoListToArray, but each nested list is a
+   * column of the result, so the transposed array is filled directly.
+   */
+  static double[][] convertNestedColumnLogoListToArray(LogoList nestedLogoList) throws ExtensionException {
+    int numCols = nestedLogoList.size();
+    if (numCols == 0) {
+      throw new ExtensionException("input list was empty");
+    }
+    double[][] array = null;
+    int numRows = -1;
+    for (int col = 0; col < numCols; col++) {
+      Object obj = nestedLogoList.get(col);
+      if (!(obj instanceof LogoList)) {
+        throw new ExtensionException("To convert a nested list into a matrix, there must be exactly two levels of nesting -- e.g. [[1 2 3] [4 5 6]] creates a good 2x3 matrix.");
+      }
+      LogoList colList = (LogoList) obj;
+      int colSize = colList.size();
+      if (numRows == -1) {
+        numRows = colSize;
+        checkMemory(numRows, numCols);
+        array = new double[numRows][numCols];
+      } else if (numRows != colSize) {
+        throw new ExtensionException("To convert a nested list into a matrix, all nested lists must be the same length -- e.g. [[1 2 3 4] [1 2 3]] is invalid, because row 1 has one more entry.");
       }
-      // pad with zeros if we have a "ragged" right edge
-      for (; col < numCols; col++) {
-        array[row][col] = 0.0;
+      int row = 0;
+      for (int i = 0; i < colSize; i++) {
+        Object elem = colList.get(i);
+        if (elem instanceof Number) {
+          array[row][col] = ((Number) elem).doubleValue();
+          row++;
+        }
       }
-      row++;
     }
-
+    if (numRows == 0) {
+      throw new ExtensionException("input list contained only empty lists");
+    }
     return array;
   }
 
-  private static double[][] convertSimpleLogoListToArray(LogoList SimpleLogoList) throws ExtensionException {
-    int numRows = 1;
-    int numCols = SimpleLogoList.size();
-
-    double[][] array = new double[numRows][numCols];
-    int row = 0;
-    for (int i = 0; i < numCols; i++) {
-      array[row][i] = ((Number) SimpleLogoList.get(i)).doubleValue();
+  // Copies the numbers in the list into dest. Non-numeric entries are skipped
+  // and the remainder of dest is left as zeros, so a "ragged" right edge is
+  // padded, as it always has been.
+  private static double[] copyNumbers(LogoList list, double[] dest) {
+    int size = list.size();
+    int col = 0;
+    for (int i = 0; i < size; i++) {
+      Object obj = list.get(i);
+      if (obj instanceof Number) {
+        dest[col] = ((Number) obj).doubleValue();
+        col++;
+      }
     }
+    return dest;
+  }
 
-    return array;
+  private static double[] convertSimpleLogoListToVector(LogoList simpleLogoList) throws ExtensionException {
+    int size = simpleLogoList.size();
+    double[] vector = new double[size];
+    for (int i = 0; i < size; i++) {
+      Object obj = simpleLogoList.get(i);
+      if (!(obj instanceof Number)) {
+        throw new ExtensionException("Expected a list of numbers, but item " + i + " is "
+            + org.nlogo.api.Dump.logoObject(obj) + ".");
+      }
+      vector[i] = ((Number) obj).doubleValue();
+    }
+    return vector;
   }
 
-  private static LogoList convertArrayToNestedLogoList(double[][] dArray) {
+  static LogoList convertArrayToNestedLogoList(double[][] dArray) {
     LogoListBuilder lst = new LogoListBuilder();
     for (double[] row : dArray) {
-      LogoListBuilder rowLst = new LogoListBuilder();
-      for (double elem : row) {
-        rowLst.add(Double.valueOf(elem));
-      }
-      lst.add(rowLst.toLogoList());
+      lst.add(convertRowToLogoList(row));
     }
     return lst.toLogoList();
   }
 
-  private static LogoList convertArrayToSimpleLogoList(double[][] dArray) {
+  static LogoList convertArrayToNestedColumnLogoList(double[][] dArray) {
+    LogoListBuilder lst = new LogoListBuilder();
+    int numCols = dArray.length == 0 ? 0 : dArray[0].length;
+    for (int col = 0; col < numCols; col++) {
+      lst.add(convertColumnToLogoList(dArray, col));
+    }
+    return lst.toLogoList();
+  }
+
+  private static LogoList convertRowToLogoList(double[] row) {
+    LogoListBuilder lst = new LogoListBuilder();
+    for (double elem : row) {
+      lst.add(Double.valueOf(elem));
+    }
+    return lst.toLogoList();
+  }
+
+  private static LogoList convertColumnToLogoList(double[][] dArray, int col) {
     LogoListBuilder lst = new LogoListBuilder();
     for (double[] row : dArray) {
-      for (double elem : row) {
-        lst.add(Double.valueOf(elem));
-      }
+      lst.add(Double.valueOf(row[col]));
     }
     return lst.toLogoList();
   }
@@ -251,12 +482,13 @@ public class MatrixExtension
    * @return
    */
   private LogoMatrix getOrCreateMatrixFromId(long id) {
-    for (LogoMatrix mat : matrices.keySet()) {
-      if (mat.id == id) {
-        return mat;
+    synchronized (matrices) {
+      LogoMatrix mat = matrices.get(id);
+      if (mat == null) {
+        mat = new LogoMatrix(id);
       }
+      return mat;
     }
-    return new LogoMatrix(id);
   }
 
   ///
@@ -264,97 +496,199 @@ public class MatrixExtension
   public void load(org.nlogo.api.PrimitiveManager primManager) {
 
     // matrix:get mat rowI colJ  =>  value at location I,J
-    primManager.addPrimitive("get", new Get());
+    addPrimitive(primManager, "get", new Get());
     // matrix:set mat rowI colJ newValue
-    primManager.addPrimitive("set", new Set());
+    addPrimitive(primManager, "set", new Set());
     // matrix:set-row mat rowI simpleList
-    primManager.addPrimitive("set-row", new SetRow());
+    addPrimitive(primManager, "set-row", new SetRow());
     // matrix:swap-rows mat row1 row2
-    primManager.addPrimitive("swap-rows", new SwapRows());
+    addPrimitive(primManager, "swap-rows", new SwapRows());
     // matrix:set-column mat colI simpleList
-    primManager.addPrimitive("set-column", new SetColumn());
+    addPrimitive(primManager, "set-column", new SetColumn());
     // matrix:swap-columns mat col1 col2
-    primManager.addPrimitive("swap-columns", new SwapColumns());
+    addPrimitive(primManager, "swap-columns", new SwapColumns());
     // matrix:set-and-report mat rowI colJ newValue => matrix object
-    primManager.addPrimitive("set-and-report", new SetAndReport());
+    addPrimitive(primManager, "set-and-report", new SetAndReport());
     // (matrix:dimensions mat) => [numRows,numCols]
-    primManager.addPrimitive("dimensions", new Dimensions());
+    addPrimitive(primManager, "dimensions", new Dimensions());
     // matrix:to-row-list mat => [[a11 a12 ...] [a21 a22 ...] [a31 a32 ...] ...]
-    primManager.addPrimitive("to-row-list", new ToRowList());
+    addPrimitive(primManager, "to-row-list", new ToRowList());
     // matrix:from-row-list nestedList => matrix object
-    primManager.addPrimitive("from-row-list", new FromRowList());
+    addPrimitive(primManager, "from-row-list", new FromRowList());
     // matrix:to-column-list mat => [[a11 a21 ...] [a12 a22 ...] [a13 a23 ...] ...]
-    primManager.addPrimitive("to-column-list", new ToColumnList());
+    addPrimitive(primManager, "to-column-list", new ToColumnList());
     // matrix:from-column-list nestedList => matrix object
-    primManager.addPrimitive("from-column-list", new FromColumnList());
+    addPrimitive(primManager, "from-column-list", new FromColumnList());
 
     // matrix:make-constant nRows nCols dValue => matrix object
-    primManager.addPrimitive("make-constant", new MakeConstant());
+    addPrimitive(primManager, "make-constant", new MakeConstant());
     // matrix:make-identity nSize => matrix object
-    primManager.addPrimitive("make-identity", new MakeIdentity());
+    addPrimitive(primManager, "make-identity", new MakeIdentity());
     // matrix:copy mat => matrix object
-    primManager.addPrimitive("copy", new Copy());
+    addPrimitive(primManager, "copy", new Copy());
 
     // matrix:pretty-print-text matrix => string containing formatted text
-    primManager.addPrimitive("pretty-print-text", new PrettyPrintText());
+    addPrimitive(primManager, "pretty-print-text", new PrettyPrintText());
 
     // matrix:times-scalar mat factor => matrix object
-    primManager.addPrimitive("times-scalar", new TimesScalar());
-    primManager.addPrimitive("times", new VariadicOperator(timesOp, "matrix:times"));
-    primManager.addPrimitive("*", new InfixOperator(timesOp, "matrix:*", InfixOperator.TIMES_PRECEDENCE));
-    primManager.addPrimitive("times-element-wise", new VariadicOperator(timesElementsOp, "matrix:times-element-wise"));
-    primManager.addPrimitive("plus", new VariadicOperator(plusOp, "matrix:plus"));
-    primManager.addPrimitive("+", new InfixOperator(plusOp, "matrix:+", InfixOperator.PLUS_PRECEDENCE));
-    primManager.addPrimitive("minus", new VariadicOperator(minusOp, "matrix:minus"));
-    primManager.addPrimitive("-", new InfixOperator(minusOp, "matrix:-", InfixOperator.PLUS_PRECEDENCE));
+    addPrimitive(primManager, "times-scalar", new TimesScalar());
+    addPrimitive(primManager, "times", new VariadicOperator(timesOp, "matrix:times"));
+    addPrimitive(primManager, "*", new InfixOperator(timesOp, "matrix:*", TIMES_PRECEDENCE));
+    addPrimitive(primManager, "times-element-wise", new VariadicOperator(timesElementsOp, "matrix:times-element-wise"));
+    addPrimitive(primManager, "plus", new VariadicOperator(plusOp, "matrix:plus"));
+    addPrimitive(primManager, "+", new InfixOperator(plusOp, "matrix:+", PLUS_PRECEDENCE));
+    addPrimitive(primManager, "minus", new VariadicOperator(minusOp, "matrix:minus"));
+    addPrimitive(primManager, "-", new InfixOperator(minusOp, "matrix:-", PLUS_PRECEDENCE));
     // matrix:map task mat => matrix object
-    primManager.addPrimitive("map", new MapElements());
+    addPrimitive(primManager, "map", new MapElements());
     // matrix:plus-scalar mat value => matrix object
-    primManager.addPrimitive("plus-scalar", new PlusScalar());
+    addPrimitive(primManager, "plus-scalar", new PlusScalar());
     // matrix:plus mat1 mat2 => matrix object
     // matrix:det mat => number
-    primManager.addPrimitive("det", new Det());
+    addPrimitive(primManager, "det", new Det());
     // matrix:rank mat => number
-    primManager.addPrimitive("rank", new Rank());
+    addPrimitive(primManager, "rank", new Rank());
     // matrix:cond mat => number
-    primManager.addPrimitive("cond", new Cond());
+    addPrimitive(primManager, "cond", new Cond());
     // matrix:trace mat => number
-    primManager.addPrimitive("trace", new Trace());
+    addPrimitive(primManager, "trace", new Trace());
 
     // matrix:inverse mat => matrix object
-    primManager.addPrimitive("inverse", new Inverse());
+    addPrimitive(primManager, "inverse", new Inverse());
     // matrix:transpose mat => matrix object
-    primManager.addPrimitive("transpose", new Transpose());
+    addPrimitive(primManager, "transpose", new Transpose());
     // matrix:submatrix mat r1 c1 r2 c2 => matrix object
-    primManager.addPrimitive("submatrix", new Submatrix());
+    addPrimitive(primManager, "submatrix", new Submatrix());
+    // matrix:row-view mat r => 1 x n matrix object
+    addPrimitive(primManager, "row-view", new RowView());
+    // matrix:column-view mat c => n x 1 matrix object
+    addPrimitive(primManager, "column-view", new ColumnView());
+    // matrix:materialize mat => matrix object that shares no storage
+    addPrimitive(primManager, "materialize", new Materialize());
     // matrix:get-row mat r => simple (unnested) list of row elements
-    primManager.addPrimitive("get-row", new GetRow());
+    addPrimitive(primManager, "get-row", new GetRow());
     // matrix:get-column mat c => simple (unnested) list of column elements
-    primManager.addPrimitive("get-column", new GetColumn());
+    addPrimitive(primManager, "get-column", new GetColumn());
+
+    // matrix:from-vector-list simpleList => n x 1 vector
+    addPrimitive(primManager, "from-vector-list", new FromVectorList());
+    // matrix:to-vector-list vec => simple list of the elements of a vector
+    addPrimitive(primManager, "to-vector-list", new ToVectorList());
+    // matrix:dot vec1 vec2 => number
+    addPrimitive(primManager, "dot", new Dot());
+    // matrix:axpy alpha vecX vecY => alpha * vecX + vecY
+    addPrimitive(primManager, "axpy", new Axpy());
+    // matrix:norm mat => Euclidean norm of the elements
+    addPrimitive(primManager, "norm", new Norm());
 
     // matrix:real-eigenvalues mat => list of numbers
-    primManager.addPrimitive("real-eigenvalues", new RealEigenvalues());
+    addPrimitive(primManager, "real-eigenvalues", new RealEigenvalues());
     // matrix:imaginary-eigenvalues mat => list of numbers
-    primManager.addPrimitive("imaginary-eigenvalues", new ImaginaryEigenvalues());
+    addPrimitive(primManager, "imaginary-eigenvalues", new ImaginaryEigenvalues());
     // matrix:eigenvectors mat => matrix of eigenvectors
-    primManager.addPrimitive("eigenvectors", new Eigenvectors());
+    addPrimitive(primManager, "eigenvectors", new Eigenvectors());
 
     // matrix:solve mat1 mat2 => matrix object
     //  (solve for M such that  mat1 * M = mat2)
     // gives least-squares solution, if no perfect solution exists.
-    primManager.addPrimitive("solve", new Solve());
+    addPrimitive(primManager, "solve", new Solve());
+
+    // matrix:batch-times mats1 mats2 => list of the products, pair by pair
+    //  (either input may be a single matrix, used with every matrix of the other)
+    addPrimitive(primManager, "batch-times", new BatchTimes());
+    // matrix:batch-det mats => list of the determinants
+    addPrimitive(primManager, "batch-det", new BatchDet());
+    // matrix:batch-inverse mats => list of the inverses
+    addPrimitive(primManager, "batch-inverse", new BatchInverse());
+    // matrix:batch-solve mats1 mats2 => list of the matrix:solve results, pair by pair
+    addPrimitive(primManager, "batch-solve", new BatchSolve());
+
+    // matrix:convolve mat kernel => matrix object, same dimensions as mat
+    // (matrix:convolve mat kernel boundary) => boundary is "zero", "wrap" or "clamp"
+    addPrimitive(primManager, "convolve", new Convolve());
 
     // matrix:linear-forecast simpleList => list of [forecast, constant, slope, R^2]
-    primManager.addPrimitive("forecast-linear-growth", new ForecastLinearTrend());
+    addPrimitive(primManager, "forecast-linear-growth", new ForecastLinearTrend());
 
     // matrix:compound-growh-forecast simpleList => list of [forecast, constant, (1+rate), R^2]
-    primManager.addPrimitive("forecast-compound-growth", new ForecastCompoundTrend());
+    addPrimitive(primManager, "forecast-compound-growth", new ForecastCompoundTrend());
 
     // matrix:exponential-forecast simpleList => list of [forecast, constant, rate, R^2]
-    primManager.addPrimitive("forecast-continuous-growth", new ForecastContinuousTrend());
+    addPrimitive(primManager, "forecast-continuous-growth", new ForecastContinuousTrend());
 
     // matrix:regress nestedList => nestedList of [[a(0) ...a(n)] [R^2 totalSumSquares redidualSumSquares]]
-    primManager.addPrimitive("regress", new Regress());
+    addPrimitive(primManager, "regress", new Regress());
+
+    // matrix:from-patches variableName => matrix object (one row per pycor, one column per pxcor)
+    // (matrix:from-patches variableName mat) => mat, refilled from the patches
+    addPrimitive(primManager, "from-patches", new FromPatches());
+    // matrix:to-patches mat variableName
+    addPrimitive(primManager, "to-patches", new ToPatches());
+    // matrix:from-agentset agentset variableNames => matrix object (one row per agent, one column per variable)
+    addPrimitive(primManager, "from-agentset", new FromAgentSet());
+    // matrix:to-agentset mat agentset variableNames
+    addPrimitive(primManager, "to-agentset", new ToAgentSet());
+    // matrix:from-links linkset => adjacency matrix indexed by who number
+    // (matrix:from-links linkset weightVariable nodes) => weighted adjacency matrix indexed by position in nodes
+    addPrimitive(primManager, "from-links", new FromLinks());
+
+    // matrix:save-npy mat filename
+    // (matrix:save-npy mat filename "float32") => stored in single precision
+    addPrimitive(primManager, "save-npy", new SaveNpy());
+    // matrix:load-npy filename => matrix object
+    addPrimitive(primManager, "load-npy", new LoadNpy());
+    // matrix:read-csv filename => matrix object (one row per line)
+    // (matrix:read-csv filename delimiter)
+    addPrimitive(primManager, "read-csv", new ReadCsv());
+    // matrix:write-csv mat filename
+    // (matrix:write-csv mat filename delimiter)
+    addPrimitive(primManager, "write-csv", new WriteCsv());
+    // matrix:read-matrix-market filename => matrix object
+    addPrimitive(primManager, "read-matrix-market", new ReadMatrixMarket());
+    // matrix:write-matrix-market mat filename
+    addPrimitive(primManager, "write-matrix-market", new WriteMatrixMarket());
+
+    // matrix:make-disk-backed rows cols => matrix object of zeros, kept in a temporary file
+    addPrimitive(primManager, "make-disk-backed", new MakeDiskBacked());
+    // matrix:open-npy filename => matrix object backed by the file; changes are written to it
+    addPrimitive(primManager, "open-npy", new OpenNpy());
+    // matrix:storage mat => "heap" or "disk"
+    addPrimitive(primManager, "storage", new Storage());
+    // matrix:set-off-heap-threshold elements (0 to keep everything on the heap)
+    addPrimitive(primManager, "set-off-heap-threshold", new SetOffHeapThreshold());
+    // matrix:set-off-heap-limit megabytes
+    addPrimitive(primManager, "set-off-heap-limit", new SetOffHeapLimit());
+    // matrix:memory-usage => list of [key value] pairs for the live matrices
+    addPrimitive(primManager, "memory-usage", new MemoryUsage());
+    // matrix:set-memory-limit megabytes (0 for no limit)
+    addPrimitive(primManager, "set-memory-limit", new SetMemoryLimit());
+    // matrix:set-backend name ("jama" or "blocked")
+    addPrimitive(primManager, "set-backend", new SetBackend());
+    // matrix:backend => name of the engine in use
+    addPrimitive(primManager, "backend", new BackendName());
+    // matrix:set-threads n (0 for one per processor)
+    addPrimitive(primManager, "set-threads", new SetThreads());
+    // matrix:threads => size of the worker pool
+    addPrimitive(primManager, "threads", new Threads());
+
+    // matrix:async-solve A C => future of the matrix:solve A C
+    addPrimitive(primManager, "async-solve", new AsyncSolve());
+    // matrix:async-inverse mat => future of the matrix:inverse mat
+    addPrimitive(primManager, "async-inverse", new AsyncInverse());
+    // matrix:async-eigen mat => future of [real-eigenvalues imaginary-eigenvalues eigenvectors]
+    addPrimitive(primManager, "async-eigen", new AsyncEigen());
+    // matrix:ready? future => true once the result is in
+    addPrimitive(primManager, "ready?", new Ready());
+    // matrix:await future => the result, once it is in
+    addPrimitive(primManager, "await", new Await());
+
+    // matrix:with-arena [ commands ] -- reuses the arrays of temporary matrices
+    addPrimitive(primManager, "with-arena", new WithArena());
+
+    // matrix:stats => list of [primitive calls total-ms p50-ms p90-ms p99-ms max-ms elements bytes]
+    primManager.addPrimitive("stats", new StatsReport());
+    // matrix:reset-stats
+    primManager.addPrimitive("reset-stats", new ResetStats());
 
     //Note: The Jama library that we're using can do more than just the functionality
     //      that we've exposed here.  (e.g. LU, Cholesky, SV decomposition, determinants)
@@ -362,6 +696,248 @@ public class MatrixExtension
 
   }
 
+  // Counts the storage for matrix:memory-usage, failing when that takes the
+  // memory used by matrices above the limit; see MatrixMemory.
+  private static void track(MatrixStorage storage) throws ExtensionException {
+    try {
+      MatrixMemory.current().track(storage);
+    } catch (MatrixMemory.LimitException ex) {
+      throw new ExtensionException(ex.getMessage());
+    }
+  }
+
+  // Fails before allocating a new heap matrix that would go over the limit.
+  private static void checkMemory(int numRows, int numCols) throws ExtensionException {
+    try {
+      MatrixMemory.checkHeap(numRows, numCols);
+    } catch (MatrixMemory.LimitException ex) {
+      throw new ExtensionException(ex.getMessage());
+    }
+  }
+
+  // A memory limit hit deep inside a primitive (see MatrixMemory.check()),
+  // as the primitive's own error, whether or not the primitive wrapped it.
+  private static ExtensionException limitFailure(Exception ex) {
+    Throwable cause = ex;
+    while (cause != null && !(cause instanceof MatrixMemory.LimitException)) {
+      cause = cause.getCause();
+    }
+    return cause == null ? null : new ExtensionException(cause.getMessage());
+  }
+
+  // Every primitive is wrapped so that it runs with this workspace's
+  // settings (see WorkspaceState), and with instrumentation on (see Stats),
+  // so that its calls are recorded too.
+  private void addPrimitive(org.nlogo.api.PrimitiveManager primManager, String name, org.nlogo.api.Primitive prim) {
+    if (prim instanceof Reporter) {
+      Reporter reporter = Stats.ENABLED ? new InstrumentedReporter(name, (Reporter) prim) : (Reporter) prim;
+      prim = new WorkspaceReporter(state, reporter);
+    } else {
+      Command command = Stats.ENABLED ? new InstrumentedCommand(name, (Command) prim) : (Command) prim;
+      prim = new WorkspaceCommand(state, command);
+    }
+    primManager.addPrimitive(name, prim);
+  }
+
+  private static class WorkspaceReporter implements Reporter {
+    private final WorkspaceState state;
+    private final Reporter reporter;
+
+    WorkspaceReporter(WorkspaceState state, Reporter reporter) {
+      this.state = state;
+      this.reporter = reporter;
+    }
+
+    @Override
+    public Syntax getSyntax() {
+      return reporter.getSyntax();
+    }
+
+    @Override
+    public Object report(Argument args[], Context context) throws ExtensionException, LogoException {
+      WorkspaceState previous = state.enter();
+      try {
+        return reporter.report(args, context);
+      } catch (MatrixMemory.LimitException | ExtensionException ex) {
+        ExtensionException failure = limitFailure(ex);
+        if (failure == null) {
+          throw ex;
+        }
+        throw failure;
+      } finally {
+        WorkspaceState.exit(previous);
+      }
+    }
+  }
+
+  private static class WorkspaceCommand implements Command {
+    private final WorkspaceState state;
+    private final Command command;
+
+    WorkspaceCommand(WorkspaceState state, Command command) {
+      this.state = state;
+      this.command = command;
+    }
+
+    @Override
+    public Syntax getSyntax() {
+      return command.getSyntax();
+    }
+
+    @Override
+    public void perform(Argument args[], Context context) throws ExtensionException, LogoException {
+      WorkspaceState previous = state.enter();
+      try {
+        command.perform(args, context);
+      } catch (MatrixMemory.LimitException | ExtensionException ex) {
+        ExtensionException failure = limitFailure(ex);
+        if (failure == null) {
+          throw ex;
+        }
+        throw failure;
+      } finally {
+        WorkspaceState.exit(previous);
+      }
+    }
+  }
+
+  // The types of a primitive's arguments, the last one repeated for
+  // repeatable arguments.
+  private static int[] argumentTypes(Syntax syntax) {
+    scala.collection.Iterator<Object> right = syntax.right().iterator();
+    java.util.List<Integer> types = new java.util.ArrayList<Integer>();
+    while (right.hasNext()) {
+      types.add((Integer) right.next());
+    }
+    int[] result = new int[types.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = types.get(i);
+    }
+    return result;
+  }
+
+  // The elements of the matrices among the arguments and the result.  Only
+  // arguments that take any value, as matrices do, are read: a primitive has
+  // read those by the time it returns, and reading an argument again reports
+  // the value already read, whereas reading a block or reporter argument
+  // could run it.
+  private static long elementsOf(int[] types, Argument args[], Object result) {
+    long elements = result instanceof LogoMatrix ? ((LogoMatrix) result).storage.size() : 0;
+    for (int i = 0; i < args.length; i++) {
+      int type = types.length == 0 ? 0 : types[Math.min(i, types.length - 1)];
+      if ((type & Syntax.WildcardType()) != Syntax.WildcardType()) {
+        continue;
+      }
+      Argument arg = args[i];
+      try {
+        Object value = arg.get();
+        if (value instanceof LogoMatrix) {
+          elements += ((LogoMatrix) value).storage.size();
+        }
+      } catch (ExtensionException | LogoException ex) {
+        // not a value
+      }
+    }
+    return elements;
+  }
+
+  private static class InstrumentedReporter implements Reporter {
+    private final String name;
+    private final Reporter reporter;
+    private final int[] types;
+
+    InstrumentedReporter(String name, Reporter reporter) {
+      this.name = name;
+      this.reporter = reporter;
+      this.types = argumentTypes(reporter.getSyntax());
+    }
+
+    @Override
+    public Syntax getSyntax() {
+      return reporter.getSyntax();
+    }
+
+    @Override
+    public Object report(Argument args[], Context context) throws ExtensionException, LogoException {
+      long bytes = Stats.allocatedBytes();
+      long start = System.nanoTime();
+      Object result = reporter.report(args, context);
+      long nanos = System.nanoTime() - start;
+      bytes = bytes < 0 ? 0 : Stats.allocatedBytes() - bytes;
+      Stats.record(name, nanos, elementsOf(types, args, result), bytes);
+      return result;
+    }
+  }
+
+  private static class InstrumentedCommand implements Command {
+    private final String name;
+    private final Command command;
+    private final int[] types;
+
+    InstrumentedCommand(String name, Command command) {
+      this.name = name;
+      this.command = command;
+      this.types = argumentTypes(command.getSyntax());
+    }
+
+    @Override
+    public Syntax getSyntax() {
+      return command.getSyntax();
+    }
+
+    @Override
+    public void perform(Argument args[], Context context) throws ExtensionException, LogoException {
+      long bytes = Stats.allocatedBytes();
+      long start = System.nanoTime();
+      command.perform(args, context);
+      long nanos = System.nanoTime() - start;
+      bytes = bytes < 0 ? 0 : Stats.allocatedBytes() - bytes;
+      Stats.record(name, nanos, elementsOf(types, args, null), bytes);
+    }
+  }
+
+  public class StatsReport implements Reporter {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.reporterSyntax(new int[]{}, Syntax.ListType());
+    }
+
+    @Override
+    public Object report(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      LogoListBuilder result = new LogoListBuilder();
+      for (PrimitiveSummary summary : Stats.summaries()) {
+        LogoListBuilder entry = new LogoListBuilder();
+        entry.add("matrix:" + summary.getPrimitive());
+        entry.add(Double.valueOf(summary.getCalls()));
+        entry.add(Double.valueOf(summary.getTotalNanos() / 1e6));
+        entry.add(Double.valueOf(summary.getP50Nanos() / 1e6));
+        entry.add(Double.valueOf(summary.getP90Nanos() / 1e6));
+        entry.add(Double.valueOf(summary.getP99Nanos() / 1e6));
+        entry.add(Double.valueOf(summary.getMaxNanos() / 1e6));
+        entry.add(Double.valueOf(summary.getElements()));
+        entry.add(Double.valueOf(summary.getAllocatedBytes()));
+        result.add(entry.toLogoList());
+      }
+      return result.toLogoList();
+    }
+  }
+
+  public class ResetStats implements Command {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.commandSyntax(new int[]{});
+    }
+
+    @Override
+    public void perform(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      Stats.reset();
+    }
+  }
+
   ///
   // Convenience method, to extract a Matrix object from an Argument.
   // It serves a similar purpose to args[x].getString(), or args[x].getList().
@@ -375,6 +951,16 @@ public class MatrixExtension
     return (LogoMatrix) obj;
   }
 
+  private static MatrixFuture getFutureFromArgument(Argument arg)
+      throws ExtensionException, LogoException {
+    Object obj = arg.get();
+    if (!(obj instanceof MatrixFuture)) {
+      throw new org.nlogo.api.ExtensionException("not a matrix future: "
+          + org.nlogo.api.Dump.logoObject(obj));
+    }
+    return (MatrixFuture) obj;
+  }
+
   private static Object[] getNumericsFromArguments(Argument[] args) throws ExtensionException, LogoException {
     Object[] objs = new Object[args.length];
     for (int i = 0; i < args.length; i++) {
@@ -388,21 +974,25 @@ public class MatrixExtension
     if (obj instanceof Double) {
       return obj;
     } else if (obj instanceof LogoMatrix) {
-      return ((LogoMatrix) obj).matrix;
+      // matrices kept outside of the heap are handled by Operator a row at a time
+      MatrixStorage storage = ((LogoMatrix) obj).storage;
+      return storage instanceof HeapStorage ? ((HeapStorage) storage).matrix : storage;
     } else {
       throw new ExtensionException("Inputs must be matrices or numbers but found a " + obj.getClass());
     }
   }
 
-  private static LogoMatrix getMatrixFromNumeric(Object obj, String message) throws ExtensionException {
+  LogoMatrix getMatrixFromNumeric(Object obj, String message) throws ExtensionException {
     if (obj instanceof Matrix) {
       return new LogoMatrix((Matrix) obj);
+    } else if (obj instanceof MatrixStorage) {
+      return new LogoMatrix((MatrixStorage) obj);
     } else {
       throw new ExtensionException(message);
     }
   }
 
-  public static class Get implements Reporter {
+  public class Get implements Reporter {
 
     @Override
     public Syntax getSyntax() {
@@ -419,16 +1009,16 @@ public class MatrixExtension
       int rowIndex = args[1].getIntValue();
       int colIndex = args[2].getIntValue();
 
-      if (rowIndex < 0 || rowIndex >= mat.matrix.getRowDimension()
-          || colIndex < 0 || colIndex >= mat.matrix.getColumnDimension()) {
+      if (rowIndex < 0 || rowIndex >= mat.rows()
+          || colIndex < 0 || colIndex >= mat.cols()) {
         throw new org.nlogo.api.ExtensionException("(" + rowIndex + "," + colIndex + ") are not valid indices for a matrix with dimensions  "
-            + mat.matrix.getRowDimension() + "x" + mat.matrix.getColumnDimension());
+            + mat.rows() + "x" + mat.cols());
       }
-      return mat.matrix.get(rowIndex, colIndex);
+      return mat.storage.get(rowIndex, colIndex);
     }
   }
 
-  public static class Set implements Command {
+  public class Set implements Command {
 
     @Override
     public Syntax getSyntax() {
@@ -444,16 +1034,16 @@ public class MatrixExtension
       LogoMatrix mat = getMatrixFromArgument(args[0]);
       int rowIndex = args[1].getIntValue();
       int colIndex = args[2].getIntValue();
-      if (rowIndex < 0 || rowIndex >= mat.matrix.getRowDimension()
-          || colIndex < 0 || colIndex >= mat.matrix.getColumnDimension()) {
+      if (rowIndex < 0 || rowIndex >= mat.rows()
+          || colIndex < 0 || colIndex >= mat.cols()) {
         throw new org.nlogo.api.ExtensionException("(" + rowIndex + "," + colIndex + ") are not valid indices for a matrix with dimensions  "
-            + mat.matrix.getRowDimension() + "x" + mat.matrix.getColumnDimension());
+            + mat.rows() + "x" + mat.cols());
       }
-      mat.matrix.set(rowIndex, colIndex, args[3].getDoubleValue());
+      mat.writable().set(rowIndex, colIndex, args[3].getDoubleValue());
     }
   }
 
-  public static class SetRow implements Command {
+  public class SetRow implements Command {
 
     @Override
     public Syntax getSyntax() {
@@ -467,22 +1057,22 @@ public class MatrixExtension
         throws ExtensionException, LogoException {
       LogoMatrix mat = getMatrixFromArgument(args[0]);
       int rowIndex = args[1].getIntValue();
-      Jama.Matrix newRow = new Jama.Matrix(convertSimpleLogoListToArray(args[2].getList()));
-      int newRowLength = newRow.getColumnDimension();
-      if (rowIndex < 0 || rowIndex >= mat.matrix.getRowDimension()) {
+      double[] newRow = convertSimpleLogoListToVector(args[2].getList());
+      int newRowLength = newRow.length;
+      if (rowIndex < 0 || rowIndex >= mat.rows()) {
         throw new org.nlogo.api.ExtensionException(rowIndex + " is not valid row index for a matrix with dimensions "
-            + mat.matrix.getRowDimension() + "x" + mat.matrix.getColumnDimension());
+            + mat.rows() + "x" + mat.cols());
       }
-      if (newRowLength != mat.matrix.getColumnDimension()) {
+      if (newRowLength != mat.cols()) {
         throw new org.nlogo.api.ExtensionException("The length of the given list (" + newRowLength +
-            ") is different from the length of the matrix row (" + mat.matrix.getColumnDimension() + ").");
+            ") is different from the length of the matrix row (" + mat.cols() + ").");
       }
 
-      mat.matrix.setMatrix(rowIndex, rowIndex, 0, newRowLength - 1, newRow);
+      mat.writable().setRow(rowIndex, 0, newRow, 0, newRowLength);
     }
   }
 
-  public static class SwapRows implements Command {
+  public class SwapRows implements Command {
 
     @Override
     public Syntax getSyntax() {
@@ -497,8 +1087,8 @@ public class MatrixExtension
       LogoMatrix mat = getMatrixFromArgument(args[0]);
       int rowIndex1 = args[1].getIntValue();
       int rowIndex2 = args[2].getIntValue();
-      int numCols = mat.matrix.getColumnDimension();
-      int numRows = mat.matrix.getRowDimension();
+      int numCols = mat.cols();
+      int numRows = mat.rows();
       if (rowIndex1 < 0 || rowIndex1 >= numRows) {
         throw new org.nlogo.api.ExtensionException("The first row index, " + rowIndex1
             + ", is not valid for a " + numRows + " x " + numCols + " matrix.");
@@ -508,16 +1098,11 @@ public class MatrixExtension
             + ", is not valid for a " + numRows + " x " + numCols + " matrix.");
       }
 
-      // Save the row given by rowIndex1 in row1; overwrite that row with the row given by
-      // rowIndex2, then overwrite the row given by rowIndex2 with the saved row, row1.
-      Jama.Matrix row1 = mat.matrix.getMatrix(rowIndex1, rowIndex1, 0, numCols - 1);
-      mat.matrix.setMatrix(rowIndex1, rowIndex1, 0, numCols - 1,
-          mat.matrix.getMatrix(rowIndex2, rowIndex2, 0, numCols - 1));
-      mat.matrix.setMatrix(rowIndex2, rowIndex2, 0, numCols - 1, row1);
+      mat.writable().swapRows(rowIndex1, rowIndex2);
     }
   }
 
-  public static class SetColumn implements Command {
+  public class SetColumn implements Command {
 
     @Override
     public Syntax getSyntax() {
@@ -531,22 +1116,25 @@ public class MatrixExtension
         throws ExtensionException, LogoException {
       LogoMatrix mat = getMatrixFromArgument(args[0]);
       int colIndex = args[1].getIntValue();
-      Jama.Matrix newCol = new Jama.Matrix(convertSimpleLogoListToArray(args[2].getList())).transpose();
-      int newColLength = newCol.getRowDimension();
-      if (colIndex < 0 || colIndex >= mat.matrix.getColumnDimension()) {
+      double[] newCol = convertSimpleLogoListToVector(args[2].getList());
+      int newColLength = newCol.length;
+      if (colIndex < 0 || colIndex >= mat.cols()) {
         throw new org.nlogo.api.ExtensionException(colIndex + " is not valid column index for a matrix with dimensions "
-            + mat.matrix.getRowDimension() + "x" + mat.matrix.getColumnDimension());
+            + mat.rows() + "x" + mat.cols());
       }
-      if (newColLength != mat.matrix.getRowDimension()) {
+      if (newColLength != mat.rows()) {
         throw new org.nlogo.api.ExtensionException("The length of the given list (" + newColLength +
-            ") is different from the length of the matrix column (" + mat.matrix.getRowDimension() + ").");
+            ") is different from the length of the matrix column (" + mat.rows() + ").");
       }
 
-      mat.matrix.setMatrix(0, newColLength - 1, colIndex, colIndex, newCol);
+      MatrixStorage storage = mat.writable();
+      for (int i = 0; i < newColLength; i++) {
+        storage.set(i, colIndex, newCol[i]);
+      }
     }
   }
 
-  public static class SwapColumns implements Command {
+  public class SwapColumns implements Command {
 
     @Override
     public Syntax getSyntax() {
@@ -561,8 +1149,8 @@ public class MatrixExtension
       LogoMatrix mat = getMatrixFromArgument(args[0]);
       int colIndex1 = args[1].getIntValue();
       int colIndex2 = args[2].getIntValue();
-      int numCols = mat.matrix.getColumnDimension();
-      int numRows = mat.matrix.getRowDimension();
+      int numCols = mat.cols();
+      int numRows = mat.rows();
       if (colIndex1 < 0 || colIndex1 >= numCols) {
         throw new org.nlogo.api.ExtensionException("The first column index, " + colIndex1
             + ", is not valid for a " + numRows + " x " + numCols + " matrix.");
@@ -572,16 +1160,11 @@ public class MatrixExtension
             + ", is not valid for a " + numRows + " x " + numCols + " matrix.");
       }
 
-      // Save the column given by colIndex1 in col1; overwrite that column with the column given by
-      // colIndex2, then overwrite the column given by colIndex2 with the saved column, col1.
-      Jama.Matrix col1 = mat.matrix.getMatrix(0, numRows - 1, colIndex1, colIndex1);
-      mat.matrix.setMatrix(0, numRows - 1, colIndex1, colIndex1,
-          mat.matrix.getMatrix(0, numRows - 1, colIndex2, colIndex2));
-      mat.matrix.setMatrix(0, numRows - 1, colIndex2, colIndex2, col1);
+      mat.writable().swapColumns(colIndex1, colIndex2);
     }
   }
 
-  public static class SetAndReport implements Reporter {
+  public class SetAndReport implements Reporter {
 
     @Override
     public Syntax getSyntax() {
@@ -598,18 +1181,18 @@ public class MatrixExtension
       LogoMatrix mat = getMatrixFromArgument(args[0]);
       int rowIndex = args[1].getIntValue();
       int colIndex = args[2].getIntValue();
-      if (rowIndex < 0 || rowIndex >= mat.matrix.getRowDimension()
-          || colIndex < 0 || colIndex >= mat.matrix.getColumnDimension()) {
+      if (rowIndex < 0 || rowIndex >= mat.rows()
+          || colIndex < 0 || colIndex >= mat.cols()) {
         throw new org.nlogo.api.ExtensionException("(" + rowIndex + "," + colIndex + ") are not valid indices for a matrix with dimensions  "
-            + mat.matrix.getRowDimension() + "x" + mat.matrix.getColumnDimension());
+            + mat.rows() + "x" + mat.cols());
       }
-      LogoMatrix matcopy = new LogoMatrix(getMatrixFromArgument(args[0]).matrix.copy());
-      matcopy.matrix.set(rowIndex, colIndex, args[3].getDoubleValue());
+      LogoMatrix matcopy = new LogoMatrix(mat.storage.copy());
+      matcopy.storage.set(rowIndex, colIndex, args[3].getDoubleValue());
       return matcopy;
     }
   }
 
-  public static class Dimensions implements Reporter {
+  public class Dimensions implements Reporter {
 
     @Override
     public Syntax getSyntax() {
@@ -622,13 +1205,13 @@ public class MatrixExtension
         throws ExtensionException, LogoException {
       LogoMatrix mat = getMatrixFromArgument(args[0]);
       LogoListBuilder dims = new LogoListBuilder();
-      dims.add((double) mat.matrix.getRowDimension());
-      dims.add((double) mat.matrix.getColumnDimension());
+      dims.add((double) mat.rows());
+      dims.add((double) mat.cols());
       return dims.toLogoList();
     }
   }
 
-  public static class ToRowList implements Reporter {
+  public class ToRowList implements Reporter {
 
     @Override
     public Syntax getSyntax() {
@@ -639,11 +1222,11 @@ public class MatrixExtension
     @Override
     public Object report(Argument args[], Context context)
         throws ExtensionException, LogoException {
-      return convertArrayToNestedLogoList(getMatrixFromArgument(args[0]).matrix.getArray());
+      return convertArrayToNestedLogoList(getMatrixFromArgument(args[0]).matrix().getArray());
     }
   }
 
-  public static class FromRowList implements Reporter {
+  public class FromRowList implements Reporter {
 
     @Override
     public Syntax getSyntax() {
@@ -658,7 +1241,7 @@ public class MatrixExtension
     }
   }
 
-  public static class ToColumnList implements Reporter {
+  public class ToColumnList implements Reporter {
 
     @Override
     public Syntax getSyntax() {
@@ -669,11 +1252,11 @@ public class MatrixExtension
     @Override
     public Object report(Argument args[], Context context)
         throws ExtensionException, LogoException {
-      return convertArrayToNestedLogoList(getMatrixFromArgument(args[0]).matrix.transpose().getArray());
+      return convertArrayToNestedColumnLogoList(getMatrixFromArgument(args[0]).matrix().getArray());
     }
   }
 
-  public static class FromColumnList implements Reporter {
+  public class FromColumnList implements Reporter {
 
     @Override
     public Syntax getSyntax() {
@@ -684,11 +1267,11 @@ public class MatrixExtension
     @Override
     public Object report(Argument args[], Context context)
         throws ExtensionException, LogoException {
-      return new LogoMatrix(new Jama.Matrix(convertNestedLogoListToArray(args[0].getList())).transpose());
+      return new LogoMatrix(new Jama.Matrix(convertNestedColumnLogoListToArray(args[0].getList())));
     }
   }
 
-  public static class MakeConstant implements Reporter {
+  public class MakeConstant implements Reporter {
 
     @Override
     public Syntax getSyntax() {
@@ -699,11 +1282,14 @@ public class MatrixExtension
     @Override
     public Object report(Argument args[], Context context)
         throws ExtensionException, LogoException {
-      return new LogoMatrix(new Jama.Matrix(args[0].getIntValue(), args[1].getIntValue(), args[2].getDoubleValue()));
+      int numRows = args[0].getIntValue();
+      int numCols = args[1].getIntValue();
+      checkMemory(numRows, numCols);
+      return new LogoMatrix(new Jama.Matrix(numRows, numCols, args[2].getDoubleValue()));
     }
   }
 
-  public static class MakeIdentity implements Reporter {
+  public class MakeIdentity implements Reporter {
 
     @Override
     public Syntax getSyntax() {
@@ -715,11 +1301,12 @@ public class MatrixExtension
     public Object report(Argument args[], Context context)
         throws ExtensionException, LogoException {
       int size = args[0].getIntValue();
+      checkMemory(size, size);
       return new LogoMatrix(Jama.Matrix.identity(size, size));
     }
   }
 
-  public static class Copy implements Reporter {
+  public class Copy implements Reporter {
 
     @Override
     public Syntax getSyntax() {
@@ -730,11 +1317,11 @@ public class MatrixExtension
     @Override
     public Object report(Argument args[], Context context)
         throws ExtensionException, LogoException {
-      return new LogoMatrix(getMatrixFromArgument(args[0]).matrix.copy());
+      return getMatrixFromArgument(args[0]).share();
     }
   }
 
-  public static class PrettyPrintText implements Reporter {
+  public class PrettyPrintText implements Reporter {
 
     @Override
     public Syntax getSyntax() {
@@ -746,7 +1333,7 @@ public class MatrixExtension
     public Object report(Argument args[], Context context)
         throws ExtensionException, LogoException {
 
-      double[][] dArray = getMatrixFromArgument(args[0]).matrix.getArray();
+      double[][] dArray = getMatrixFromArgument(args[0]).matrix().getArray();
       int maxLen[] = new int[dArray[0].length];
       for (int j = 0; j < dArray[0].length; j++) {
         maxLen[j] = 0;
@@ -793,9 +1380,28 @@ public class MatrixExtension
   static public final Operator timesElementsOp = new TimesElementsOp();
 
   private static class TimesOp extends TimesElementsOp {
+    // The product is a new matrix anyway, so there is no need to copy the
+    // accumulator first.
+    @Override
+    public Matrix apply(Matrix accumulator, Object elem) {
+      return elem instanceof Matrix ? Backend.current().times(accumulator, (Matrix) elem) : super.apply(accumulator, elem);
+    }
+
     @Override
     public Matrix applyEquals(Matrix accumulator, Matrix elem) {
-      return accumulator.times(elem);
+      return Backend.current().times(accumulator, elem);
+    }
+
+    // Products with a vector on the side it multiplies are matrix-vector
+    // products, and need neither tiles nor a 2-D result.
+    @Override
+    protected MatrixStorage combine(MatrixStorage accumulator, MatrixStorage elem, boolean inPlace) {
+      if (elem instanceof VectorStorage && elem.cols() == 1) {
+        return VectorStorage.times(accumulator, (VectorStorage) elem);
+      } else if (accumulator instanceof VectorStorage && accumulator.rows() == 1) {
+        return VectorStorage.times((VectorStorage) accumulator, elem);
+      }
+      return MatrixStorage.times(accumulator, elem);
     }
   }
   static public final Operator timesOp = new TimesOp();
@@ -816,7 +1422,7 @@ public class MatrixExtension
   }
   static public final Operator minusOp = new MinusOp();
 
-  public static class TimesScalar implements Reporter {
+  public class TimesScalar implements Reporter {
     @Override
     public Syntax getSyntax() {
       return SyntaxJ.reporterSyntax(new int[]{Syntax.WildcardType(), Syntax.NumberType()},
@@ -825,15 +1431,17 @@ public class MatrixExtension
     @Override
     public Object report(Argument args[], Context context) throws ExtensionException, LogoException {
       try {
-        return getMatrixFromNumeric(timesElementsOp.applyEquals(getNumericFromArgument(args[0]), getNumericFromArgument(args[1])),
+        return getMatrixFromNumeric(timesElementsOp.apply(getNumericFromArgument(args[0]), getNumericFromArgument(args[1])),
                 "You must give matrix:times-scalar a matrix as the first input.");
       } catch (IllegalArgumentException e) {
         throw new ExtensionException(e);
+      } catch (java.io.UncheckedIOException e) {
+        throw new ExtensionException(e.getMessage());
       }
     }
   }
 
-  public static class VariadicOperator implements Reporter {
+  public class VariadicOperator implements Reporter {
     private Operator operator;
     private String name;
 
@@ -857,14 +1465,16 @@ public class MatrixExtension
                 "You must give " + name + " at least one matrix argument.");
       } catch (IllegalArgumentException e) {
         throw new ExtensionException(e);
+      } catch (java.io.UncheckedIOException e) {
+        throw new ExtensionException(e.getMessage());
       }
     }
   }
 
-  public static class InfixOperator implements Reporter {
-    public static final int PLUS_PRECEDENCE = Syntax.NormalPrecedence() - 3;
-    public static final int TIMES_PRECEDENCE = Syntax.NormalPrecedence() - 2;
+  public static final int PLUS_PRECEDENCE = Syntax.NormalPrecedence() - 3;
+  public static final int TIMES_PRECEDENCE = Syntax.NormalPrecedence() - 2;
 
+  public class InfixOperator implements Reporter {
     private Operator operator;
     private String name;
     private int precedence;
@@ -890,10 +1500,12 @@ public class MatrixExtension
                 "You must give " + name + " at least one matrix argument.");
       } catch (IllegalArgumentException e) {
         throw new ExtensionException(e);
+      } catch (java.io.UncheckedIOException e) {
+        throw new ExtensionException(e.getMessage());
       }
     }
   }
-  public static class MapElements implements Reporter {
+  public class MapElements implements Reporter {
 
     @Override
     public Syntax getSyntax() {
@@ -913,7 +1525,7 @@ public class MatrixExtension
       AnonymousReporter mapFnctn = (AnonymousReporter)args[0].getReporter();
       double[][][] mats = new double[args.length - 1][][];
       for (int i = 1; i < args.length; i++) {
-        mats[i-1] = getMatrixFromArgument(args[i]).matrix.getArray();
+        mats[i-1] = getMatrixFromArgument(args[i]).matrix().getArray();
       }
 
       // Check to make sure that the number of matrices supplied is at least
@@ -963,7 +1575,7 @@ public class MatrixExtension
     }
   }
 
-  public static class PlusScalar implements Reporter {
+  public class PlusScalar implements Reporter {
 
     @Override
     public Syntax getSyntax() {
@@ -978,11 +1590,13 @@ public class MatrixExtension
                 "You must give matrix:plus-scalar a matrix as the first input.");
       } catch (IllegalArgumentException e) {
         throw new ExtensionException(e);
+      } catch (java.io.UncheckedIOException e) {
+        throw new ExtensionException(e.getMessage());
       }
     }
   }
 
-  public static class Det implements Reporter {
+  public class Det implements Reporter {
 
     @Override
     public Syntax getSyntax() {
@@ -995,14 +1609,14 @@ public class MatrixExtension
         throws ExtensionException, LogoException {
       LogoMatrix mat = getMatrixFromArgument(args[0]);
       try {
-        return Double.valueOf(mat.matrix.det());
+        return Double.valueOf(Backend.current().det(mat.matrix()));
       } catch (RuntimeException ex) {
         throw new ExtensionException(ex);
       }
     }
   }
 
-  public static class Rank implements Reporter {
+  public class Rank implements Reporter {
 
     @Override
     public Syntax getSyntax() {
@@ -1015,14 +1629,14 @@ public class MatrixExtension
         throws ExtensionException, LogoException {
       LogoMatrix mat = getMatrixFromArgument(args[0]);
       try {
-        return Double.valueOf(mat.matrix.rank());
+        return Double.valueOf(Backend.current().rank(mat.matrix()));
       } catch (RuntimeException ex) {
         throw new ExtensionException(ex);
       }
     }
   }
 
-  public static class Cond implements Reporter {
+  public class Cond implements Reporter {
 
     @Override
     public Syntax getSyntax() {
@@ -1035,14 +1649,14 @@ public class MatrixExtension
         throws ExtensionException, LogoException {
       LogoMatrix mat = getMatrixFromArgument(args[0]);
       try {
-        return Double.valueOf(mat.matrix.cond());
+        return Double.valueOf(Backend.current().cond(mat.matrix()));
       } catch (RuntimeException ex) {
         throw new ExtensionException(ex);
       }
     }
   }
 
-  public static class Trace implements Reporter {
+  public class Trace implements Reporter {
 
     @Override
     public Syntax getSyntax() {
@@ -1055,14 +1669,14 @@ public class MatrixExtension
         throws ExtensionException, LogoException {
       LogoMatrix mat = getMatrixFromArgument(args[0]);
       try {
-        return Double.valueOf(mat.matrix.trace());
+        return Double.valueOf(mat.storage.trace());
       } catch (RuntimeException ex) {
         throw new ExtensionException(ex);
       }
     }
   }
 
-  public static class Inverse implements Reporter {
+  public class Inverse implements Reporter {
 
     @Override
     public Syntax getSyntax() {
@@ -1075,14 +1689,14 @@ public class MatrixExtension
         throws ExtensionException, LogoException {
       LogoMatrix mat = getMatrixFromArgument(args[0]);
       try {
-        return new LogoMatrix(mat.matrix.inverse());
+        return new LogoMatrix(Backend.current().inverse(mat.matrix()));
       } catch (RuntimeException ex) {
         throw new ExtensionException(ex);
       }
     }
   }
 
-  public static class Transpose implements Reporter {
+  public class Transpose implements Reporter {
 
     @Override
     public Syntax getSyntax() {
@@ -1094,17 +1708,18 @@ public class MatrixExtension
     public Object report(Argument args[], Context context)
         throws ExtensionException, LogoException {
       LogoMatrix mat = getMatrixFromArgument(args[0]);
-      return new LogoMatrix(mat.matrix.transpose());
+      return new LogoMatrix(ViewStorage.transpose(mat.storage));
     }
   }
 
-  public static class Submatrix implements Reporter {
+  public class Submatrix implements Reporter {
 
     @Override
     public Syntax getSyntax() {
       return SyntaxJ.reporterSyntax(new int[]{Syntax.WildcardType(), Syntax.NumberType(),
-          Syntax.NumberType(), Syntax.NumberType(), Syntax.NumberType()},
-          Syntax.WildcardType());
+          Syntax.NumberType(), Syntax.NumberType(), Syntax.NumberType(),
+          Syntax.NumberType() | Syntax.RepeatableType()},
+          Syntax.WildcardType(), 5);
     }
 
     @Override
@@ -1117,8 +1732,8 @@ public class MatrixExtension
       // we use EXCLUSIVE, to match NetLogo's SUBLIST, SUBSTRING, etc.
       int r2 = args[3].getIntValue();
       int c2 = args[4].getIntValue();
-      int numRows = mat.matrix.getRowDimension();
-      int numCols = mat.matrix.getColumnDimension();
+      int numRows = mat.rows();
+      int numCols = mat.cols();
 
       if (r1 < 0 || r1 >= numRows) {
         throw new org.nlogo.api.ExtensionException("Start row index ("
@@ -1140,17 +1755,25 @@ public class MatrixExtension
             + c2 + ") is invalid.  Should be between 1 and "
             + (numCols) + " inclusive.");
       }
-      return new LogoMatrix(mat.matrix.getMatrix(r1, r2 - 1, c1, c2 - 1));
+      // optional steps between the rows and columns taken
+      int rowStep = args.length > 5 ? args[5].getIntValue() : 1;
+      int colStep = args.length > 6 ? args[6].getIntValue() : rowStep;
+      if (rowStep < 1 || colStep < 1) {
+        throw new org.nlogo.api.ExtensionException("The row and column steps must be at least 1, but they are "
+            + rowStep + " and " + colStep + ".");
+      }
+      if (r2 <= r1 || c2 <= c1) {
+        return new LogoMatrix(mat.storage.submatrix(r1, r2, c1, c2));
+      }
+      return new LogoMatrix(ViewStorage.block(mat.storage, r1, r2, c1, c2, rowStep, colStep));
     }
   }
-
-  public static class GetRow implements Reporter {
+  public class RowView implements Reporter {
 
     @Override
     public Syntax getSyntax() {
-      return SyntaxJ.reporterSyntax(new int[]{Syntax.WildcardType(),
-          Syntax.NumberType()},
-          Syntax.ListType());
+      return SyntaxJ.reporterSyntax(new int[]{Syntax.WildcardType(), Syntax.NumberType()},
+          Syntax.WildcardType());
     }
 
     @Override
@@ -1158,24 +1781,20 @@ public class MatrixExtension
         throws ExtensionException, LogoException {
       LogoMatrix mat = getMatrixFromArgument(args[0]);
       int rowIndex = args[1].getIntValue();
-      int ncols = mat.matrix.getColumnDimension();
-      if (rowIndex < 0 || rowIndex >= mat.matrix.getRowDimension()) {
-        throw new org.nlogo.api.ExtensionException("(" + rowIndex + ") is not valid indices for a matrix with dimensions  "
-            + mat.matrix.getRowDimension() + "x" + mat.matrix.getColumnDimension());
+      if (rowIndex < 0 || rowIndex >= mat.rows()) {
+        throw new org.nlogo.api.ExtensionException("Row index (" + rowIndex + ") is invalid.  Should be between 0 and "
+            + (mat.rows() - 1) + " inclusive.");
       }
-      LogoMatrix rowArray = new LogoMatrix(mat.matrix.getMatrix(rowIndex, rowIndex, 0, ncols - 1));
-
-      return convertArrayToSimpleLogoList(rowArray.matrix.getArray());
+      return new LogoMatrix(ViewStorage.block(mat.storage, rowIndex, rowIndex + 1, 0, mat.cols(), 1, 1));
     }
   }
 
-  public static class GetColumn implements Reporter {
+  public class ColumnView implements Reporter {
 
     @Override
     public Syntax getSyntax() {
-      return SyntaxJ.reporterSyntax(new int[]{Syntax.WildcardType(),
-          Syntax.NumberType()},
-          Syntax.ListType());
+      return SyntaxJ.reporterSyntax(new int[]{Syntax.WildcardType(), Syntax.NumberType()},
+          Syntax.WildcardType());
     }
 
     @Override
@@ -1183,43 +1802,36 @@ public class MatrixExtension
         throws ExtensionException, LogoException {
       LogoMatrix mat = getMatrixFromArgument(args[0]);
       int colIndex = args[1].getIntValue();
-      int nrows = mat.matrix.getRowDimension();
-      if (colIndex < 0 || colIndex >= mat.matrix.getColumnDimension()) {
-        throw new org.nlogo.api.ExtensionException("(" + colIndex + ") is not valid indices for a matrix with dimensions  "
-            + mat.matrix.getRowDimension() + "x" + mat.matrix.getColumnDimension());
+      if (colIndex < 0 || colIndex >= mat.cols()) {
+        throw new org.nlogo.api.ExtensionException("Column index (" + colIndex + ") is invalid.  Should be between 0 and "
+            + (mat.cols() - 1) + " inclusive.");
       }
-      LogoMatrix colArray = new LogoMatrix(mat.matrix.getMatrix(0, nrows - 1, colIndex, colIndex));
-
-      return convertArrayToSimpleLogoList(colArray.matrix.getArray());
+      return new LogoMatrix(ViewStorage.block(mat.storage, 0, mat.rows(), colIndex, colIndex + 1, 1, 1));
     }
   }
 
-  public static class RealEigenvalues implements Reporter {
+  public class Materialize implements Reporter {
 
     @Override
     public Syntax getSyntax() {
       return SyntaxJ.reporterSyntax(new int[]{Syntax.WildcardType()},
-          Syntax.ListType());
+          Syntax.WildcardType());
     }
 
     @Override
     public Object report(Argument args[], Context context)
         throws ExtensionException, LogoException {
-      LogoMatrix mat = getMatrixFromArgument(args[0]);
-      LogoListBuilder retList = new LogoListBuilder();
-      double[] eigenVals = mat.matrix.eig().getRealEigenvalues();
-      for (double d : eigenVals) {
-        retList.add(d);
-      }
-      return retList.toLogoList();
+      return new LogoMatrix(getMatrixFromArgument(args[0]).storage.copy());
     }
   }
 
-  public static class ImaginaryEigenvalues implements Reporter {
+
+  public class GetRow implements Reporter {
 
     @Override
     public Syntax getSyntax() {
-      return SyntaxJ.reporterSyntax(new int[]{Syntax.WildcardType()},
+      return SyntaxJ.reporterSyntax(new int[]{Syntax.WildcardType(),
+          Syntax.NumberType()},
           Syntax.ListType());
     }
 
@@ -1227,32 +1839,203 @@ public class MatrixExtension
     public Object report(Argument args[], Context context)
         throws ExtensionException, LogoException {
       LogoMatrix mat = getMatrixFromArgument(args[0]);
-      LogoListBuilder retList = new LogoListBuilder();
-      double[] eigenVals = mat.matrix.eig().getImagEigenvalues();
-      for (double d : eigenVals) {
-        retList.add(d);
+      int rowIndex = args[1].getIntValue();
+      if (rowIndex < 0 || rowIndex >= mat.rows()) {
+        throw new org.nlogo.api.ExtensionException("(" + rowIndex + ") is not valid indices for a matrix with dimensions  "
+            + mat.rows() + "x" + mat.cols());
       }
-      return retList.toLogoList();
+      return convertRowToLogoList(mat.storage.getRow(rowIndex));
     }
   }
 
-  public static class Eigenvectors implements Reporter {
+  public class GetColumn implements Reporter {
 
     @Override
     public Syntax getSyntax() {
-      return SyntaxJ.reporterSyntax(new int[]{Syntax.WildcardType()},
-          Syntax.WildcardType());
+      return SyntaxJ.reporterSyntax(new int[]{Syntax.WildcardType(),
+          Syntax.NumberType()},
+          Syntax.ListType());
     }
 
     @Override
     public Object report(Argument args[], Context context)
         throws ExtensionException, LogoException {
       LogoMatrix mat = getMatrixFromArgument(args[0]);
-      return new LogoMatrix(mat.matrix.eig().getV());
+      int colIndex = args[1].getIntValue();
+      if (colIndex < 0 || colIndex >= mat.cols()) {
+        throw new org.nlogo.api.ExtensionException("(" + colIndex + ") is not valid indices for a matrix with dimensions  "
+            + mat.rows() + "x" + mat.cols());
+      }
+      return convertRowToLogoList(mat.storage.getColumn(colIndex));
     }
   }
 
-  public static class Solve implements Reporter {
+  // The elements of a matrix with one row or one column, for the vector
+  // primitives.
+  private static double[] getVectorFromArgument(Argument arg, String primitive)
+      throws ExtensionException, LogoException {
+    return vectorElements(getMatrixFromArgument(arg).storage, primitive);
+  }
+
+  private static double[] vectorElements(MatrixStorage storage, String primitive) throws ExtensionException {
+    if (!VectorStorage.isVector(storage.rows(), storage.cols())) {
+      throw new ExtensionException(primitive + " expected a vector (a matrix with one row or one column), "
+          + "but got a " + storage.rows() + "x" + storage.cols() + " matrix.");
+    }
+    return VectorStorage.elements(storage);
+  }
+
+  private static void checkLengths(double[] x, double[] y) throws ExtensionException {
+    if (x.length != y.length) {
+      throw new ExtensionException("The vectors must have the same number of elements, but have "
+          + x.length + " and " + y.length + ".");
+    }
+  }
+
+  public class FromVectorList implements Reporter {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.reporterSyntax(new int[]{Syntax.ListType()},
+          Syntax.WildcardType());
+    }
+
+    @Override
+    public Object report(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      return new LogoMatrix(new VectorStorage(convertSimpleLogoListToVector(args[0].getList()), true));
+    }
+  }
+
+  public class ToVectorList implements Reporter {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.reporterSyntax(new int[]{Syntax.WildcardType()},
+          Syntax.ListType());
+    }
+
+    @Override
+    public Object report(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      return convertRowToLogoList(getVectorFromArgument(args[0], "matrix:to-vector-list"));
+    }
+  }
+
+  public class Dot implements Reporter {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.reporterSyntax(new int[]{Syntax.WildcardType(), Syntax.WildcardType()},
+          Syntax.NumberType());
+    }
+
+    @Override
+    public Object report(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      double[] x = getVectorFromArgument(args[0], "matrix:dot");
+      double[] y = getVectorFromArgument(args[1], "matrix:dot");
+      checkLengths(x, y);
+      return Double.valueOf(VectorStorage.dot(x, y));
+    }
+  }
+
+  public class Axpy implements Reporter {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.reporterSyntax(new int[]{Syntax.NumberType(), Syntax.WildcardType(), Syntax.WildcardType()},
+          Syntax.WildcardType());
+    }
+
+    @Override
+    public Object report(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      double alpha = args[0].getDoubleValue();
+      double[] x = getVectorFromArgument(args[1], "matrix:axpy");
+      MatrixStorage y = getMatrixFromArgument(args[2]).storage;
+      double[] result = vectorElements(y, "matrix:axpy").clone();
+      checkLengths(x, result);
+      VectorStorage.axpy(alpha, x, result);
+      // shaped like y
+      return new LogoMatrix(new VectorStorage(result, y.cols() == 1));
+    }
+  }
+
+  public class Norm implements Reporter {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.reporterSyntax(new int[]{Syntax.WildcardType()},
+          Syntax.NumberType());
+    }
+
+    @Override
+    public Object report(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      return Double.valueOf(VectorStorage.norm(getMatrixFromArgument(args[0]).storage));
+    }
+  }
+
+  public class RealEigenvalues implements Reporter {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.reporterSyntax(new int[]{Syntax.WildcardType()},
+          Syntax.ListType());
+    }
+
+    @Override
+    public Object report(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      LogoMatrix mat = getMatrixFromArgument(args[0]);
+      LogoListBuilder retList = new LogoListBuilder();
+      double[] eigenVals = Backend.current().eig(mat.matrix()).realValues;
+      for (double d : eigenVals) {
+        retList.add(d);
+      }
+      return retList.toLogoList();
+    }
+  }
+
+  public class ImaginaryEigenvalues implements Reporter {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.reporterSyntax(new int[]{Syntax.WildcardType()},
+          Syntax.ListType());
+    }
+
+    @Override
+    public Object report(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      LogoMatrix mat = getMatrixFromArgument(args[0]);
+      LogoListBuilder retList = new LogoListBuilder();
+      double[] eigenVals = Backend.current().eig(mat.matrix()).imagValues;
+      for (double d : eigenVals) {
+        retList.add(d);
+      }
+      return retList.toLogoList();
+    }
+  }
+
+  public class Eigenvectors implements Reporter {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.reporterSyntax(new int[]{Syntax.WildcardType()},
+          Syntax.WildcardType());
+    }
+
+    @Override
+    public Object report(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      LogoMatrix mat = getMatrixFromArgument(args[0]);
+      return new LogoMatrix(Backend.current().eig(mat.matrix()).vectors);
+    }
+  }
+
+  public class Solve implements Reporter {
 
     @Override
     public Syntax getSyntax() {
@@ -1266,14 +2049,33 @@ public class MatrixExtension
       LogoMatrix mat = getMatrixFromArgument(args[0]);
       LogoMatrix mat2 = getMatrixFromArgument(args[1]);
       try {
-        return new LogoMatrix(mat.matrix.solve(mat2.matrix));
+        return new LogoMatrix(Backend.current().solve(mat.matrix(), mat2.matrix()));
       } catch (RuntimeException ex) {
         throw new ExtensionException(ex);
       }
     }
   }
 
-  public static class ForecastLinearTrend implements Reporter {
+  // The total and residual sums of squares of the regression of y on X with
+  // coefficients A, worked out on plain vectors (see VectorStorage) rather
+  // than as products of n x 1 matrices.
+  private static double[] sumsOfSquares(double[] y, Jama.Matrix X, Jama.Matrix A) {
+    int numObsv = y.length;
+    double Ybar = 0.0;
+    for (double value : y) {
+      Ybar += value;
+    }
+    Ybar /= numObsv;
+    double[] Ydiff = new double[numObsv];
+    for (int i = 0; i < numObsv; i++) {
+      Ydiff[i] = y[i] - Ybar;
+    }
+    double[] Resid = VectorStorage.times(new HeapStorage(X), new VectorStorage(A.getColumnPackedCopy(), true)).data;
+    VectorStorage.axpy(-1.0, y, Resid);
+    return new double[]{VectorStorage.dot(Ydiff, Ydiff), VectorStorage.dot(Resid, Resid)};
+  }
+
+  public class ForecastLinearTrend implements Reporter {
     // This reporter takes a simple list of values, computes the regression line
     // describing them, and then returns a simple list where the first element
     // is the predicted value of the next point along the line, the second is
@@ -1295,7 +2097,8 @@ public class MatrixExtension
     public Object report(Argument args[], Context context)
         throws ExtensionException, LogoException {
       // Y is the list of values to fit to a linear trend.
-      Jama.Matrix Y = new Jama.Matrix(convertSimpleLogoListToArray(args[0].getList())).transpose();
+      double[] values = convertSimpleLogoListToVector(args[0].getList());
+      Jama.Matrix Y = new Jama.Matrix(values, values.length);
       int numObsv = Y.getRowDimension();
 
       if (numObsv < 1) {
@@ -1321,7 +2124,7 @@ public class MatrixExtension
         X.set(i, 0, 1.0);
         X.set(i, 1, (double) i);
       }
-      Jama.Matrix A = X.solve(Y);
+      Jama.Matrix A = Backend.current().solve(X, Y);
 
       // A is now a 2x1 matrix with the constant at 0,0 and the slope at 1,0.
       // Compute the forecast of Y for t = numObsv.
@@ -1334,12 +2137,9 @@ public class MatrixExtension
       // same value.  The forecast and the constant will have been set to
       // that value above, the slope will have been set to zero,
       // and we set R^2 to unity.
-      Jama.Matrix Ysum = new Jama.Matrix(1, numObsv, 1.0).times(Y);
-      double Ybar = Ysum.get(0, 0) / numObsv;
-      Jama.Matrix Ydiff = Y.minus(new Jama.Matrix(numObsv, 1, Ybar));
-      double TotalSumSq = ((Ydiff.transpose()).times(Ydiff)).get(0, 0);
-      Jama.Matrix Resid = (X.times(A)).minus(Y);
-      double ResidSumSq = ((Resid.transpose()).times(Resid)).get(0, 0);
+      double[] sumsSq = sumsOfSquares(values, X, A);
+      double TotalSumSq = sumsSq[0];
+      double ResidSumSq = sumsSq[1];
       double RSquared;
       if (TotalSumSq > 0) {
         RSquared = 1.0 - (ResidSumSq / TotalSumSq);
@@ -1355,7 +2155,7 @@ public class MatrixExtension
     }
   }
 
-  public static class ForecastCompoundTrend implements Reporter {
+  public class ForecastCompoundTrend implements Reporter {
     // This reporter takes a simple list of values, finds the compound growth equation
     // (line) best describing them, and then returns a simple list where the first
     // element is the predicted value of the next point along the line, the second
@@ -1383,15 +2183,15 @@ public class MatrixExtension
     public Object report(Argument args[], Context context)
         throws ExtensionException, LogoException {
       // Y is the list of values to fit to a compound growth trend.
-      Jama.Matrix Yin = new Jama.Matrix(convertSimpleLogoListToArray(args[0].getList())).transpose();
-      int numObsv = Yin.getRowDimension();
+      double[] values = convertSimpleLogoListToVector(args[0].getList());
+      int numObsv = values.length;
 
       if (numObsv < 1) {
         throw new org.nlogo.api.ExtensionException(
             "The input list is empty.");
       }
       for (int i = 0; i < numObsv; i++) {
-        if (Yin.get(i, 0) <= 0.0) {
+        if (values[i] <= 0.0) {
           throw new org.nlogo.api.ExtensionException(
               "Item " + i + " of the input list is zero or negative.");
         }
@@ -1403,21 +2203,22 @@ public class MatrixExtension
       // computed so just return the single value as both the forecast and
       // trend constant, set (1 + rate) to unity. and set R^2 to zero.
       if (numObsv == 1) {
-        forecast.add(Yin.get(0, 0));
-        forecast.add(Yin.get(0, 0));
+        forecast.add(values[0]);
+        forecast.add(values[0]);
         forecast.add(1.0);
         forecast.add(0.0);
         return forecast.toLogoList();
       }
 
-      Jama.Matrix Y = new Jama.Matrix(numObsv, 1);
+      double[] logs = new double[numObsv];
       Jama.Matrix X = new Jama.Matrix(numObsv, 2);
       for (int i = 0; i < numObsv; i++) {
-        Y.set(i, 0, Math.log(Yin.get(i, 0)));
+        logs[i] = Math.log(values[i]);
         X.set(i, 0, 1.0);
         X.set(i, 1, (double) i);
       }
-      Jama.Matrix A = X.solve(Y);
+      Jama.Matrix Y = new Jama.Matrix(logs, numObsv);
+      Jama.Matrix A = Backend.current().solve(X, Y);
 
       // A is now a 2x1 matrix with the constant at 0,0 and the slope at 1,0.
       // Compute the forecast of Y for t = numObsv.
@@ -1430,12 +2231,9 @@ public class MatrixExtension
       // same value.  The forecast and the constant will have been set to
       // that value above, onePlusRate will have been set to unity,
       // and we set R^2 to unity.
-      Jama.Matrix Ysum = new Jama.Matrix(1, numObsv, 1.0).times(Y);
-      double Ybar = Ysum.get(0, 0) / numObsv;
-      Jama.Matrix Ydiff = Y.minus(new Jama.Matrix(numObsv, 1, Ybar));
-      double TotalSumSq = ((Ydiff.transpose()).times(Ydiff)).get(0, 0);
-      Jama.Matrix Resid = (X.times(A)).minus(Y);
-      double ResidSumSq = ((Resid.transpose()).times(Resid)).get(0, 0);
+      double[] sumsSq = sumsOfSquares(logs, X, A);
+      double TotalSumSq = sumsSq[0];
+      double ResidSumSq = sumsSq[1];
       double RSquared;
       if (TotalSumSq > 0) {
         RSquared = 1.0 - (ResidSumSq / TotalSumSq);
@@ -1451,7 +2249,7 @@ public class MatrixExtension
     }
   }
 
-  public static class ForecastContinuousTrend implements Reporter {
+  public class ForecastContinuousTrend implements Reporter {
     // This reporter takes a simple list of values, fits a continous growth function
     // describing them, and then returns a simple list where the first element
     // is the predicted value of the next point along the growth line, the second
@@ -1480,15 +2278,15 @@ public class MatrixExtension
     public Object report(Argument args[], Context context)
         throws ExtensionException, LogoException {
       // Y is the list of values to fit to an exponential trend.
-      Jama.Matrix Yin = new Jama.Matrix(convertSimpleLogoListToArray(args[0].getList())).transpose();
-      int numObsv = Yin.getRowDimension();
+      double[] values = convertSimpleLogoListToVector(args[0].getList());
+      int numObsv = values.length;
 
       if (numObsv < 1) {
         throw new org.nlogo.api.ExtensionException(
             "The input list is empty.");
       }
       for (int i = 0; i < numObsv; i++) {
-        if (Yin.get(i, 0) <= 0.0) {
+        if (values[i] <= 0.0) {
           throw new org.nlogo.api.ExtensionException(
               "Item " + i + " of the input list is zero or negative.");
         }
@@ -1500,21 +2298,22 @@ public class MatrixExtension
       // computed so just return the single value as both the forecast and
       // trend constant, and set the growth rate and R^2 to zero.
       if (numObsv == 1) {
-        forecast.add(Yin.get(0, 0));
-        forecast.add(Yin.get(0, 0));
+        forecast.add(values[0]);
+        forecast.add(values[0]);
         forecast.add(0.0);
         forecast.add(0.0);
         return forecast.toLogoList();
       }
 
-      Jama.Matrix Y = new Jama.Matrix(numObsv, 1);
+      double[] logs = new double[numObsv];
       Jama.Matrix X = new Jama.Matrix(numObsv, 2);
       for (int i = 0; i < numObsv; i++) {
-        Y.set(i, 0, Math.log(Yin.get(i, 0)));
+        logs[i] = Math.log(values[i]);
         X.set(i, 0, 1.0);
         X.set(i, 1, (double) i);
       }
-      Jama.Matrix A = X.solve(Y);
+      Jama.Matrix Y = new Jama.Matrix(logs, numObsv);
+      Jama.Matrix A = Backend.current().solve(X, Y);
 
       // A is now a 2x1 matrix with the constant at 0,0 and the slope at 1,0.
       // Compute the forecast of Y for t = numObsv.
@@ -1527,12 +2326,9 @@ public class MatrixExtension
       // same value.  The forecast and the constant will have been set to
       // that value above, the slope will have been set to zero,
       // and we set R^2 to unity.
-      Jama.Matrix Ysum = new Jama.Matrix(1, numObsv, 1.0).times(Y);
-      double Ybar = Ysum.get(0, 0) / numObsv;
-      Jama.Matrix Ydiff = Y.minus(new Jama.Matrix(numObsv, 1, Ybar));
-      double TotalSumSq = ((Ydiff.transpose()).times(Ydiff)).get(0, 0);
-      Jama.Matrix Resid = (X.times(A)).minus(Y);
-      double ResidSumSq = ((Resid.transpose()).times(Resid)).get(0, 0);
+      double[] sumsSq = sumsOfSquares(logs, X, A);
+      double TotalSumSq = sumsSq[0];
+      double ResidSumSq = sumsSq[1];
       double RSquared;
       if (TotalSumSq > 0) {
         RSquared = 1.0 - (ResidSumSq / TotalSumSq);
@@ -1548,7 +2344,7 @@ public class MatrixExtension
     }
   }
 
-  public static class Regress implements Reporter {
+  public class Regress implements Reporter {
     // This reporter sets up and solves a linear OLS regression.
     // The input is LogoMatrix, with the first column being the observations on the
     // dependent variable and each subsequent column being the observations on the
@@ -1573,30 +2369,91 @@ public class MatrixExtension
         throws ExtensionException, LogoException {
 
       LogoMatrix mat = getMatrixFromArgument(args[0]);
-      Jama.Matrix X = mat.matrix.copy();
-      int numObsv = X.getRowDimension();
-      int numVars = X.getColumnDimension() - 1;
+      int numObsv = mat.rows();
+      int numVars = mat.cols() - 1;
 
       if (numVars >= numObsv) {
         throw new org.nlogo.api.ExtensionException(
             "The system is overdetermined.");
       }
+      if (mat.storage.outOfCore()) {
+        return regressOutOfCore(mat.storage);
+      }
 
-      Jama.Matrix Y = new Jama.Matrix(numObsv, 1);
+      Jama.Matrix X = mat.matrix().copy();
+
+      double[] y = new double[numObsv];
       for (int i = 0; i < numObsv; i++) {
-        Y.set(i, 0, X.get(i, 0));
+        y[i] = X.get(i, 0);
         X.set(i, 0, 1.0);
       }
-      Jama.Matrix A = X.solve(Y);
+      Jama.Matrix Y = new Jama.Matrix(y, numObsv);
+      Jama.Matrix A = Backend.current().solve(X, Y);
 
       // A is now a numVars x 1 matrix of coefficients a(0) ... a(numVars).
       // Find R^2 for the regression.  Could eventually add more stats.
-      Jama.Matrix Ysum = new Jama.Matrix(1, numObsv, 1.0).times(Y);
-      double Ybar = Ysum.get(0, 0) / numObsv;
-      Jama.Matrix Ydiff = Y.minus(new Jama.Matrix(numObsv, 1, Ybar));
-      double TotalSumSq = ((Ydiff.transpose()).times(Ydiff)).get(0, 0);
-      Jama.Matrix Resid = (X.times(A)).minus(Y);
-      double ResidSumSq = ((Resid.transpose()).times(Resid)).get(0, 0);
+      double[] sumsSq = sumsOfSquares(y, X, A);
+      double TotalSumSq = sumsSq[0];
+      double ResidSumSq = sumsSq[1];
+      return regressionResult(A, TotalSumSq, ResidSumSq);
+    }
+
+    // For a matrix kept out of the heap, the least squares problem is solved
+    // through the normal equations (X'X)A = X'Y instead: X'X and X'Y are
+    // accumulated in one pass over the rows, and the sums of squares in a
+    // second one, so only the small (numVars + 1) square system is ever
+    // held on the heap.  This squares the condition number of the problem,
+    // which is fine for the tall, well-conditioned data sets that are big
+    // enough to be kept on disk.
+    private LogoList regressOutOfCore(MatrixStorage storage) throws ExtensionException {
+      int numObsv = storage.rows();
+      int numCols = storage.cols();
+      double[][] XtX = new double[numCols][numCols];
+      double[][] XtY = new double[numCols][1];
+      double Ysum = 0.0;
+      double[] row = new double[numCols];
+      for (int i = 0; i < numObsv; i++) {
+        storage.getRow(i, 0, row, 0, numCols);
+        double y = row[0];
+        row[0] = 1.0;
+        Ysum += y;
+        for (int j = 0; j < numCols; j++) {
+          XtY[j][0] += row[j] * y;
+          for (int k = j; k < numCols; k++) {
+            XtX[j][k] += row[j] * row[k];
+          }
+        }
+      }
+      for (int j = 0; j < numCols; j++) {
+        for (int k = 0; k < j; k++) {
+          XtX[j][k] = XtX[k][j];
+        }
+      }
+      Jama.Matrix A;
+      try {
+        A = Backend.current().solve(new Jama.Matrix(XtX), new Jama.Matrix(XtY));
+      } catch (RuntimeException e) {
+        throw new ExtensionException(e.getMessage());
+      }
+
+      double[] coefficients = A.getColumnPackedCopy();
+      double Ybar = Ysum / numObsv;
+      double TotalSumSq = 0.0;
+      double ResidSumSq = 0.0;
+      for (int i = 0; i < numObsv; i++) {
+        storage.getRow(i, 0, row, 0, numCols);
+        double y = row[0];
+        double fitted = coefficients[0];
+        for (int j = 1; j < numCols; j++) {
+          fitted += coefficients[j] * row[j];
+        }
+        TotalSumSq += (y - Ybar) * (y - Ybar);
+        ResidSumSq += (fitted - y) * (fitted - y);
+      }
+      return regressionResult(A, TotalSumSq, ResidSumSq);
+    }
+
+    private LogoList regressionResult(Jama.Matrix A, double TotalSumSq, double ResidSumSq) {
       double RSquared = 1.0 - (ResidSumSq / TotalSumSq);
 
       LogoListBuilder stats = new LogoListBuilder();
@@ -1604,11 +2461,885 @@ public class MatrixExtension
       stats.add(TotalSumSq);
       stats.add(ResidSumSq);
 
-      LogoList returnList = convertArrayToNestedLogoList(A.transpose().getArray());
+      LogoList returnList = convertArrayToNestedColumnLogoList(A.getArray());
       LogoListBuilder result = new LogoListBuilder();
       result.addAll(returnList);
       result.add(stats.toLogoList());
       return result.toLogoList();
     }
   }
+
+  public class FromPatches implements Reporter {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.reporterSyntax(new int[]{Syntax.StringType(),
+          Syntax.WildcardType() | Syntax.RepeatableType()},
+          Syntax.WildcardType(), 1);
+    }
+
+    @Override
+    public Object report(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      org.nlogo.api.World world = context.world();
+      int vn = AgentData.patchVariableIndex(world, args[0].getString());
+      if (args.length > 1) {
+        // refill an existing matrix in place, rather than allocating a new one every tick
+        LogoMatrix mat = getMatrixFromArgument(args[1]);
+        AgentData.checkWorldDimensions(world, mat.rows(), mat.cols());
+        AgentData.gatherPatches(world, vn, mat.writable());
+        return mat;
+      }
+      MatrixStorage storage = new HeapStorage(world.worldHeight(), world.worldWidth());
+      return new LogoMatrix(AgentData.gatherPatches(world, vn, storage));
+    }
+  }
+
+  public class ToPatches implements Command {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.commandSyntax(new int[]{Syntax.WildcardType(),
+          Syntax.StringType()});
+    }
+
+    @Override
+    public void perform(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      LogoMatrix mat = getMatrixFromArgument(args[0]);
+      org.nlogo.api.World world = context.world();
+      int vn = AgentData.patchVariableIndex(world, args[1].getString());
+      AgentData.checkWorldDimensions(world, mat.rows(), mat.cols());
+      AgentData.scatterPatches(world, vn, mat.storage);
+    }
+  }
+
+  // Variable names may be given either as a single string or as a list of strings.
+  private static String[] getVariableNamesFromArgument(Argument arg) throws ExtensionException, LogoException {
+    Object obj = arg.get();
+    if (obj instanceof String) {
+      return new String[]{(String) obj};
+    }
+    LogoList names = arg.getList();
+    if (names.size() == 0) {
+      throw new ExtensionException("The list of variable names is empty.");
+    }
+    String[] result = new String[names.size()];
+    for (int i = 0; i < result.length; i++) {
+      Object name = names.get(i);
+      if (!(name instanceof String)) {
+        throw new ExtensionException("Expected a list of variable names, but item " + i + " is "
+            + org.nlogo.api.Dump.logoObject(name) + ".");
+      }
+      result[i] = (String) name;
+    }
+    return result;
+  }
+
+  public class FromAgentSet implements Reporter {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.reporterSyntax(new int[]{Syntax.AgentsetType(),
+          Syntax.StringType() | Syntax.ListType()},
+          Syntax.WildcardType());
+    }
+
+    @Override
+    public Object report(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      org.nlogo.api.Agent[] agents = AgentData.sortedAgents(args[0].getAgentSet());
+      String[] names = getVariableNamesFromArgument(args[1]);
+      if (agents.length == 0) {
+        throw new ExtensionException("The agentset is empty.");
+      }
+      return new LogoMatrix(new Jama.Matrix(AgentData.gatherAgents(context.world(), agents, names)));
+    }
+  }
+
+  public class ToAgentSet implements Command {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.commandSyntax(new int[]{Syntax.WildcardType(),
+          Syntax.AgentsetType(),
+          Syntax.StringType() | Syntax.ListType()});
+    }
+
+    @Override
+    public void perform(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      LogoMatrix mat = getMatrixFromArgument(args[0]);
+      org.nlogo.api.Agent[] agents = AgentData.sortedAgents(args[1].getAgentSet());
+      String[] names = getVariableNamesFromArgument(args[2]);
+      int numRows = mat.rows();
+      int numCols = mat.cols();
+      if (numRows != agents.length || numCols != names.length) {
+        throw new ExtensionException("The matrix must have one row per agent and one column per variable ("
+            + agents.length + "x" + names.length + "), but it is " + numRows + "x" + numCols + ".");
+      }
+      AgentData.scatterAgents(context.world(), agents, names, mat.storage);
+    }
+  }
+
+  public class FromLinks implements Reporter {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.reporterSyntax(new int[]{Syntax.LinksetType(),
+          Syntax.WildcardType() | Syntax.RepeatableType()},
+          Syntax.WildcardType(), 1);
+    }
+
+    @Override
+    public Object report(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      org.nlogo.api.AgentSet links = args[0].getAgentSet();
+      String weightName = null;
+      if (args.length > 1) {
+        Object weight = args[1].get();
+        if (!(weight instanceof String)) {
+          throw new ExtensionException("The second input to matrix:from-links must be the name of a link variable, "
+              + "or \"\" for an unweighted matrix.");
+        }
+        if (!((String) weight).isEmpty()) {
+          weightName = (String) weight;
+        }
+      }
+      org.nlogo.api.Agent[] nodes = null;
+      if (args.length > 2) {
+        Object given = args[2].get();
+        if (given instanceof org.nlogo.api.AgentSet) {
+          nodes = AgentData.sortedAgents((org.nlogo.api.AgentSet) given);
+        } else if (given instanceof LogoList) {
+          // a list keeps its order
+          LogoList list = (LogoList) given;
+          nodes = new org.nlogo.api.Agent[list.size()];
+          for (int i = 0; i < nodes.length; i++) {
+            Object item = list.get(i);
+            if (!(item instanceof org.nlogo.api.Turtle)) {
+              throw new ExtensionException("Expected a list of turtles, but item " + i + " is "
+                  + org.nlogo.api.Dump.logoObject(item) + ".");
+            }
+            nodes[i] = (org.nlogo.api.Agent) item;
+          }
+        } else {
+          throw new ExtensionException("The third input to matrix:from-links must be a turtleset or a list of turtles.");
+        }
+      }
+      return new LogoMatrix(new Jama.Matrix(AgentData.adjacency(context.world(), links, nodes, weightName)));
+    }
+  }
+
+  public class Convolve implements Reporter {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.reporterSyntax(new int[]{Syntax.WildcardType(), Syntax.WildcardType(),
+          Syntax.StringType() | Syntax.RepeatableType()},
+          Syntax.WildcardType(), 2);
+    }
+
+    @Override
+    public Object report(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      LogoMatrix mat = getMatrixFromArgument(args[0]);
+      LogoMatrix kernel = getMatrixFromArgument(args[1]);
+      Convolution.Boundary boundary = Convolution.Boundary.ZERO;
+      if (args.length > 2) {
+        try {
+          boundary = Convolution.Boundary.fromName(args[2].getString());
+        } catch (IllegalArgumentException e) {
+          throw new ExtensionException(e.getMessage());
+        }
+      }
+      try {
+        return new LogoMatrix(new Jama.Matrix(
+            Convolution.convolve(mat.matrix().getArray(), kernel.matrix().getArray(), boundary)));
+      } catch (MatrixMemory.LimitException ex) {
+        throw new ExtensionException(ex.getMessage());
+      }
+    }
+  }
+
+  private static java.nio.file.Path resolvePath(String filename, Context context) throws ExtensionException {
+    try {
+      return java.nio.file.Paths.get(context.attachCurrentDirectory(filename));
+    } catch (java.net.MalformedURLException ex) {
+      throw new ExtensionException(ex);
+    }
+  }
+
+  public class SaveNpy implements Command {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.commandSyntax(new int[]{Syntax.WildcardType(),
+          Syntax.StringType(),
+          Syntax.StringType() | Syntax.RepeatableType()}, 2);
+    }
+
+    @Override
+    public void perform(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      LogoMatrix mat = getMatrixFromArgument(args[0]);
+      Npy.DType dtype = Npy.DType.FLOAT64;
+      if (args.length > 2) {
+        try {
+          dtype = Npy.DType.fromName(args[2].getString());
+        } catch (IllegalArgumentException e) {
+          throw new ExtensionException(e.getMessage());
+        }
+      }
+      java.nio.file.Path path = resolvePath(args[1].getString(), context);
+      try {
+        Npy.save(path, mat.storage, dtype);
+      } catch (java.io.IOException ex) {
+        throw new ExtensionException("Could not save " + path + ": " + ex.getMessage(), ex);
+      }
+    }
+  }
+
+  public class LoadNpy implements Reporter {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.reporterSyntax(new int[]{Syntax.StringType()},
+          Syntax.WildcardType());
+    }
+
+    @Override
+    public Object report(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      java.nio.file.Path path = resolvePath(args[0].getString(), context);
+      try {
+        return new LogoMatrix(new Jama.Matrix(Npy.load(path)));
+      } catch (java.nio.file.NoSuchFileException ex) {
+        throw new ExtensionException("File not found: " + path);
+      } catch (java.io.IOException ex) {
+        throw new ExtensionException("Could not load " + path + ": " + ex.getMessage(), ex);
+      }
+    }
+  }
+
+  private static char getDelimiterFromArgument(Argument args[], int index) throws ExtensionException, LogoException {
+    if (args.length <= index) {
+      return ',';
+    }
+    String delimiter = args[index].getString();
+    if (delimiter.length() != 1 || delimiter.charAt(0) == '\n' || delimiter.charAt(0) == '"'
+        || delimiter.charAt(0) > 127) {
+      throw new ExtensionException("The delimiter must be a single character, but got \"" + delimiter + "\".");
+    }
+    return delimiter.charAt(0);
+  }
+
+  private static ExtensionException readFailure(java.nio.file.Path path, Exception ex) {
+    if (ex instanceof java.nio.file.NoSuchFileException) {
+      return new ExtensionException("File not found: " + path);
+    } else if (ex instanceof TextFiles.ParseException) {
+      long line = ((TextFiles.ParseException) ex).line;
+      return new ExtensionException("Could not read " + path + (line > 0 ? ", line " + line : "") + ": " + ex.getMessage());
+    }
+    return new ExtensionException("Could not read " + path + ": " + ex.getMessage(), ex);
+  }
+
+  public class ReadCsv implements Reporter {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.reporterSyntax(new int[]{Syntax.StringType(),
+          Syntax.StringType() | Syntax.RepeatableType()},
+          Syntax.WildcardType(), 1);
+    }
+
+    @Override
+    public Object report(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      char delimiter = getDelimiterFromArgument(args, 1);
+      java.nio.file.Path path = resolvePath(args[0].getString(), context);
+      try {
+        return new LogoMatrix(new Jama.Matrix(TextFiles.readCsv(path, delimiter)));
+      } catch (java.io.IOException | TextFiles.ParseException ex) {
+        throw readFailure(path, ex);
+      } catch (MatrixMemory.LimitException ex) {
+        throw new ExtensionException(ex.getMessage());
+      }
+    }
+  }
+
+  public class WriteCsv implements Command {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.commandSyntax(new int[]{Syntax.WildcardType(),
+          Syntax.StringType(),
+          Syntax.StringType() | Syntax.RepeatableType()}, 2);
+    }
+
+    @Override
+    public void perform(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      LogoMatrix mat = getMatrixFromArgument(args[0]);
+      char delimiter = getDelimiterFromArgument(args, 2);
+      java.nio.file.Path path = resolvePath(args[1].getString(), context);
+      try {
+        TextFiles.writeCsv(path, mat.storage, delimiter);
+      } catch (java.io.IOException ex) {
+        throw new ExtensionException("Could not write " + path + ": " + ex.getMessage(), ex);
+      }
+    }
+  }
+
+  public class ReadMatrixMarket implements Reporter {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.reporterSyntax(new int[]{Syntax.StringType()},
+          Syntax.WildcardType());
+    }
+
+    @Override
+    public Object report(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      java.nio.file.Path path = resolvePath(args[0].getString(), context);
+      try {
+        return new LogoMatrix(new Jama.Matrix(TextFiles.readMatrixMarket(path)));
+      } catch (java.io.IOException | TextFiles.ParseException ex) {
+        throw readFailure(path, ex);
+      } catch (MatrixMemory.LimitException ex) {
+        throw new ExtensionException(ex.getMessage());
+      }
+    }
+  }
+
+  public class WriteMatrixMarket implements Command {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.commandSyntax(new int[]{Syntax.WildcardType(),
+          Syntax.StringType()});
+    }
+
+    @Override
+    public void perform(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      LogoMatrix mat = getMatrixFromArgument(args[0]);
+      java.nio.file.Path path = resolvePath(args[1].getString(), context);
+      try {
+        TextFiles.writeMatrixMarket(path, mat.storage);
+      } catch (java.io.IOException ex) {
+        throw new ExtensionException("Could not write " + path + ": " + ex.getMessage(), ex);
+      }
+    }
+  }
+
+  public class MakeDiskBacked implements Reporter {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.reporterSyntax(new int[]{Syntax.NumberType(), Syntax.NumberType()},
+          Syntax.WildcardType());
+    }
+
+    @Override
+    public Object report(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      int numRows = args[0].getIntValue();
+      int numCols = args[1].getIntValue();
+      if (numRows <= 0 || numCols <= 0) {
+        throw new ExtensionException("A disk-backed matrix must have at least one row and one column, but "
+            + numRows + "x" + numCols + " was requested.");
+      }
+      try {
+        return new LogoMatrix(MappedStorage.createTemporary(numRows, numCols));
+      } catch (java.io.IOException ex) {
+        throw new ExtensionException("Could not create a disk-backed matrix: " + ex.getMessage(), ex);
+      }
+    }
+  }
+
+  public class OpenNpy implements Reporter {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.reporterSyntax(new int[]{Syntax.StringType()},
+          Syntax.WildcardType());
+    }
+
+    @Override
+    public Object report(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      java.nio.file.Path path = resolvePath(args[0].getString(), context);
+      try {
+        return new LogoMatrix(MappedStorage.openNpy(path));
+      } catch (java.nio.file.NoSuchFileException ex) {
+        throw new ExtensionException("File not found: " + path);
+      } catch (java.io.IOException ex) {
+        throw new ExtensionException("Could not open " + path + ": " + ex.getMessage(), ex);
+      }
+    }
+  }
+
+  public class Storage implements Reporter {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.reporterSyntax(new int[]{Syntax.WildcardType()},
+          Syntax.StringType());
+    }
+
+    @Override
+    public Object report(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      return getMatrixFromArgument(args[0]).storage.kind();
+    }
+  }
+
+  public class SetOffHeapThreshold implements Command {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.commandSyntax(new int[]{Syntax.NumberType()});
+    }
+
+    @Override
+    public void perform(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      double elements = args[0].getDoubleValue();
+      if (elements < 0) {
+        throw new ExtensionException("The off-heap threshold must not be negative, but got " + org.nlogo.api.Dump.number(elements) + ".");
+      }
+      OffHeapStorage.setThreshold((long) StrictMath.ceil(elements));
+    }
+  }
+
+  public class SetOffHeapLimit implements Command {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.commandSyntax(new int[]{Syntax.NumberType()});
+    }
+
+    @Override
+    public void perform(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      double megabytes = args[0].getDoubleValue();
+      if (megabytes < 0) {
+        throw new ExtensionException("The off-heap limit must not be negative, but got " + org.nlogo.api.Dump.number(megabytes) + ".");
+      }
+      OffHeapStorage.setLimit((long) StrictMath.min(megabytes * 1048576, Long.MAX_VALUE));
+    }
+  }
+
+  public class MemoryUsage implements Reporter {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.reporterSyntax(new int[]{}, Syntax.ListType());
+    }
+
+    @Override
+    public Object report(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      MatrixMemory memory = state.memory;
+      // counts the storage made from the first call on
+      memory.start();
+      LogoListBuilder result = new LogoListBuilder();
+      result.add(memoryEntry("elements", memory.elements.get()));
+      result.add(memoryEntry("heap-storages", memory.counts[0].get()));
+      result.add(memoryEntry("heap-bytes", memory.heapBytes.get()));
+      result.add(memoryEntry("off-heap-storages", memory.counts[1].get()));
+      result.add(memoryEntry("off-heap-bytes", memory.offHeapBytes.get()));
+      result.add(memoryEntry("disk-storages", memory.counts[2].get()));
+      result.add(memoryEntry("disk-bytes", memory.diskBytes.get()));
+      result.add(memoryEntry("limit-bytes", memory.limit()));
+      return result.toLogoList();
+    }
+
+    private LogoList memoryEntry(String key, long value) {
+      LogoListBuilder entry = new LogoListBuilder();
+      entry.add(key);
+      entry.add(Double.valueOf(value));
+      return entry.toLogoList();
+    }
+  }
+
+  public class SetMemoryLimit implements Command {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.commandSyntax(new int[]{Syntax.NumberType()});
+    }
+
+    @Override
+    public void perform(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      double megabytes = args[0].getDoubleValue();
+      if (megabytes < 0) {
+        throw new ExtensionException("The memory limit must not be negative, but got " + org.nlogo.api.Dump.number(megabytes) + ".");
+      }
+      state.memory.setLimit((long) StrictMath.min(megabytes * 1048576, Long.MAX_VALUE));
+    }
+  }
+
+  public class SetBackend implements Command {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.commandSyntax(new int[]{Syntax.StringType()});
+    }
+
+    @Override
+    public void perform(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      try {
+        Backend.select(args[0].getString());
+      } catch (IllegalArgumentException ex) {
+        throw new ExtensionException(ex.getMessage());
+      }
+    }
+  }
+
+  public class BackendName implements Reporter {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.reporterSyntax(new int[]{}, Syntax.StringType());
+    }
+
+    @Override
+    public Object report(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      return Backend.current().name();
+    }
+  }
+
+  public class SetThreads implements Command {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.commandSyntax(new int[]{Syntax.NumberType()});
+    }
+
+    @Override
+    public void perform(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      int n = args[0].getIntValue();
+      if (n < 0) {
+        throw new ExtensionException("The number of threads must not be negative, but got " + n + ".");
+      }
+      Workers.setThreads(n);
+    }
+  }
+
+  public class Threads implements Reporter {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.reporterSyntax(new int[]{}, Syntax.NumberType());
+    }
+
+    @Override
+    public Object report(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      return Double.valueOf(Workers.threads());
+    }
+  }
+
+  public class AsyncSolve implements Reporter {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.reporterSyntax(new int[]{Syntax.WildcardType(), Syntax.WildcardType()},
+          Syntax.WildcardType());
+    }
+
+    @Override
+    public Object report(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      MatrixStorage a = getMatrixFromArgument(args[0]).storage.share();
+      MatrixStorage b = getMatrixFromArgument(args[1]).storage.share();
+      Backend backend = Backend.current();
+      return MatrixFuture.start("solve", () -> backend.solve(a.toJama(), b.toJama()), a, b);
+    }
+  }
+
+  public class AsyncInverse implements Reporter {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.reporterSyntax(new int[]{Syntax.WildcardType()},
+          Syntax.WildcardType());
+    }
+
+    @Override
+    public Object report(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      MatrixStorage a = getMatrixFromArgument(args[0]).storage.share();
+      Backend backend = Backend.current();
+      return MatrixFuture.start("inverse", () -> backend.inverse(a.toJama()), a);
+    }
+  }
+
+  public class AsyncEigen implements Reporter {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.reporterSyntax(new int[]{Syntax.WildcardType()},
+          Syntax.WildcardType());
+    }
+
+    @Override
+    public Object report(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      MatrixStorage a = getMatrixFromArgument(args[0]).storage.share();
+      Backend backend = Backend.current();
+      return MatrixFuture.start("eigen", () -> backend.eig(a.toJama()), a);
+    }
+  }
+
+  public class Ready implements Reporter {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.reporterSyntax(new int[]{Syntax.WildcardType()},
+          Syntax.BooleanType());
+    }
+
+    @Override
+    public Object report(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      return Boolean.valueOf(getFutureFromArgument(args[0]).isDone());
+    }
+  }
+
+  public class Await implements Reporter {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.reporterSyntax(new int[]{Syntax.WildcardType()},
+          Syntax.WildcardType());
+    }
+
+    @Override
+    public Object report(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      MatrixFuture future = getFutureFromArgument(args[0]);
+      // the same result every time, like any other value
+      Object reported = future.reported();
+      if (reported != null) {
+        return reported;
+      }
+      Object value;
+      try {
+        value = future.get();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new ExtensionException("Interrupted while waiting for a matrix result.");
+      } catch (java.util.concurrent.ExecutionException ex) {
+        Throwable cause = ex.getCause();
+        throw new ExtensionException(cause.getMessage() != null ? cause.getMessage() : cause.toString());
+      }
+      if (value instanceof Backend.Eigen) {
+        Backend.Eigen eigen = (Backend.Eigen) value;
+        LogoListBuilder result = new LogoListBuilder();
+        result.add(numberList(eigen.realValues));
+        result.add(numberList(eigen.imagValues));
+        result.add(new LogoMatrix(eigen.vectors));
+        reported = result.toLogoList();
+      } else {
+        reported = new LogoMatrix((Jama.Matrix) value);
+      }
+      future.setReported(reported);
+      return reported;
+    }
+
+    private LogoList numberList(double[] values) {
+      LogoListBuilder list = new LogoListBuilder();
+      for (double d : values) {
+        list.add(Double.valueOf(d));
+      }
+      return list.toLogoList();
+    }
+  }
+
+  public class WithArena implements Command {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.commandSyntax(new int[]{Syntax.CommandType()});
+    }
+
+    @Override
+    public void perform(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      org.nlogo.api.AnonymousCommand body = args[0].getCommand();
+      arena.enter();
+      try {
+        body.perform(context, new Object[0]);
+      } finally {
+        arena.exit();
+      }
+    }
+  }
+
+  // The matrices of an input to a batch primitive (see Batch): a list of
+  // matrices of the same dimensions or, where one matrix may be used with
+  // every matrix of the other input, a single matrix, as a batch of one.
+  private static double[][][] getBatchFromArgument(Argument arg, boolean singleAllowed)
+      throws ExtensionException, LogoException {
+    Object obj = arg.get();
+    if (singleAllowed && obj instanceof LogoMatrix) {
+      return new double[][][]{((LogoMatrix) obj).matrix().getArray()};
+    }
+    if (!(obj instanceof LogoList)) {
+      throw new ExtensionException("Expected a list of matrices, but got " + org.nlogo.api.Dump.logoObject(obj) + ".");
+    }
+    LogoList list = (LogoList) obj;
+    double[][][] batch = new double[list.size()][][];
+    for (int i = 0; i < batch.length; i++) {
+      Object item = list.get(i);
+      if (!(item instanceof LogoMatrix)) {
+        throw new ExtensionException("Expected a list of matrices, but item " + i + " is "
+            + org.nlogo.api.Dump.logoObject(item) + ".");
+      }
+      LogoMatrix mat = (LogoMatrix) item;
+      LogoMatrix first = (LogoMatrix) list.get(0);
+      if (mat.rows() != first.rows() || mat.cols() != first.cols()) {
+        throw new ExtensionException("All the matrices in the list must have the same dimensions, but item 0 is "
+            + first.rows() + "x" + first.cols() + " and item " + i + " is " + mat.rows() + "x" + mat.cols() + ".");
+      }
+      batch[i] = mat.matrix().getArray();
+    }
+    return batch;
+  }
+
+  // The number of results of a batch primitive with two inputs.
+  private static int batchCount(Argument[] args, double[][][] a, double[][][] b)
+      throws ExtensionException, LogoException {
+    if (args[0].get() instanceof LogoMatrix) {
+      return b.length;
+    } else if (args[1].get() instanceof LogoMatrix) {
+      return a.length;
+    } else if (a.length != b.length) {
+      throw new ExtensionException("The lists must have the same number of matrices, but have "
+          + a.length + " and " + b.length + ".");
+    }
+    return a.length;
+  }
+
+  private LogoList toLogoList(Jama.Matrix[] results) throws ExtensionException {
+    LogoListBuilder list = new LogoListBuilder();
+    for (Jama.Matrix result : results) {
+      list.add(new LogoMatrix(result));
+    }
+    return list.toLogoList();
+  }
+
+  public class BatchTimes implements Reporter {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.reporterSyntax(new int[]{Syntax.WildcardType(), Syntax.WildcardType()},
+          Syntax.ListType());
+    }
+
+    @Override
+    public Object report(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      double[][][] a = getBatchFromArgument(args[0], true);
+      double[][][] b = getBatchFromArgument(args[1], true);
+      int count = batchCount(args, a, b);
+      if (count == 0) {
+        return new LogoListBuilder().toLogoList();
+      }
+      if (a[0][0].length != b[0].length) {
+        throw new ExtensionException("Matrix inner dimensions must agree.");
+      }
+      return toLogoList(Batch.times(a, b, count));
+    }
+  }
+
+  public class BatchDet implements Reporter {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.reporterSyntax(new int[]{Syntax.ListType()},
+          Syntax.ListType());
+    }
+
+    @Override
+    public Object report(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      double[][][] a = getBatchFromArgument(args[0], false);
+      if (a.length == 0) {
+        return new LogoListBuilder().toLogoList();
+      }
+      if (a[0].length != a[0][0].length) {
+        throw new ExtensionException("Matrix must be square.");
+      }
+      LogoListBuilder list = new LogoListBuilder();
+      for (double det : Batch.det(a)) {
+        list.add(Double.valueOf(det));
+      }
+      return list.toLogoList();
+    }
+  }
+
+  public class BatchInverse implements Reporter {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.reporterSyntax(new int[]{Syntax.ListType()},
+          Syntax.ListType());
+    }
+
+    @Override
+    public Object report(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      double[][][] a = getBatchFromArgument(args[0], false);
+      if (a.length == 0) {
+        return new LogoListBuilder().toLogoList();
+      }
+      int numRows = a[0].length;
+      try {
+        if (numRows != a[0][0].length) {
+          // least squares, as by matrix:inverse
+          return toLogoList(Batch.solve(a, new double[][][]{Jama.Matrix.identity(numRows, numRows).getArray()}, a.length));
+        }
+        return toLogoList(Batch.inverse(a));
+      } catch (RuntimeException ex) {
+        throw new ExtensionException(ex.getMessage());
+      }
+    }
+  }
+
+  public class BatchSolve implements Reporter {
+
+    @Override
+    public Syntax getSyntax() {
+      return SyntaxJ.reporterSyntax(new int[]{Syntax.WildcardType(), Syntax.WildcardType()},
+          Syntax.ListType());
+    }
+
+    @Override
+    public Object report(Argument args[], Context context)
+        throws ExtensionException, LogoException {
+      double[][][] a = getBatchFromArgument(args[0], true);
+      double[][][] b = getBatchFromArgument(args[1], true);
+      int count = batchCount(args, a, b);
+      if (count == 0) {
+        return new LogoListBuilder().toLogoList();
+      }
+      if (a[0].length != b[0].length) {
+        throw new ExtensionException("Matrix row dimensions must agree.");
+      }
+      try {
+        return toLogoList(Batch.solve(a, b, count));
+      } catch (RuntimeException ex) {
+        throw new ExtensionException(ex.getMessage());
+      }
+    }
+  }
 }
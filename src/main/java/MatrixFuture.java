@@ -0,0 +1,96 @@
+package org.nlogo.extensions.matrix;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * The result of matrix:async-solve, matrix:async-inverse or
+ * matrix:async-eigen: a computation running on the worker threads (see
+ * Workers) while the model goes on.
+ *
+ * The computation works on snapshots of its inputs, taken by sharing their
+ * storage (see MatrixStorage.share()), so the model may change the input
+ * matrices meanwhile without copying them up front; a change copies the
+ * storage only if the computation is still holding it.  The snapshots are
+ * given up as soon as the computation ends.  Its value -- a Jama.Matrix,
+ * or a Backend.Eigen -- is turned into NetLogo values by matrix:await, on
+ * the model's own thread.
+ */
+final class MatrixFuture implements org.nlogo.core.ExtensionObject {
+
+  private final String operation;
+  private final Future<Object> task;
+  // the NetLogo value of the result, once matrix:await has made it
+  private volatile Object reported = null;
+
+  private MatrixFuture(String operation, Future<Object> task) {
+    this.operation = operation;
+    this.task = task;
+  }
+
+  /** Starts the computation, which gives up the snapshots when it ends. */
+  static MatrixFuture start(String operation, Callable<Object> computation, MatrixStorage... snapshots) {
+    return new MatrixFuture(operation, Workers.submit(() -> {
+      try {
+        return computation.call();
+      } finally {
+        for (MatrixStorage snapshot : snapshots) {
+          snapshot.release();
+        }
+      }
+    }));
+  }
+
+  /**
+   * A future read back from an exported world.  The computation didn't
+   * survive the export, so awaiting it fails.
+   */
+  static MatrixFuture imported(String value) {
+    String operation = value.trim().split(" ")[0];
+    return new MatrixFuture(operation, CompletableFuture.failedFuture(new IllegalStateException(
+        "This matrix:async-" + operation + " was exported with the world, and its result can't be imported. "
+        + "Start it again.")));
+  }
+
+  boolean isDone() {
+    return task.isDone();
+  }
+
+  /**
+   * Waits for the computation, and reports its value.  Its failure, if it
+   * fails, is thrown as an ExecutionException.
+   */
+  Object get() throws ExecutionException, InterruptedException {
+    return task.get();
+  }
+
+  Object reported() {
+    return reported;
+  }
+
+  void setReported(Object value) {
+    reported = value;
+  }
+
+  @Override
+  public String dump(boolean readable, boolean exporting, boolean reference) {
+    return operation + (task.isDone() ? " ready" : " running");
+  }
+
+  @Override
+  public String getExtensionName() {
+    return "matrix";
+  }
+
+  @Override
+  public String getNLTypeName() {
+    return "future";
+  }
+
+  @Override
+  public boolean recursivelyEqual(Object o) {
+    return this == o;
+  }
+}
@@ -0,0 +1,147 @@
+package org.nlogo.extensions.matrix;
+
+import java.lang.ref.Cleaner;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accounting of the memory held by a workspace's live matrices, behind
+ * matrix:memory-usage, and the optional ceiling set with
+ * matrix:set-memory-limit.  Each workspace has its own (see
+ * WorkspaceState).
+ *
+ * Counting costs a Cleaner registration per storage, which the many small
+ * temporaries of a model would pay on every primitive call, so it only
+ * starts once the model first asks for memory-usage or sets a limit, and
+ * the storage made before that isn't counted.  From then on every storage
+ * that a matrix comes to use is tracked once, however many matrices share
+ * it, until a Cleaner finds it unreachable.  Heap and off-heap storage
+ * count against the ceiling; disk-backed storage doesn't.
+ *
+ * Primitives call check() before they allocate, so a matrix that would go
+ * over the ceiling is refused before it takes any memory.  The ceiling is
+ * compared with the storage still counted, which includes storage that is
+ * unreachable but hasn't been collected yet; the garbage collector isn't
+ * run to make room.
+ */
+final class MatrixMemory {
+
+  private static final Cleaner CLEANER = Cleaner.create();
+
+  /** Thrown by check() and track(); primitives report it as an ExtensionException. */
+  static final class LimitException extends IllegalStateException {
+    LimitException(String message) {
+      super(message);
+    }
+  }
+
+  final AtomicLong elements = new AtomicLong();
+  final AtomicLong heapBytes = new AtomicLong();
+  final AtomicLong offHeapBytes = new AtomicLong();
+  final AtomicLong diskBytes = new AtomicLong();
+  final AtomicLong[] counts = {new AtomicLong(), new AtomicLong(), new AtomicLong()};
+
+  private volatile boolean counting = false;
+  // 0 for no ceiling
+  private volatile long limit = 0;
+
+  /** The accounting of the workspace the calling thread works for. */
+  static MatrixMemory current() {
+    return WorkspaceState.current().memory;
+  }
+
+  /** Starts counting the storage made from now on. */
+  void start() {
+    counting = true;
+  }
+
+  void setLimit(long bytes) {
+    limit = bytes;
+    counting = true;
+  }
+
+  long limit() {
+    return limit;
+  }
+
+  long memoryBytes() {
+    return heapBytes.get() + offHeapBytes.get();
+  }
+
+  /**
+   * Approximately how many bytes of memory (not counting disk) a matrix of
+   * this many rows and columns takes on the heap: the elements, plus the
+   * header of each row array.
+   */
+  static long heapBytes(long rows, long cols) {
+    return rows * cols * 8 + rows * 16 + 16;
+  }
+
+  /**
+   * Checks that a new heap matrix of this many rows and columns fits under
+   * the ceiling of the calling thread's workspace, before it is made.
+   */
+  static void checkHeap(long rows, long cols) {
+    current().check(heapBytes(rows, cols));
+  }
+
+  /** Checks that a new storage of the given number of bytes fits under the ceiling. */
+  void check(long bytes) {
+    long max = limit;
+    if (max > 0 && memoryBytes() + bytes > max) {
+      throw new LimitException("There is no room for another " + megabytes(bytes)
+          + " MB of matrices under the limit of " + megabytes(max) + " MB set with matrix:set-memory-limit.");
+    }
+  }
+
+  private static String megabytes(long bytes) {
+    return org.nlogo.api.Dump.number(StrictMath.round(bytes / 1048576.0 * 10) / 10.0);
+  }
+
+  /**
+   * Counts the storage, if counting has started and it isn't counted
+   * already, until it is garbage collected.  Fails with a LimitException
+   * if it takes the memory used above the ceiling (which only happens for
+   * storage that no check() was made for).
+   */
+  void track(MatrixStorage storage) {
+    if (!counting || storage.tracked) {
+      return;
+    }
+    int kind;
+    AtomicLong account;
+    long bytes;
+    long size;
+    if (storage instanceof ViewStorage) {
+      // the elements belong to the base storage
+      storage.tracked = true;
+      return;
+    } else if (storage instanceof MappedStorage) {
+      kind = 2;
+      account = diskBytes;
+      size = storage.size();
+      bytes = size * 8;
+    } else {
+      size = storage.size();
+      if (storage instanceof OffHeapStorage) {
+        kind = 1;
+        account = offHeapBytes;
+        bytes = size * 8;
+      } else {
+        kind = 0;
+        account = heapBytes;
+        // a vector is a single array
+        bytes = storage instanceof VectorStorage ? size * 8 + 16 : heapBytes(storage.rows(), storage.cols());
+      }
+      check(bytes);
+    }
+    storage.tracked = true;
+    counts[kind].incrementAndGet();
+    elements.addAndGet(size);
+    account.addAndGet(bytes);
+    CLEANER.register(storage, () -> {
+      counts[kind].decrementAndGet();
+      elements.addAndGet(-size);
+      account.addAndGet(-bytes);
+    });
+  }
+}
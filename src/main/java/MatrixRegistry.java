@@ -0,0 +1,91 @@
+package org.nlogo.extensions.matrix;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of the ids of matrices so that export-world and import-world
+ * can preserve references between agents and matrices.
+ *
+ * Entries are indexed by id and only hold weak references, so a matrix that
+ * nothing else refers to can still be garbage collected; the entries of
+ * collected matrices are dropped the next time the registry is touched.
+ * Iteration is in registration order, which keeps exported worlds stable.
+ * All methods are synchronized, so a registry may be shared by threads.
+ */
+class MatrixRegistry<T> {
+
+  private static class Entry<T> extends WeakReference<T> {
+    final long id;
+
+    Entry(T referent, long id, ReferenceQueue<? super T> queue) {
+      super(referent, queue);
+      this.id = id;
+    }
+  }
+
+  private final Map<Long, Entry<T>> entries = new LinkedHashMap<Long, Entry<T>>();
+  private final ReferenceQueue<T> queue = new ReferenceQueue<T>();
+  private long next = 0;
+
+  /**
+   * Reports a fresh id, never handed out before (since the last clear).
+   */
+  synchronized long nextId() {
+    return next++;
+  }
+
+  synchronized void register(T obj, long id) {
+    expunge();
+    entries.put(id, new Entry<T>(obj, id, queue));
+    next = StrictMath.max(next, id + 1);
+  }
+
+  /**
+   * Reports the object registered under the given id, or null.
+   */
+  synchronized T get(long id) {
+    expunge();
+    Entry<T> entry = entries.get(id);
+    return entry == null ? null : entry.get();
+  }
+
+  /**
+   * Reports the live registered objects, in the order they were registered.
+   */
+  synchronized List<T> values() {
+    expunge();
+    List<T> result = new ArrayList<T>(entries.size());
+    for (Iterator<Entry<T>> it = entries.values().iterator(); it.hasNext(); ) {
+      T obj = it.next().get();
+      if (obj == null) {
+        it.remove();
+      } else {
+        result.add(obj);
+      }
+    }
+    return result;
+  }
+
+  synchronized void clear() {
+    entries.clear();
+    while (queue.poll() != null) {
+      // the entries are already gone
+    }
+    next = 0;
+  }
+
+  @SuppressWarnings("unchecked")
+  private void expunge() {
+    Entry<T> entry;
+    while ((entry = (Entry<T>) queue.poll()) != null) {
+      // a newer registration under the same id must not be dropped
+      entries.remove(entry.id, entry);
+    }
+  }
+}
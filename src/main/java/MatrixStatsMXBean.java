@@ -0,0 +1,14 @@
+package org.nlogo.extensions.matrix;
+
+import java.util.List;
+
+/**
+ * The JMX view of matrix:stats, registered as
+ * org.nlogo.extensions.matrix:type=Stats when instrumentation is on (see
+ * Stats).
+ */
+public interface MatrixStatsMXBean {
+  List<PrimitiveSummary> getPrimitives();
+
+  void reset();
+}
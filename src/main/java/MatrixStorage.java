@@ -0,0 +1,354 @@
+package org.nlogo.extensions.matrix;
+
+import java.lang.ref.Cleaner;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Where the elements of a matrix live.
+ *
+ * Most matrices are kept on the heap in a Jama.Matrix (HeapStorage), and
+ * primitives that need Jama's algorithms use it directly; vectors may be
+ * kept in a single array instead (VectorStorage).  Other kinds of
+ * storage only have to provide element and row access; everything that can
+ * be done a row (or a tile) at a time -- getting and setting elements, rows
+ * and columns, element-wise arithmetic, and multiplication -- works on them
+ * without ever holding the whole matrix on the heap.  The remaining
+ * primitives copy the elements into a Jama.Matrix first (see toJama()).
+ */
+abstract class MatrixStorage {
+
+  private static final Cleaner CLEANER = Cleaner.create();
+
+  // How many matrices share this storage besides the first one; see share().
+  private final AtomicInteger sharers = new AtomicInteger();
+
+  // Whether MatrixMemory counts this storage already.
+  volatile boolean tracked = false;
+
+  // Results computed from out-of-core matrices are themselves kept out of
+  // core when they have at least this many elements; smaller ones (such as
+  // the p x p matrix X'X of a regression) come back to the heap.
+  static final long OUT_OF_CORE_RESULT_SIZE = 1L << 20;
+
+  // Side of the square tiles used by times() when either input is out of core.
+  static final int TILE = 256;
+
+  abstract int rows();
+
+  abstract int cols();
+
+  abstract double get(int row, int col);
+
+  abstract void set(int row, int col, double value);
+
+  /** Copies len elements of a row, starting at column col, into dest[offset..]. */
+  abstract void getRow(int row, int col, double[] dest, int offset, int len);
+
+  /** Copies src[offset..offset + len) into a row, starting at column col. */
+  abstract void setRow(int row, int col, double[] src, int offset, int len);
+
+  /**
+   * Reports the elements of a row.  For heap storage this is the backing
+   * row itself, so callers must treat it as read-only.
+   */
+  double[] getRow(int row) {
+    double[] result = new double[cols()];
+    getRow(row, 0, result, 0, result.length);
+    return result;
+  }
+
+  double[] getColumn(int col) {
+    double[] result = new double[rows()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = get(i, col);
+    }
+    return result;
+  }
+
+  /** Reports new, zeroed storage of the same kind. */
+  abstract MatrixStorage create(int rows, int cols);
+
+  /** A short name for the kind of storage, as reported by matrix:storage. */
+  abstract String kind();
+
+  /** Whether the elements are kept outside of the Java heap. */
+  boolean outOfCore() {
+    return false;
+  }
+
+  long size() {
+    return (long) rows() * cols();
+  }
+
+  /**
+   * Reports a Jama.Matrix holding the elements.  For heap storage this is
+   * the backing matrix itself, so callers must treat it as read-only; for
+   * any other storage it is a fresh copy.
+   */
+  Jama.Matrix toJama() {
+    int numRows = rows();
+    int numCols = cols();
+    double[][] dArray = new double[numRows][numCols];
+    for (int i = 0; i < numRows; i++) {
+      getRow(i, 0, dArray[i], 0, numCols);
+    }
+    return new Jama.Matrix(dArray, numRows, numCols);
+  }
+
+  /** Reports a copy of this storage, of the same kind. */
+  MatrixStorage copy() {
+    return copyRows(this, create(rows(), cols()));
+  }
+
+  /**
+   * Reports storage for another matrix with the same elements: this same
+   * storage, with one more sharer, when it can be shared, and a copy
+   * otherwise.  A matrix sharing storage must call unshare() before
+   * changing it, and release() when it stops using it, which for a matrix
+   * that is simply dropped happens when it is garbage collected (see
+   * hold()).
+   *
+   * The count is never too low, so a change never shows through in another
+   * matrix.  It is too high for a while after a matrix is dropped, until the
+   * garbage collector gets to it, and meanwhile the last matrix left makes a
+   * copy it didn't need.
+   */
+  MatrixStorage share() {
+    if (!shareable()) {
+      return copy();
+    }
+    sharers.incrementAndGet();
+    return this;
+  }
+
+  /**
+   * Whether share() may hand out this storage itself.  Storage whose
+   * changes are seen outside of NetLogo (an opened .npy file) is copied
+   * instead, so that it keeps following the matrix it was opened as.
+   */
+  boolean shareable() {
+    return true;
+  }
+
+  /**
+   * Reports storage that the caller may change without affecting any other
+   * matrix: this, if nobody else shares it, and otherwise a private copy
+   * (giving up the caller's share of this).
+   */
+  MatrixStorage unshare() {
+    while (true) {
+      int n = sharers.get();
+      if (n == 0) {
+        return this;
+      }
+      if (sharers.compareAndSet(n, n - 1)) {
+        return copy();
+      }
+    }
+  }
+
+  boolean isShared() {
+    return sharers.get() > 0;
+  }
+
+  /** Gives up a share of this storage, if it is shared. */
+  void release() {
+    sharers.getAndUpdate(n -> StrictMath.max(n - 1, 0));
+  }
+
+  /**
+   * Reports a share of this storage that owner gives up when it is garbage
+   * collected, unless it gives it up first itself.
+   */
+  Hold hold(Object owner) {
+    Hold hold = new Hold(this);
+    CLEANER.register(owner, hold);
+    return hold;
+  }
+
+  /** A share of a storage, held by an object such as a matrix; see hold(). */
+  static final class Hold implements Runnable {
+    // null once the share is given up; never the owner, or the owner would
+    // never become unreachable
+    private final AtomicReference<MatrixStorage> storage;
+
+    private Hold(MatrixStorage storage) {
+      this.storage = new AtomicReference<MatrixStorage>(storage);
+    }
+
+    /** Gives up the share now, if it hasn't been given up yet. */
+    void release() {
+      MatrixStorage s = storage.getAndSet(null);
+      if (s != null) {
+        s.release();
+      }
+    }
+
+    /** Forgets the share, for an owner that has given it up some other way (see unshare()). */
+    void forget() {
+      storage.set(null);
+    }
+
+    @Override
+    public void run() {
+      release();
+    }
+  }
+
+  MatrixStorage transpose() {
+    int numRows = rows();
+    int numCols = cols();
+    MatrixStorage result = allocate(numCols, numRows, this);
+    double[][] tile = new double[TILE][TILE];
+    double[] column = new double[TILE];
+    for (int i0 = 0; i0 < numRows; i0 += TILE) {
+      int iLen = StrictMath.min(TILE, numRows - i0);
+      for (int j0 = 0; j0 < numCols; j0 += TILE) {
+        int jLen = StrictMath.min(TILE, numCols - j0);
+        for (int i = 0; i < iLen; i++) {
+          getRow(i0 + i, j0, tile[i], 0, jLen);
+        }
+        for (int j = 0; j < jLen; j++) {
+          for (int i = 0; i < iLen; i++) {
+            column[i] = tile[i][j];
+          }
+          result.setRow(j0 + j, i0, column, 0, iLen);
+        }
+      }
+    }
+    return result;
+  }
+
+  /** Reports a copy of rows [r1, r2) and columns [c1, c2). */
+  MatrixStorage submatrix(int r1, int r2, int c1, int c2) {
+    MatrixStorage result = allocate(r2 - r1, c2 - c1, this);
+    double[] row = new double[c2 - c1];
+    for (int i = r1; i < r2; i++) {
+      getRow(i, c1, row, 0, row.length);
+      result.setRow(i - r1, 0, row, 0, row.length);
+    }
+    return result;
+  }
+
+  double trace() {
+    double sum = 0.0;
+    int n = StrictMath.min(rows(), cols());
+    for (int i = 0; i < n; i++) {
+      sum += get(i, i);
+    }
+    return sum;
+  }
+
+  void swapRows(int row1, int row2) {
+    int numCols = cols();
+    double[] a = new double[numCols];
+    double[] b = new double[numCols];
+    getRow(row1, 0, a, 0, numCols);
+    getRow(row2, 0, b, 0, numCols);
+    setRow(row1, 0, b, 0, numCols);
+    setRow(row2, 0, a, 0, numCols);
+  }
+
+  void swapColumns(int col1, int col2) {
+    int numRows = rows();
+    for (int i = 0; i < numRows; i++) {
+      double a = get(i, col1);
+      set(i, col1, get(i, col2));
+      set(i, col2, a);
+    }
+  }
+
+  /**
+   * Reports new, zeroed storage for the result of an operation on the
+   * given inputs: out of core when any input is and the result is big
+   * enough, a vector when any input is one and the result has its shape,
+   * off the heap when it is big enough for that (see OffHeapStorage), and
+   * on the heap otherwise.
+   */
+  static MatrixStorage allocate(int rows, int cols, MatrixStorage... inputs) {
+    long size = (long) rows * cols;
+    if (size >= OUT_OF_CORE_RESULT_SIZE) {
+      for (MatrixStorage input : inputs) {
+        if (input.outOfCore()) {
+          return input.create(rows, cols);
+        }
+      }
+    }
+    if (VectorStorage.isVector(rows, cols)) {
+      for (MatrixStorage input : inputs) {
+        if (input instanceof VectorStorage) {
+          return new VectorStorage(rows, cols);
+        }
+      }
+    }
+    if (OffHeapStorage.wanted(size)) {
+      MatrixStorage result = OffHeapStorage.tryAllocate(rows, cols);
+      if (result != null) {
+        return result;
+      }
+    }
+    return new HeapStorage(rows, cols);
+  }
+
+  static MatrixStorage copyRows(MatrixStorage source, MatrixStorage dest) {
+    int numRows = source.rows();
+    int numCols = source.cols();
+    double[] row = new double[numCols];
+    for (int i = 0; i < numRows; i++) {
+      source.getRow(i, 0, row, 0, numCols);
+      dest.setRow(i, 0, row, 0, numCols);
+    }
+    return dest;
+  }
+
+  /**
+   * The matrix product a * b, computed one pair of square tiles at a time
+   * so that only a few tiles of each input are ever held on the heap.
+   */
+  static MatrixStorage times(MatrixStorage a, MatrixStorage b) {
+    int n = a.rows();
+    int inner = a.cols();
+    int m = b.cols();
+    if (b.rows() != inner) {
+      throw new IllegalArgumentException("Matrix inner dimensions must agree.");
+    }
+    MatrixStorage result = allocate(n, m, a, b);
+    double[][] aTile = new double[TILE][TILE];
+    double[][] bTile = new double[TILE][TILE];
+    double[][] cTile = new double[TILE][TILE];
+    for (int i0 = 0; i0 < n; i0 += TILE) {
+      int iLen = StrictMath.min(TILE, n - i0);
+      for (int j0 = 0; j0 < m; j0 += TILE) {
+        int jLen = StrictMath.min(TILE, m - j0);
+        for (int i = 0; i < iLen; i++) {
+          java.util.Arrays.fill(cTile[i], 0, jLen, 0.0);
+        }
+        for (int k0 = 0; k0 < inner; k0 += TILE) {
+          int kLen = StrictMath.min(TILE, inner - k0);
+          for (int i = 0; i < iLen; i++) {
+            a.getRow(i0 + i, k0, aTile[i], 0, kLen);
+          }
+          for (int k = 0; k < kLen; k++) {
+            b.getRow(k0 + k, j0, bTile[k], 0, jLen);
+          }
+          for (int i = 0; i < iLen; i++) {
+            double[] aRow = aTile[i];
+            double[] cRow = cTile[i];
+            for (int k = 0; k < kLen; k++) {
+              double aik = aRow[k];
+              double[] bRow = bTile[k];
+              for (int j = 0; j < jLen; j++) {
+                cRow[j] += aik * bRow[j];
+              }
+            }
+          }
+        }
+        for (int i = 0; i < iLen; i++) {
+          result.setRow(i0 + i, j0, cTile[i], 0, jLen);
+        }
+      }
+    }
+    return result;
+  }
+}
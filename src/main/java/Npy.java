@@ -0,0 +1,284 @@
+package org.nlogo.extensions.matrix;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads and writes NumPy .npy files, used by matrix:load-npy and
+ * matrix:save-npy.
+ *
+ * Only arrays of float64 or float32 (in either byte order, and in either C
+ * or Fortran order) with one or two dimensions are supported; a 1-D array is
+ * read as a column.  The element data is accessed through memory-mapped
+ * windows of the file, so it goes straight between the file and the
+ * matrix's rows without any intermediate copy of the whole array.
+ */
+final class Npy {
+
+  private Npy() { }
+
+  private static final byte[] MAGIC = {(byte) 0x93, 'N', 'U', 'M', 'P', 'Y'};
+
+  // Largest region mapped at once; a multiple of both element sizes.
+  static final long WINDOW_SIZE = 1L << 30;
+
+  // Elements are moved through a buffer of this many values at a time.
+  private static final int CHUNK = 1 << 16;
+
+  private static final Pattern DESCR = Pattern.compile("'descr'\\s*:\\s*'([<>=|])?([a-z])(\\d+)'");
+  private static final Pattern FORTRAN = Pattern.compile("'fortran_order'\\s*:\\s*(True|False)");
+  private static final Pattern SHAPE = Pattern.compile("'shape'\\s*:\\s*\\(([^)]*)\\)");
+
+  enum DType {
+    FLOAT64(8, "f8"), FLOAT32(4, "f4");
+
+    final int size;
+    final String code;
+
+    DType(int size, String code) {
+      this.size = size;
+      this.code = code;
+    }
+
+    static DType fromName(String name) {
+      switch (name) {
+        case "float64":
+          return FLOAT64;
+        case "float32":
+          return FLOAT32;
+        default:
+          throw new IllegalArgumentException("Unsupported element type \"" + name + "\". Expected \"float64\" or \"float32\".");
+      }
+    }
+  }
+
+  /** What the header of a .npy file says about the array in it. */
+  static class Header {
+    DType dtype;
+    ByteOrder order;
+    boolean fortranOrder;
+    int numRows;
+    int numCols;
+    long dataStart;
+  }
+
+  static double[][] load(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      Header header = readHeader(channel, path);
+      MatrixMemory.checkHeap(header.numRows, header.numCols);
+      double[][] dArray = new double[header.numRows][header.numCols];
+      readElements(channel, header.dataStart, (long) header.numRows * header.numCols, header.dtype, header.order,
+          header.fortranOrder, dArray);
+      return dArray;
+    }
+  }
+
+  /**
+   * Reads and checks the header, including that the file is long enough to
+   * hold the array it describes.
+   */
+  static Header readHeader(FileChannel channel, Path path) throws IOException {
+    Header result = new Header();
+    ByteBuffer preamble = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(channel, preamble, 0);
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (preamble.get(i) != MAGIC[i]) {
+        throw new IOException(path + " is not a NumPy .npy file.");
+      }
+    }
+    int major = preamble.get(6);
+    long headerLength;
+    long headerStart;
+    if (major == 1) {
+      headerLength = preamble.getShort(8) & 0xffff;
+      headerStart = 10;
+    } else if (major == 2 || major == 3) {
+      headerLength = preamble.getInt(8) & 0xffffffffL;
+      headerStart = 12;
+    } else {
+      throw new IOException("Unsupported .npy format version " + major + ".");
+    }
+    ByteBuffer headerBytes = ByteBuffer.allocate((int) headerLength);
+    readFully(channel, headerBytes, headerStart);
+    String header = new String(headerBytes.array(), major == 3 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+
+    Matcher descr = DESCR.matcher(header);
+    Matcher fortran = FORTRAN.matcher(header);
+    Matcher shape = SHAPE.matcher(header);
+    if (!descr.find() || !fortran.find() || !shape.find()) {
+      throw new IOException("Could not understand the .npy header: " + header.trim());
+    }
+    String code = descr.group(2) + descr.group(3);
+    if (code.equals(DType.FLOAT64.code)) {
+      result.dtype = DType.FLOAT64;
+    } else if (code.equals(DType.FLOAT32.code)) {
+      result.dtype = DType.FLOAT32;
+    } else {
+      throw new IOException("Unsupported .npy element type " + descr.group(0).replaceAll(".*:\\s*", "")
+          + ". Only float64 and float32 arrays can be loaded.");
+    }
+    result.order = ">".equals(descr.group(1)) ? ByteOrder.BIG_ENDIAN
+        : "<".equals(descr.group(1)) ? ByteOrder.LITTLE_ENDIAN : ByteOrder.nativeOrder();
+    result.fortranOrder = fortran.group(1).equals("True");
+
+    String[] dims = shape.group(1).split(",");
+    int numRows;
+    int numCols;
+    try {
+      if (dims.length == 1 && !dims[0].trim().isEmpty()) {
+        numRows = Integer.parseInt(dims[0].trim());
+        numCols = 1;
+      } else if (dims.length == 2 && !dims[1].trim().isEmpty()) {
+        numRows = Integer.parseInt(dims[0].trim());
+        numCols = Integer.parseInt(dims[1].trim());
+      } else {
+        throw new IOException("Only 1- and 2-dimensional .npy arrays can be loaded, but the shape is ("
+            + shape.group(1) + ").");
+      }
+    } catch (NumberFormatException ex) {
+      throw new IOException("Could not understand the .npy shape (" + shape.group(1) + ").");
+    }
+    if (numRows == 0 || numCols == 0) {
+      throw new IOException("The .npy array is empty.");
+    }
+
+    result.numRows = numRows;
+    result.numCols = numCols;
+    result.dataStart = headerStart + headerLength;
+    if (channel.size() < result.dataStart + (long) numRows * numCols * result.dtype.size) {
+      throw new IOException("The .npy file is shorter than its header says.");
+    }
+    return result;
+  }
+
+  private static void readElements(FileChannel channel, long dataStart, long count, DType dtype, ByteOrder order,
+                                   boolean fortranOrder, double[][] dest) throws IOException {
+    int numRows = dest.length;
+    int numCols = dest[0].length;
+    double[] chunk = new double[(int) StrictMath.min(CHUNK, count)];
+    float[] floats = dtype == DType.FLOAT32 ? new float[chunk.length] : null;
+    long index = 0;
+    while (index < count) {
+      long windowCount = StrictMath.min(count - index, WINDOW_SIZE / dtype.size);
+      MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, dataStart + index * dtype.size,
+          windowCount * dtype.size);
+      window.order(order);
+      DoubleBuffer doubles = dtype == DType.FLOAT64 ? window.asDoubleBuffer() : null;
+      FloatBuffer floatBuffer = dtype == DType.FLOAT32 ? window.asFloatBuffer() : null;
+      long end = index + windowCount;
+      while (index < end) {
+        int n = (int) StrictMath.min(chunk.length, end - index);
+        if (doubles != null) {
+          doubles.get(chunk, 0, n);
+        } else {
+          floatBuffer.get(floats, 0, n);
+          for (int i = 0; i < n; i++) {
+            chunk[i] = floats[i];
+          }
+        }
+        // distribute the chunk into rows (C order) or columns (Fortran order)
+        int i = 0;
+        while (i < n) {
+          if (fortranOrder) {
+            int col = (int) (index / numRows);
+            int row = (int) (index % numRows);
+            int run = StrictMath.min(n - i, numRows - row);
+            for (int k = 0; k < run; k++) {
+              dest[row + k][col] = chunk[i + k];
+            }
+            i += run;
+            index += run;
+          } else {
+            int row = (int) (index / numCols);
+            int col = (int) (index % numCols);
+            int run = StrictMath.min(n - i, numCols - col);
+            System.arraycopy(chunk, i, dest[row], col, run);
+            i += run;
+            index += run;
+          }
+        }
+      }
+    }
+  }
+
+  static void save(Path path, MatrixStorage storage, DType dtype) throws IOException {
+    int numRows = storage.rows();
+    int numCols = storage.cols();
+    String dict = "{'descr': '<" + dtype.code + "', 'fortran_order': False, 'shape': (" + numRows + ", " + numCols + "), }";
+    // the header (including the 10-byte preamble and the closing newline) is padded to a multiple of 64 bytes
+    int headerLength = dict.length() + 1;
+    int padding = (64 - (10 + headerLength) % 64) % 64;
+    headerLength += padding;
+    if (headerLength > 0xffff) {
+      throw new IOException("The .npy header is too long.");
+    }
+    StringBuilder header = new StringBuilder(headerLength).append(dict);
+    for (int i = 0; i < padding; i++) {
+      header.append(' ');
+    }
+    header.append('\n');
+
+    ByteBuffer preamble = ByteBuffer.allocate(10 + headerLength).order(ByteOrder.LITTLE_ENDIAN);
+    preamble.put(MAGIC).put((byte) 1).put((byte) 0).putShort((short) headerLength);
+    preamble.put(header.toString().getBytes(StandardCharsets.ISO_8859_1));
+    preamble.flip();
+
+    // The file is only cut to its new length once the data is written, so a
+    // matrix opened from this very file with matrix:open-npy can be saved
+    // back to it: its mapping never points past the end of the file.
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      while (preamble.hasRemaining()) {
+        channel.write(preamble);
+      }
+      long dataStart = 10 + headerLength;
+      long count = (long) numRows * numCols;
+      long index = 0;
+      while (index < count) {
+        // a window holds a fixed number of elements, so a row may straddle two
+        // windows; each window writes the part of a row that falls inside it
+        long windowCount = StrictMath.min(count - index, WINDOW_SIZE / dtype.size);
+        MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_WRITE, dataStart + index * dtype.size,
+            windowCount * dtype.size);
+        window.order(ByteOrder.LITTLE_ENDIAN);
+        DoubleBuffer doubles = dtype == DType.FLOAT64 ? window.asDoubleBuffer() : null;
+        FloatBuffer floats = dtype == DType.FLOAT32 ? window.asFloatBuffer() : null;
+        long end = index + windowCount;
+        while (index < end) {
+          int row = (int) (index / numCols);
+          int col = (int) (index % numCols);
+          int run = (int) StrictMath.min(numCols - col, end - index);
+          double[] source = storage.getRow(row);
+          if (doubles != null) {
+            doubles.put(source, col, run);
+          } else {
+            for (int k = 0; k < run; k++) {
+              floats.put((float) source[col + k]);
+            }
+          }
+          index += run;
+        }
+        window.force();
+      }
+      channel.truncate(dataStart + count * dtype.size);
+    }
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of file while reading the .npy header.");
+      }
+    }
+  }
+}
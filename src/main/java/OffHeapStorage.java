@@ -0,0 +1,100 @@
+package org.nlogo.extensions.matrix;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Storage in direct (off-heap) memory, used for big intermediate results
+ * when matrix:set-off-heap-threshold is on.  Direct memory isn't scanned or
+ * copied by the garbage collector, so big short-lived results don't fill
+ * the old generation of long runs.
+ *
+ * All the off-heap storage of a workspace shares a cap, set with
+ * matrix:set-off-heap-limit (see WorkspaceState).  Storage that would go
+ * over it is put on the heap instead (see tryAllocate), so no primitive
+ * ever fails because of the cap.  The JVM frees the memory of a storage
+ * once the garbage collector finds it unreachable, and a Cleaner then
+ * returns it to the cap.  Nothing frees it any sooner: a storage that was
+ * freed while something still referred to it would crash the JVM on its
+ * next use, rather than fail.
+ */
+final class OffHeapStorage extends BufferStorage {
+
+  private static final Cleaner CLEANER = Cleaner.create();
+
+  private OffHeapStorage(int numRows, int numCols, AtomicLong reserved) {
+    super(numRows, numCols);
+    for (int k = 0; k < chunks.length; k++) {
+      chunks[k] = ByteBuffer.allocateDirect((int) (chunkLength(k) * 8)).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+    }
+    CLEANER.register(this, new Release(reserved, size() * 8));
+  }
+
+  /**
+   * Reports zeroed off-heap storage, or null when it would take the memory
+   * the workspace uses off the heap above its limit.
+   */
+  static OffHeapStorage tryAllocate(int numRows, int numCols) {
+    WorkspaceState state = WorkspaceState.current();
+    AtomicLong reserved = state.offHeapReserved;
+    long bytes = (long) numRows * numCols * 8;
+    state.memory.check(bytes);
+    long current;
+    do {
+      current = reserved.get();
+      if (current + bytes > state.offHeapLimit) {
+        return null;
+      }
+    } while (!reserved.compareAndSet(current, current + bytes));
+    try {
+      return new OffHeapStorage(numRows, numCols, reserved);
+    } catch (OutOfMemoryError ex) {
+      // the JVM's own limit on direct memory (-XX:MaxDirectMemorySize) was hit
+      reserved.addAndGet(-bytes);
+      return null;
+    }
+  }
+
+  /** Whether a new matrix of this many elements should be kept off the heap. */
+  static boolean wanted(long size) {
+    long t = WorkspaceState.current().offHeapThreshold;
+    return t > 0 && size >= t;
+  }
+
+  static void setThreshold(long elements) {
+    WorkspaceState.current().offHeapThreshold = elements;
+  }
+
+  static void setLimit(long bytes) {
+    WorkspaceState.current().offHeapLimit = bytes;
+  }
+
+  @Override
+  MatrixStorage create(int rows, int cols) {
+    MatrixStorage result = tryAllocate(rows, cols);
+    return result != null ? result : new HeapStorage(rows, cols);
+  }
+
+  @Override
+  String kind() {
+    return "off-heap";
+  }
+
+  // Must not refer to the storage itself, or it would never become unreachable.
+  private static final class Release implements Runnable {
+    private final AtomicLong reserved;
+    private final long bytes;
+
+    Release(AtomicLong reserved, long bytes) {
+      this.reserved = reserved;
+      this.bytes = bytes;
+    }
+
+    @Override
+    public void run() {
+      reserved.addAndGet(-bytes);
+    }
+  }
+}
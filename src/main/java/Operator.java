@@ -10,8 +10,15 @@ public abstract class Operator {
       throw new IllegalArgumentException("At least one element is required.");
     }
     Object accumulator = elems.next();
-    if (accumulator instanceof Matrix) {
-      accumulator = ((Matrix) accumulator).copy();
+    if (elems.hasNext()) {
+      // The first step makes a new result instead of updating the first
+      // element in place, so that element needs no defensive copy.
+      accumulator = apply(accumulator, elems.next());
+    } else if (accumulator instanceof Matrix && !offHeap(accumulator)) {
+      accumulator = Arena.copy((Matrix) accumulator);
+    } else if (accumulator instanceof Matrix || accumulator instanceof MatrixStorage) {
+      MatrixStorage storage = storageOf(accumulator);
+      accumulator = MatrixStorage.copyRows(storage, MatrixStorage.allocate(storage.rows(), storage.cols(), storage));
     }
     return reduce(accumulator, elems);
   }
@@ -23,8 +30,17 @@ public abstract class Operator {
     return accumulator;
   }
 
+  // Whether obj is a heap matrix big enough for results computed from it to
+  // be put off the heap.
+  private static boolean offHeap(Object obj) {
+    return obj instanceof Matrix
+        && OffHeapStorage.wanted((long) ((Matrix) obj).getRowDimension() * ((Matrix) obj).getColumnDimension());
+  }
+
   public Object apply(Object accumulator, Object elem) {
-    if (accumulator instanceof Matrix) {
+    if (accumulator instanceof MatrixStorage || elem instanceof MatrixStorage || offHeap(accumulator) || offHeap(elem)) {
+      return applyToStorage(accumulator, elem, false);
+    } else if (accumulator instanceof Matrix) {
       return apply((Matrix) accumulator, elem);
     } else if (accumulator instanceof Double) {
       return apply(((Double) accumulator).doubleValue(), elem);
@@ -34,7 +50,9 @@ public abstract class Operator {
   }
 
   public Object applyEquals(Object accumulator, Object elem) {
-    if (accumulator instanceof Matrix) {
+    if (accumulator instanceof MatrixStorage || elem instanceof MatrixStorage || offHeap(accumulator) || offHeap(elem)) {
+      return applyToStorage(accumulator, elem, true);
+    } else if (accumulator instanceof Matrix) {
       return applyEquals((Matrix) accumulator, elem);
     } else if (accumulator instanceof Double) {
       return apply(((Double) accumulator).doubleValue(), elem);
@@ -44,7 +62,7 @@ public abstract class Operator {
   }
 
   public Matrix apply(Matrix arg1, Object arg2) {
-    return applyEquals(arg1.copy(), arg2);
+    return applyEquals(Arena.copy(arg1), arg2);
   }
 
   public Matrix applyEquals(Matrix accumulator, Object elem) {
@@ -76,40 +94,130 @@ public abstract class Operator {
   public Matrix applyEquals(Matrix accumulator, Matrix elem) {
     int numRows = accumulator.getRowDimension();
     int numCols = accumulator.getColumnDimension();
-    int elemRows = elem.getRowDimension();
-    int elemCols = elem.getColumnDimension();
+    checkDimensions(numRows, numCols, elem.getRowDimension(), elem.getColumnDimension());
+    Backend.current().elementwise(accumulator.getArray(), elem.getArray(), this::apply);
+    return accumulator;
+  }
+
+  public Matrix applyEquals(Matrix accumulator, double elem) {
+    Backend.current().elementwise(accumulator.getArray(), elem, this::apply);
+    return accumulator;
+  }
+
+  public Matrix apply(double accumulator, Matrix elem) {
+    Matrix result = Arena.copy(elem);
+    for (double[] row : result.getArray()) {
+      for (int i=0; i<row.length; i++) {
+        row[i] = apply(accumulator, row[i]);
+      }
+    }
+    return result;
+  }
+
+  private void checkDimensions(int numRows, int numCols, int elemRows, int elemCols) {
     if (numRows != elemRows || numCols != elemCols) {
       throw new IllegalArgumentException("Matrices must have the same number of rows and columns. Needed " +
               "a matrix with " + numRows + " rows and " + numCols + " columns, but found a matrix with " + elemRows +
               " rows and " + elemCols + " columns.");
     }
+  }
 
-    double[][] accumulatorArray = accumulator.getArray();
-    double[][] elemArray = elem.getArray();
-    for (int i = 0; i < numRows; i++) {
-      for (int j = 0; j < numCols; j++) {
-        accumulatorArray[i][j] = apply(accumulatorArray[i][j], elemArray[i][j]);
+  /**
+   * Handles operands of which at least one is kept out of the heap (a
+   * MatrixStorage rather than a Jama Matrix), a row at a time.  Heap
+   * matrices among the operands are wrapped without copying.  With inPlace,
+   * a matrix accumulator is overwritten with the result, as in applyEquals.
+   */
+  private Object applyToStorage(Object accumulator, Object elem, boolean inPlace) {
+    if (accumulator instanceof Double) {
+      double scalar = ((Double) accumulator).doubleValue();
+      MatrixStorage matrix = storageOf(elem);
+      if (matrix instanceof VectorStorage) {
+        VectorStorage vector = (VectorStorage) matrix;
+        double[] data = new double[vector.data.length];
+        for (int i = 0; i < data.length; i++) {
+          data[i] = apply(scalar, vector.data[i]);
+        }
+        return new VectorStorage(data, vector.column);
+      }
+      int numCols = matrix.cols();
+      MatrixStorage result = MatrixStorage.allocate(matrix.rows(), numCols, matrix);
+      double[] row = new double[numCols];
+      for (int i = 0; i < matrix.rows(); i++) {
+        matrix.getRow(i, 0, row, 0, numCols);
+        for (int j = 0; j < numCols; j++) {
+          row[j] = apply(scalar, row[j]);
+        }
+        result.setRow(i, 0, row, 0, numCols);
       }
+      return result;
     }
-    return accumulator;
+    MatrixStorage matrix = storageOf(accumulator);
+    if (elem instanceof Double) {
+      double scalar = ((Double) elem).doubleValue();
+      if (matrix instanceof VectorStorage) {
+        VectorStorage vector = (VectorStorage) matrix;
+        double[] data = inPlace ? vector.data : new double[vector.data.length];
+        for (int i = 0; i < data.length; i++) {
+          data[i] = apply(vector.data[i], scalar);
+        }
+        return inPlace ? vector : new VectorStorage(data, vector.column);
+      }
+      int numCols = matrix.cols();
+      MatrixStorage result = inPlace ? matrix : MatrixStorage.allocate(matrix.rows(), numCols, matrix);
+      double[] row = new double[numCols];
+      for (int i = 0; i < matrix.rows(); i++) {
+        matrix.getRow(i, 0, row, 0, numCols);
+        for (int j = 0; j < numCols; j++) {
+          row[j] = apply(row[j], scalar);
+        }
+        result.setRow(i, 0, row, 0, numCols);
+      }
+      return result;
+    }
+    return combine(matrix, storageOf(elem), inPlace);
   }
 
-  public Matrix applyEquals(Matrix accumulator, double elem) {
-    for (double[] row : accumulator.getArray()) {
-      for (int i=0; i<row.length; i++) {
-        row[i] = apply(row[i], elem);
+  /**
+   * Combines two matrices, either of which may be kept out of the heap, a
+   * row at a time.  This is element-wise; operators that combine matrices
+   * some other way (see TimesOp) override it.
+   */
+  protected MatrixStorage combine(MatrixStorage accumulator, MatrixStorage elem, boolean inPlace) {
+    int numRows = accumulator.rows();
+    int numCols = accumulator.cols();
+    checkDimensions(numRows, numCols, elem.rows(), elem.cols());
+    MatrixStorage result = inPlace ? accumulator : MatrixStorage.allocate(numRows, numCols, accumulator, elem);
+    if (result instanceof VectorStorage) {
+      // one pass over the elements, rather than a row of one at a time
+      double[] acc = VectorStorage.elements(accumulator);
+      double[] other = VectorStorage.elements(elem);
+      double[] data = ((VectorStorage) result).data;
+      for (int i = 0; i < data.length; i++) {
+        data[i] = apply(acc[i], other[i]);
       }
+      return result;
     }
-    return accumulator;
+    double[] row = new double[numCols];
+    double[] elemRow = new double[numCols];
+    for (int i = 0; i < numRows; i++) {
+      accumulator.getRow(i, 0, row, 0, numCols);
+      elem.getRow(i, 0, elemRow, 0, numCols);
+      for (int j = 0; j < numCols; j++) {
+        row[j] = apply(row[j], elemRow[j]);
+      }
+      result.setRow(i, 0, row, 0, numCols);
+    }
+    return result;
   }
 
-  public Matrix apply(double accumulator, Matrix elem) {
-    double[][] resultArray = elem.getArrayCopy();
-    for (double[] row : resultArray) {
-      for (int i=0; i<row.length; i++) {
-        row[i] = apply(accumulator, row[i]);
-      }
+  private MatrixStorage storageOf(Object obj) {
+    if (obj instanceof MatrixStorage) {
+      return (MatrixStorage) obj;
+    } else if (obj instanceof Matrix) {
+      return new HeapStorage((Matrix) obj);
+    } else {
+      throw typeViolation(obj);
     }
-    return new Matrix(resultArray);
   }
 }
@@ -0,0 +1,69 @@
+package org.nlogo.extensions.matrix;
+
+/**
+ * What Stats has recorded about one primitive.  Times are in nanoseconds
+ * and include the time spent in any reporters the primitive runs (such as
+ * the one given to matrix:map).  Public, with getters only, so that JMX
+ * can show it (see MatrixStatsMXBean).
+ */
+public final class PrimitiveSummary {
+  private final String primitive;
+  private final long calls;
+  private final long totalNanos;
+  private final long p50Nanos;
+  private final long p90Nanos;
+  private final long p99Nanos;
+  private final long maxNanos;
+  private final long elements;
+  private final long allocatedBytes;
+
+  PrimitiveSummary(String primitive, long calls, long totalNanos, long p50Nanos, long p90Nanos, long p99Nanos,
+                   long maxNanos, long elements, long allocatedBytes) {
+    this.primitive = primitive;
+    this.calls = calls;
+    this.totalNanos = totalNanos;
+    this.p50Nanos = p50Nanos;
+    this.p90Nanos = p90Nanos;
+    this.p99Nanos = p99Nanos;
+    this.maxNanos = maxNanos;
+    this.elements = elements;
+    this.allocatedBytes = allocatedBytes;
+  }
+
+  public String getPrimitive() {
+    return primitive;
+  }
+
+  public long getCalls() {
+    return calls;
+  }
+
+  public long getTotalNanos() {
+    return totalNanos;
+  }
+
+  public long getP50Nanos() {
+    return p50Nanos;
+  }
+
+  public long getP90Nanos() {
+    return p90Nanos;
+  }
+
+  public long getP99Nanos() {
+    return p99Nanos;
+  }
+
+  public long getMaxNanos() {
+    return maxNanos;
+  }
+
+  /** The total number of elements of the matrices given to and reported by the primitive. */
+  public long getElements() {
+    return elements;
+  }
+
+  public long getAllocatedBytes() {
+    return allocatedBytes;
+  }
+}
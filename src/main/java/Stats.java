@@ -0,0 +1,147 @@
+package org.nlogo.extensions.matrix;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Opt-in per-primitive instrumentation, behind matrix:stats.
+ *
+ * It is switched on for the whole JVM by starting it with
+ * -Dnetlogo.matrix.stats=true.  Only then are the primitives wrapped when
+ * they are registered (see MatrixExtension.addPrimitive), so with it off
+ * they run exactly as before, at no cost at all.  The numbers are global
+ * rather than per workspace, so that runs in parallel (as in BehaviorSpace)
+ * add up, and they are also published as a JMX MBean (see MatrixStatsMXBean).
+ */
+final class Stats {
+
+  private Stats() { }
+
+  static final boolean ENABLED = Boolean.getBoolean("netlogo.matrix.stats");
+
+  static final String MBEAN_NAME = "org.nlogo.extensions.matrix:type=Stats";
+
+  private static final ConcurrentHashMap<String, Recorder> recorders = new ConcurrentHashMap<String, Recorder>();
+
+  private static final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+  static {
+    if (ENABLED) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(),
+            new javax.management.ObjectName(MBEAN_NAME));
+      } catch (javax.management.JMException ex) {
+        // already registered by another copy of the extension; the numbers are still in matrix:stats
+      }
+    }
+  }
+
+  /**
+   * Reports the number of bytes the current thread has allocated so far, or
+   * -1 when the JVM can't tell.
+   */
+  static long allocatedBytes() {
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  static void record(String primitive, long nanos, long elements, long bytes) {
+    recorders.computeIfAbsent(primitive, Recorder::new).record(nanos, elements, bytes);
+  }
+
+  static void reset() {
+    recorders.clear();
+  }
+
+  /** Reports a summary of each primitive called so far, most total time first. */
+  static List<PrimitiveSummary> summaries() {
+    List<PrimitiveSummary> result = new ArrayList<PrimitiveSummary>();
+    for (Recorder recorder : recorders.values()) {
+      result.add(recorder.summary());
+    }
+    result.sort((a, b) -> Long.compare(b.getTotalNanos(), a.getTotalNanos()));
+    return result;
+  }
+
+  /**
+   * The calls of one primitive.  Latencies go into a histogram with four
+   * buckets per power of two of nanoseconds, so percentiles are reported
+   * to within 25%, from a fixed amount of memory.  Package-private for
+   * StatsTests.
+   */
+  static final class Recorder {
+    private static final int BUCKETS = 4 * 64;
+
+    private final String primitive;
+    private final long[] histogram = new long[BUCKETS];
+    private long calls;
+    private long totalNanos;
+    private long maxNanos;
+    private long elements;
+    private long bytes;
+
+    Recorder(String primitive) {
+      this.primitive = primitive;
+    }
+
+    synchronized void record(long nanos, long elements, long bytes) {
+      calls++;
+      totalNanos += nanos;
+      maxNanos = StrictMath.max(maxNanos, nanos);
+      histogram[bucket(nanos)]++;
+      this.elements += elements;
+      if (bytes > 0) {
+        this.bytes += bytes;
+      }
+    }
+
+    static int bucket(long nanos) {
+      if (nanos < 4) {
+        return (int) StrictMath.max(nanos, 0);
+      }
+      int log = 63 - Long.numberOfLeadingZeros(nanos);
+      return (log - 1) * 4 + (int) ((nanos >>> (log - 2)) & 3);
+    }
+
+    static long bucketLimit(int bucket) {
+      if (bucket < 4) {
+        return bucket;
+      }
+      int log = bucket / 4 + 1;
+      return ((4L + bucket % 4 + 1) << (log - 2)) - 1;
+    }
+
+    private long percentile(double p) {
+      long rank = (long) StrictMath.ceil(p * calls);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += histogram[i];
+        if (seen >= rank) {
+          return StrictMath.min(bucketLimit(i), maxNanos);
+        }
+      }
+      return maxNanos;
+    }
+
+    synchronized PrimitiveSummary summary() {
+      return new PrimitiveSummary(primitive, calls, totalNanos, percentile(0.5), percentile(0.9), percentile(0.99),
+          maxNanos, elements, bytes);
+    }
+  }
+
+  private static final class MBean implements MatrixStatsMXBean {
+    @Override
+    public List<PrimitiveSummary> getPrimitives() {
+      return summaries();
+    }
+
+    @Override
+    public void reset() {
+      Stats.reset();
+    }
+  }
+}
@@ -0,0 +1,733 @@
+package org.nlogo.extensions.matrix;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reads and writes matrices as CSV and Matrix Market (.mtx) text, used by
+ * matrix:read-csv, matrix:write-csv, matrix:read-matrix-market and
+ * matrix:write-matrix-market.
+ *
+ * Files are parsed straight from memory-mapped chunks into rows of doubles,
+ * without an intermediate string or list per line.  Big files are split
+ * into chunks at line boundaries and the chunks are parsed in parallel;
+ * the results are then stitched together in file order.  Writing goes
+ * through a single buffer into the file channel, one row at a time.
+ */
+final class TextFiles {
+
+  private TextFiles() { }
+
+  // Files are split into chunks of at least this many bytes for parsing.
+  static final long MIN_CHUNK_SIZE = 1L << 23;
+
+  // ... and at most this many, which also bounds the size of each mapping.
+  static final long MAX_CHUNK_SIZE = 1L << 30;
+
+  private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+  /** A problem with the contents of a file, at a line counted from 1 (or 0 for the file as a whole). */
+  static class ParseException extends Exception {
+    final long line;
+
+    ParseException(long line, String message) {
+      super(message);
+      this.line = line;
+    }
+  }
+
+  // ---------------------------------------------------------------- CSV
+
+  private static class CsvChunk {
+    final List<double[]> rows = new ArrayList<double[]>();
+    long lines;
+    // the line (within the chunk) of the first row, for reporting ragged rows across chunks
+    long firstRowLine;
+  }
+
+  /**
+   * Reads a file of delimiter-separated numbers, one row per line.  Blank
+   * lines are ignored, and so is a first line holding no numbers at all (a
+   * header).  Fields may be surrounded by spaces or double quotes.
+   */
+  static double[][] readCsv(Path path, char delimiter) throws IOException, ParseException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long[] bounds = chunkBounds(channel, 0, channel.size());
+      CsvChunk[] chunks = new CsvChunk[bounds.length - 1];
+      parseChunks(channel, bounds, 0, (index, buffer) -> {
+        chunks[index] = parseCsvChunk(buffer, delimiter, index == 0);
+        return chunks[index].lines;
+      });
+
+      int numRows = 0;
+      int firstWidth = 0;
+      for (CsvChunk chunk : chunks) {
+        if (numRows == 0 && !chunk.rows.isEmpty()) {
+          firstWidth = chunk.rows.get(0).length;
+        }
+        numRows += chunk.rows.size();
+      }
+      if (numRows == 0) {
+        throw new ParseException(0, "The file holds no numbers.");
+      }
+      // the rows are parsed already, but not yet the matrix made of them
+      MatrixMemory.checkHeap(numRows, firstWidth);
+      double[][] dArray = new double[numRows][];
+      int numCols = -1;
+      long lineOffset = 0;
+      int next = 0;
+      for (CsvChunk chunk : chunks) {
+        if (!chunk.rows.isEmpty()) {
+          int width = chunk.rows.get(0).length;
+          if (numCols == -1) {
+            numCols = width;
+          } else if (width != numCols) {
+            throw new ParseException(lineOffset + chunk.firstRowLine,
+                "This line has " + width + " fields, but the lines before it have " + numCols + ".");
+          }
+          for (double[] row : chunk.rows) {
+            dArray[next++] = row;
+          }
+        }
+        lineOffset += chunk.lines;
+      }
+      return dArray;
+    }
+  }
+
+  private static CsvChunk parseCsvChunk(ByteBuffer buffer, char delimiter, boolean first) throws ParseException {
+    CsvChunk chunk = new CsvChunk();
+    double[] fields = new double[16];
+    int limit = buffer.limit();
+    int pos = 0;
+    boolean headerAllowed = first;
+    while (pos < limit) {
+      int end = lineEnd(buffer, pos, limit);
+      long line = ++chunk.lines;
+      int numFields = 0;
+      int numeric = 0;
+      String bad = null;
+      if (!isBlank(buffer, pos, end)) {
+        int start = pos;
+        while (true) {
+          int stop = start;
+          while (stop < end && buffer.get(stop) != delimiter) {
+            stop++;
+          }
+          if (numFields == fields.length) {
+            fields = Arrays.copyOf(fields, numFields * 2);
+          }
+          try {
+            fields[numFields] = parseNumber(buffer, start, stop);
+            numeric++;
+          } catch (NumberFormatException ex) {
+            if (bad == null) {
+              bad = "Field " + (numFields + 1) + " is not a number: \"" + text(buffer, start, stop).trim() + "\".";
+            }
+          }
+          numFields++;
+          if (stop >= end) {
+            break;
+          }
+          start = stop + 1;
+        }
+        if (bad != null && !(headerAllowed && numeric == 0)) {
+          throw new ParseException(line, bad);
+        }
+        if (bad == null) {
+          if (!chunk.rows.isEmpty() && numFields != chunk.rows.get(0).length) {
+            throw new ParseException(line, "This line has " + numFields + " fields, but the lines before it have "
+                + chunk.rows.get(0).length + ".");
+          }
+          if (chunk.rows.isEmpty()) {
+            chunk.firstRowLine = line;
+          }
+          chunk.rows.add(Arrays.copyOf(fields, numFields));
+        }
+        headerAllowed = false;
+      }
+      pos = end + 1;
+    }
+    return chunk;
+  }
+
+  static void writeCsv(Path path, MatrixStorage storage, char delimiter) throws IOException {
+    try (ChannelWriter out = new ChannelWriter(path)) {
+      for (int i = 0; i < storage.rows(); i++) {
+        double[] row = storage.getRow(i);
+        for (int j = 0; j < row.length; j++) {
+          if (j > 0) {
+            out.append(delimiter);
+          }
+          out.append(org.nlogo.api.Dump.number(row[j]));
+        }
+        out.append('\n');
+      }
+    }
+  }
+
+  // ------------------------------------------------------ Matrix Market
+
+  private static final String MM_BANNER = "%%MatrixMarket";
+
+  private static class MatrixMarketHeader {
+    boolean coordinate;
+    boolean pattern;
+    // "general", "symmetric" or "skew-symmetric"
+    String symmetry;
+    int numRows;
+    int numCols;
+    long numEntries;
+    long dataStart;
+    long lines;
+  }
+
+  private static class EntryChunk {
+    int[] rows;
+    int[] cols;
+    double[] values;
+    int size;
+    long lines;
+
+    EntryChunk(boolean coordinate) {
+      if (coordinate) {
+        rows = new int[64];
+        cols = new int[64];
+      }
+      values = new double[64];
+    }
+
+    void add(int row, int col, double value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+        if (rows != null) {
+          rows = Arrays.copyOf(rows, size * 2);
+          cols = Arrays.copyOf(cols, size * 2);
+        }
+      }
+      if (rows != null) {
+        rows[size] = row;
+        cols[size] = col;
+      }
+      values[size++] = value;
+    }
+  }
+
+  /**
+   * Reads a real, integer or pattern matrix in Matrix Market coordinate or
+   * array format, with general, symmetric or skew-symmetric structure.
+   * Entries missing from a coordinate file are zero.
+   */
+  static double[][] readMatrixMarket(Path path) throws IOException, ParseException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      MatrixMarketHeader header = readMatrixMarketHeader(channel);
+      // even a coordinate file with a few entries is read into a dense
+      // array, so its declared size is checked before anything is parsed
+      if (MatrixMemory.heapBytes(header.numRows, header.numCols) > Runtime.getRuntime().maxMemory()) {
+        throw new ParseException(header.lines, "The matrix is " + header.numRows + "x" + header.numCols
+            + ", too big to read into memory.");
+      }
+      MatrixMemory.checkHeap(header.numRows, header.numCols);
+      long[] bounds = chunkBounds(channel, header.dataStart, channel.size());
+      EntryChunk[] chunks = new EntryChunk[bounds.length - 1];
+      parseChunks(channel, bounds, header.lines, (index, buffer) -> {
+        chunks[index] = parseEntryChunk(buffer, header);
+        return chunks[index].lines;
+      });
+
+      double[][] dArray = new double[header.numRows][header.numCols];
+      boolean symmetric = !header.symmetry.equals("general");
+      boolean skew = header.symmetry.equals("skew-symmetric");
+      double mirror = skew ? -1.0 : 1.0;
+      long count = 0;
+      // the next position of an array file, which goes down the columns (only
+      // the lower triangle, for symmetric matrices)
+      int arrayRow = skew ? 1 : 0;
+      int arrayCol = 0;
+      for (EntryChunk chunk : chunks) {
+        for (int k = 0; k < chunk.size; k++) {
+          if (count == header.numEntries) {
+            throw new ParseException(0, "The file has more entries than its size line says ("
+                + header.numEntries + ").");
+          }
+          int row;
+          int col;
+          if (header.coordinate) {
+            row = chunk.rows[k];
+            col = chunk.cols[k];
+          } else {
+            row = arrayRow;
+            col = arrayCol;
+            if (++arrayRow == header.numRows) {
+              arrayCol++;
+              arrayRow = symmetric ? arrayCol + (skew ? 1 : 0) : 0;
+            }
+          }
+          double value = chunk.values[k];
+          if (header.coordinate) {
+            dArray[row][col] += value;
+          } else {
+            dArray[row][col] = value;
+          }
+          if (symmetric && row != col) {
+            if (header.coordinate) {
+              dArray[col][row] += mirror * value;
+            } else {
+              dArray[col][row] = mirror * value;
+            }
+          }
+          count++;
+        }
+      }
+      if (count < header.numEntries) {
+        throw new ParseException(0, "The file has fewer entries (" + count + ") than its size line says ("
+            + header.numEntries + ").");
+      }
+      return dArray;
+    }
+  }
+
+  private static MatrixMarketHeader readMatrixMarketHeader(FileChannel channel) throws IOException, ParseException {
+    MatrixMarketHeader header = new MatrixMarketHeader();
+    long size = channel.size();
+    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, StrictMath.min(size, MIN_CHUNK_SIZE));
+    int limit = buffer.limit();
+    int pos = 0;
+    boolean banner = false;
+    while (pos < limit) {
+      int end = lineEnd(buffer, pos, limit);
+      if (end == limit && limit < size) {
+        throw new ParseException(header.lines + 1, "The header of the file is too long.");
+      }
+      header.lines++;
+      String line = text(buffer, pos, end).trim();
+      pos = end + 1;
+      if (!banner) {
+        String[] words = line.toLowerCase(Locale.ENGLISH).split("\\s+");
+        if (words.length != 5 || !words[0].equals(MM_BANNER.toLowerCase(Locale.ENGLISH)) || !words[1].equals("matrix")) {
+          throw new ParseException(1, "This is not a Matrix Market file; it must start with \""
+              + MM_BANNER + " matrix\".");
+        }
+        header.coordinate = words[2].equals("coordinate");
+        if (!header.coordinate && !words[2].equals("array")) {
+          throw new ParseException(1, "Unsupported Matrix Market format \"" + words[2] + "\".");
+        }
+        header.pattern = words[3].equals("pattern");
+        if (!words[3].equals("real") && !words[3].equals("integer") && !(header.pattern && header.coordinate)) {
+          throw new ParseException(1, "Unsupported Matrix Market field type \"" + words[3]
+              + "\". Only real, integer and pattern matrices can be read.");
+        }
+        header.symmetry = words[4];
+        if (!header.symmetry.equals("general") && !header.symmetry.equals("symmetric")
+            && !header.symmetry.equals("skew-symmetric")) {
+          throw new ParseException(1, "Unsupported Matrix Market symmetry \"" + words[4] + "\".");
+        }
+        banner = true;
+      } else if (!line.isEmpty() && line.charAt(0) != '%') {
+        String[] words = line.split("\\s+");
+        try {
+          if (words.length != (header.coordinate ? 3 : 2)) {
+            throw new NumberFormatException();
+          }
+          header.numRows = Integer.parseInt(words[0]);
+          header.numCols = Integer.parseInt(words[1]);
+          if (header.coordinate) {
+            header.numEntries = Long.parseLong(words[2]);
+          }
+        } catch (NumberFormatException ex) {
+          throw new ParseException(header.lines, "Expected the size of the matrix, but got \"" + line + "\".");
+        }
+        if (header.numRows <= 0 || header.numCols <= 0) {
+          throw new ParseException(header.lines, "The matrix is empty.");
+        }
+        if (!header.symmetry.equals("general") && header.numRows != header.numCols) {
+          throw new ParseException(header.lines, "A " + header.symmetry + " matrix must be square.");
+        }
+        if (!header.coordinate) {
+          long n = header.numRows;
+          header.numEntries = header.symmetry.equals("general") ? n * header.numCols
+              : header.symmetry.equals("symmetric") ? n * (n + 1) / 2 : n * (n - 1) / 2;
+        }
+        header.dataStart = StrictMath.min(pos, size);
+        return header;
+      }
+    }
+    throw new ParseException(header.lines, banner ? "The file has no size line." : "The file is empty.");
+  }
+
+  private static EntryChunk parseEntryChunk(ByteBuffer buffer, MatrixMarketHeader header) throws ParseException {
+    EntryChunk chunk = new EntryChunk(header.coordinate);
+    int limit = buffer.limit();
+    int pos = 0;
+    while (pos < limit) {
+      int end = lineEnd(buffer, pos, limit);
+      long line = ++chunk.lines;
+      int start = skipSpace(buffer, pos, end);
+      if (start < end && buffer.get(start) != '%') {
+        try {
+          int row = 0;
+          int col = 0;
+          if (header.coordinate) {
+            int stop = token(buffer, start, end);
+            row = parseIndex(buffer, start, stop, header.numRows, "row");
+            start = skipSpace(buffer, stop, end);
+            stop = token(buffer, start, end);
+            col = parseIndex(buffer, start, stop, header.numCols, "column");
+            start = skipSpace(buffer, stop, end);
+          }
+          double value = 1.0;
+          if (!header.pattern) {
+            int stop = token(buffer, start, end);
+            value = parseNumber(buffer, start, stop);
+            start = skipSpace(buffer, stop, end);
+          }
+          if (start != end) {
+            throw new NumberFormatException();
+          }
+          chunk.add(row, col, value);
+        } catch (NumberFormatException ex) {
+          throw new ParseException(line, "Expected " + (header.coordinate ? "a row, a column" : "")
+              + (header.pattern ? "" : (header.coordinate ? " and " : "") + "a value") + ", but got \""
+              + text(buffer, pos, end).trim() + "\".");
+        }
+      }
+      pos = end + 1;
+    }
+    return chunk;
+  }
+
+  private static int parseIndex(ByteBuffer buffer, int from, int to, int size, String what) {
+    double index = parseNumber(buffer, from, to);
+    if (index != StrictMath.floor(index) || index < 1 || index > size) {
+      throw new NumberFormatException(what);
+    }
+    return (int) index - 1;
+  }
+
+  /**
+   * Writes a general real matrix in Matrix Market format: as coordinates of
+   * its non-zero entries when at most a third of the entries are non-zero,
+   * and as a dense array otherwise.
+   */
+  static void writeMatrixMarket(Path path, MatrixStorage storage) throws IOException {
+    int numRows = storage.rows();
+    int numCols = storage.cols();
+    long nonZero = 0;
+    for (int i = 0; i < numRows; i++) {
+      for (double elem : storage.getRow(i)) {
+        if (elem != 0.0) {
+          nonZero++;
+        }
+      }
+    }
+    boolean coordinate = nonZero * 3 <= (long) numRows * numCols;
+    try (ChannelWriter out = new ChannelWriter(path)) {
+      out.append(MM_BANNER).append(coordinate ? " matrix coordinate real general\n" : " matrix array real general\n");
+      out.append(Integer.toString(numRows)).append(' ').append(Integer.toString(numCols));
+      if (coordinate) {
+        out.append(' ').append(Long.toString(nonZero)).append('\n');
+        for (int i = 0; i < numRows; i++) {
+          double[] row = storage.getRow(i);
+          for (int j = 0; j < numCols; j++) {
+            if (row[j] != 0.0) {
+              out.append(Integer.toString(i + 1)).append(' ').append(Integer.toString(j + 1)).append(' ')
+                  .append(org.nlogo.api.Dump.number(row[j])).append('\n');
+            }
+          }
+        }
+      } else {
+        out.append('\n');
+        // arrays are stored column by column
+        for (int j = 0; j < numCols; j++) {
+          for (double elem : storage.getColumn(j)) {
+            out.append(org.nlogo.api.Dump.number(elem)).append('\n');
+          }
+        }
+      }
+    }
+  }
+
+  // ------------------------------------------------------------ chunking
+
+  interface ChunkParser {
+    /** Parses one chunk and reports the number of lines in it. */
+    long parse(int index, ByteBuffer chunk) throws ParseException;
+  }
+
+  /**
+   * Splits [start, end) of the file into chunks that each end just after a
+   * newline (or at the end of the file).  Reports the chunk boundaries.
+   */
+  static long[] chunkBounds(FileChannel channel, long start, long end) throws IOException {
+    long length = end - start;
+    int threads = Workers.parallelism();
+    long chunkSize = StrictMath.min(MAX_CHUNK_SIZE, StrictMath.max(MIN_CHUNK_SIZE, length / (threads * 4L) + 1));
+    List<Long> bounds = new ArrayList<Long>();
+    bounds.add(start);
+    ByteBuffer probe = ByteBuffer.allocate(4096);
+    long pos = start + chunkSize;
+    while (pos < end) {
+      // move forward to just after the next newline
+      long boundary = end;
+      search:
+      while (pos < end) {
+        probe.clear();
+        int n = channel.read(probe, pos);
+        if (n <= 0) {
+          break;
+        }
+        for (int i = 0; i < n; i++) {
+          if (probe.get(i) == '\n') {
+            boundary = pos + i + 1;
+            break search;
+          }
+        }
+        pos += n;
+      }
+      if (boundary - bounds.get(bounds.size() - 1) > MAX_CHUNK_SIZE) {
+        throw new IOException("The file has a line longer than " + MAX_CHUNK_SIZE + " bytes.");
+      }
+      if (boundary < end) {
+        bounds.add(boundary);
+      }
+      pos = boundary + chunkSize;
+    }
+    bounds.add(end);
+    long[] result = new long[bounds.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = bounds.get(i);
+    }
+    return result;
+  }
+
+  /**
+   * Maps each chunk and hands it to the parser, in parallel when there is
+   * more than one chunk.  Line numbers in a ParseException are relative to
+   * the start of its chunk; the exception from the earliest failing chunk
+   * is rethrown with its line counted from the start of the file, given
+   * the number of lines before the first chunk.
+   */
+  private static void parseChunks(FileChannel channel, long[] bounds, long linesBefore, ChunkParser parser)
+      throws IOException, ParseException {
+    int numChunks = bounds.length - 1;
+    Exception[] failures = new Exception[numChunks];
+    long[] lines = new long[numChunks];
+    Workers.forEach(numChunks, numChunks, 2, (from, to) -> {
+      for (int index = from; index < to; index++) {
+        try {
+          MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, bounds[index],
+              bounds[index + 1] - bounds[index]);
+          lines[index] = parser.parse(index, chunk);
+        } catch (IOException | ParseException ex) {
+          failures[index] = ex;
+        }
+      }
+    });
+    long lineOffset = linesBefore;
+    for (int index = 0; index < numChunks; index++) {
+      Exception failure = failures[index];
+      if (failure instanceof IOException) {
+        throw (IOException) failure;
+      } else if (failure != null) {
+        ParseException parseFailure = (ParseException) failure;
+        throw new ParseException(lineOffset + parseFailure.line, parseFailure.getMessage());
+      }
+      lineOffset += lines[index];
+    }
+  }
+
+  // --------------------------------------------------------------- bytes
+
+  // the position of the newline ending the line at pos, or limit
+  private static int lineEnd(ByteBuffer buffer, int pos, int limit) {
+    while (pos < limit && buffer.get(pos) != '\n') {
+      pos++;
+    }
+    return pos;
+  }
+
+  private static boolean isSpace(byte b) {
+    return b == ' ' || b == '\t' || b == '\r';
+  }
+
+  private static int skipSpace(ByteBuffer buffer, int pos, int end) {
+    while (pos < end && isSpace(buffer.get(pos))) {
+      pos++;
+    }
+    return pos;
+  }
+
+  private static int token(ByteBuffer buffer, int pos, int end) {
+    while (pos < end && !isSpace(buffer.get(pos))) {
+      pos++;
+    }
+    return pos;
+  }
+
+  private static boolean isBlank(ByteBuffer buffer, int from, int to) {
+    return skipSpace(buffer, from, to) == to;
+  }
+
+  private static String text(ByteBuffer buffer, int from, int to) {
+    byte[] bytes = new byte[to - from];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = buffer.get(from + i);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static final double[] POWERS_OF_TEN = new double[23];
+
+  static {
+    POWERS_OF_TEN[0] = 1.0;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10.0;
+    }
+  }
+
+  /**
+   * Parses a finite decimal number from bytes [from, to), ignoring
+   * surrounding spaces and double quotes.  Numbers with at most 15
+   * significant digits and a small exponent are converted directly, which
+   * is exact since both the digits and the power of ten are exact doubles;
+   * anything else falls back to Double.parseDouble.
+   */
+  static double parseNumber(ByteBuffer buffer, int from, int to) {
+    from = skipSpace(buffer, from, to);
+    while (to > from && isSpace(buffer.get(to - 1))) {
+      to--;
+    }
+    if (to - from >= 2 && buffer.get(from) == '"' && buffer.get(to - 1) == '"') {
+      from = skipSpace(buffer, from + 1, to - 1);
+      to--;
+      while (to > from && isSpace(buffer.get(to - 1))) {
+        to--;
+      }
+    }
+    int pos = from;
+    boolean negative = false;
+    if (pos < to && (buffer.get(pos) == '-' || buffer.get(pos) == '+')) {
+      negative = buffer.get(pos) == '-';
+      pos++;
+    }
+    long mantissa = 0;
+    int digits = 0;
+    int exponent = 0;
+    boolean any = false;
+    boolean point = false;
+    for (; pos < to; pos++) {
+      byte b = buffer.get(pos);
+      if (b >= '0' && b <= '9') {
+        any = true;
+        if (mantissa == 0 && b == '0') {
+          if (point) {
+            exponent--;
+          }
+        } else {
+          if (digits < 18) {
+            mantissa = mantissa * 10 + (b - '0');
+            if (point) {
+              exponent--;
+            }
+          } else if (!point) {
+            exponent++;
+          }
+          digits++;
+        }
+      } else if (b == '.' && !point) {
+        point = true;
+      } else {
+        break;
+      }
+    }
+    if (any && pos < to && (buffer.get(pos) == 'e' || buffer.get(pos) == 'E')) {
+      pos++;
+      boolean negativeExponent = false;
+      if (pos < to && (buffer.get(pos) == '-' || buffer.get(pos) == '+')) {
+        negativeExponent = buffer.get(pos) == '-';
+        pos++;
+      }
+      int value = 0;
+      boolean exponentDigits = false;
+      for (; pos < to && buffer.get(pos) >= '0' && buffer.get(pos) <= '9'; pos++) {
+        value = StrictMath.min(value * 10 + (buffer.get(pos) - '0'), 100000);
+        exponentDigits = true;
+      }
+      if (!exponentDigits) {
+        throw new NumberFormatException();
+      }
+      exponent += negativeExponent ? -value : value;
+    }
+    if (!any || pos != to) {
+      throw new NumberFormatException();
+    }
+    double result;
+    if (digits <= 15 && exponent >= -22 && exponent <= 22) {
+      result = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+      if (negative) {
+        result = -result;
+      }
+    } else {
+      result = Double.parseDouble(text(buffer, from, to));
+    }
+    if (Double.isInfinite(result) || Double.isNaN(result)) {
+      throw new NumberFormatException();
+    }
+    return result;
+  }
+
+  /** Buffers ASCII text and writes it to a file channel in large blocks. */
+  private static class ChannelWriter implements AutoCloseable {
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+
+    ChannelWriter(Path path) throws IOException {
+      channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    ChannelWriter append(char c) throws IOException {
+      if (!buffer.hasRemaining()) {
+        flush();
+      }
+      buffer.put((byte) c);
+      return this;
+    }
+
+    ChannelWriter append(String s) throws IOException {
+      if (buffer.remaining() < s.length()) {
+        flush();
+      }
+      for (int i = 0; i < s.length(); i++) {
+        buffer.put((byte) s.charAt(i));
+      }
+      return this;
+    }
+
+    private void flush() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        flush();
+      } finally {
+        channel.close();
+      }
+    }
+  }
+}
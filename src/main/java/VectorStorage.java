@@ -0,0 +1,263 @@
+package org.nlogo.extensions.matrix;
+
+import java.util.function.IntFunction;
+
+/**
+ * A column (n x 1) or row (1 x n) vector, kept in a single double[] rather
+ * than as a Jama.Matrix with an array per row.  It is a matrix like any
+ * other to every primitive; the kernels below (dot, axpy, norm and the
+ * matrix-vector products used by matrix:times) work on its array directly.
+ *
+ * Operations on vectors give vectors (see MatrixStorage.allocate()), so a
+ * state vector that starts out as one, as from matrix:from-vector-list,
+ * stays one as a model updates it.
+ */
+final class VectorStorage extends MatrixStorage {
+
+  // Matrix-vector products with at least this many multiplications are
+  // split between the worker threads (see Workers).
+  static final long PARALLEL_THRESHOLD = 1L << 20;
+
+  final double[] data;
+  final boolean column;
+
+  VectorStorage(double[] data, boolean column) {
+    this.data = data;
+    this.column = column;
+  }
+
+  /** New, zeroed storage; one of rows and cols must be 1. */
+  VectorStorage(int rows, int cols) {
+    this(zeroed((long) rows * cols), cols == 1);
+  }
+
+  // A new array of n elements, checked against the memory limit first.
+  private static double[] zeroed(long n) {
+    MatrixMemory.current().check(n * 8 + 16);
+    return new double[(int) n];
+  }
+
+  static boolean isVector(int rows, int cols) {
+    return rows == 1 || cols == 1;
+  }
+
+  @Override
+  int rows() {
+    return column ? data.length : 1;
+  }
+
+  @Override
+  int cols() {
+    return column ? 1 : data.length;
+  }
+
+  @Override
+  double get(int row, int col) {
+    if (column ? col != 0 : row != 0) {
+      throw new ArrayIndexOutOfBoundsException(column ? col : row);
+    }
+    return data[column ? row : col];
+  }
+
+  @Override
+  void set(int row, int col, double value) {
+    if (column ? col != 0 : row != 0) {
+      throw new ArrayIndexOutOfBoundsException(column ? col : row);
+    }
+    data[column ? row : col] = value;
+  }
+
+  @Override
+  void getRow(int row, int col, double[] dest, int offset, int len) {
+    if (column) {
+      if (len > 0) {
+        dest[offset] = data[row];
+      }
+    } else {
+      System.arraycopy(data, col, dest, offset, len);
+    }
+  }
+
+  @Override
+  void setRow(int row, int col, double[] src, int offset, int len) {
+    if (column) {
+      if (len > 0) {
+        data[row] = src[offset];
+      }
+    } else {
+      System.arraycopy(src, offset, data, col, len);
+    }
+  }
+
+  @Override
+  double[] getRow(int row) {
+    return column ? new double[]{data[row]} : data;
+  }
+
+  @Override
+  double[] getColumn(int col) {
+    return column ? data.clone() : new double[]{data[col]};
+  }
+
+  @Override
+  MatrixStorage create(int rows, int cols) {
+    return isVector(rows, cols) ? new VectorStorage(rows, cols) : new HeapStorage(rows, cols);
+  }
+
+  @Override
+  String kind() {
+    return "vector";
+  }
+
+  @Override
+  Jama.Matrix toJama() {
+    return column ? new Jama.Matrix(data, data.length) : new Jama.Matrix(data, 1);
+  }
+
+  @Override
+  MatrixStorage copy() {
+    return new VectorStorage(rows(), cols()).fill(data);
+  }
+
+  @Override
+  MatrixStorage transpose() {
+    return new VectorStorage(cols(), rows()).fill(data);
+  }
+
+  private VectorStorage fill(double[] source) {
+    System.arraycopy(source, 0, data, 0, data.length);
+    return this;
+  }
+
+  @Override
+  MatrixStorage submatrix(int r1, int r2, int c1, int c2) {
+    return column ? new VectorStorage(java.util.Arrays.copyOfRange(data, r1, r2), true)
+        : new VectorStorage(java.util.Arrays.copyOfRange(data, c1, c2), false);
+  }
+
+  @Override
+  void swapRows(int row1, int row2) {
+    if (column) {
+      double a = data[row1];
+      data[row1] = data[row2];
+      data[row2] = a;
+    }
+  }
+
+  /**
+   * Reports the elements of storage with one row or one column, in order.
+   * For a VectorStorage this is its own array, so callers must treat it as
+   * read-only.
+   */
+  static double[] elements(MatrixStorage storage) {
+    if (storage instanceof VectorStorage) {
+      return ((VectorStorage) storage).data;
+    }
+    return storage.cols() == 1 ? storage.getColumn(0) : storage.getRow(0).clone();
+  }
+
+  static double dot(double[] x, double[] y) {
+    double s = 0;
+    for (int i = 0; i < x.length; i++) {
+      s += x[i] * y[i];
+    }
+    return s;
+  }
+
+  /** Adds alpha * x to y, in place. */
+  static void axpy(double alpha, double[] x, double[] y) {
+    for (int i = 0; i < x.length; i++) {
+      y[i] += alpha * x[i];
+    }
+  }
+
+  static double norm(double[] x) {
+    return norm(1, i -> x);
+  }
+
+  /** The Euclidean norm of all the elements (the Frobenius norm, for a matrix). */
+  static double norm(MatrixStorage storage) {
+    return storage instanceof VectorStorage ? norm(((VectorStorage) storage).data) : norm(storage.rows(), storage::getRow);
+  }
+
+  // The squares are summed as they are, unless that overflows or
+  // underflows, in which case they are summed again scaled by the power of
+  // two nearest the largest element (which loses no precision).
+  private static double norm(int rows, IntFunction<double[]> row) {
+    double s = 0;
+    double max = 0;
+    for (int i = 0; i < rows; i++) {
+      double[] x = row.apply(i);
+      s += dot(x, x);
+      if (s == 0) {
+        max = StrictMath.max(max, max(x));
+      }
+    }
+    if (!Double.isInfinite(s) && (s >= Double.MIN_NORMAL || s == 0 && max == 0)) {
+      return StrictMath.sqrt(s);
+    }
+    for (int i = 0; i < rows; i++) {
+      max = StrictMath.max(max, max(row.apply(i)));
+    }
+    if (max == 0 || Double.isInfinite(max)) {
+      return max;
+    }
+    double scale = StrictMath.scalb(1.0, StrictMath.getExponent(max));
+    s = 0;
+    for (int i = 0; i < rows; i++) {
+      for (double v : row.apply(i)) {
+        double r = v / scale;
+        s += r * r;
+      }
+    }
+    return scale * StrictMath.sqrt(s);
+  }
+
+  private static double max(double[] x) {
+    double max = 0;
+    for (double v : x) {
+      max = StrictMath.max(max, StrictMath.abs(v));
+    }
+    return max;
+  }
+
+  /** The product a * x of a matrix and a column vector, as a column vector. */
+  static VectorStorage times(MatrixStorage a, VectorStorage x) {
+    int m = a.rows();
+    int n = a.cols();
+    if (x.rows() != n || x.cols() != 1) {
+      throw new IllegalArgumentException("Matrix inner dimensions must agree.");
+    }
+    double[] xs = x.data;
+    double[] ys = zeroed(m);
+    boolean heap = a instanceof HeapStorage;
+    Workers.forEach(m, (long) m * n, PARALLEL_THRESHOLD, (from, to) -> {
+      double[] row = heap ? null : new double[n];
+      for (int i = from; i < to; i++) {
+        if (heap) {
+          ys[i] = dot(a.getRow(i), xs);
+        } else {
+          a.getRow(i, 0, row, 0, n);
+          ys[i] = dot(row, xs);
+        }
+      }
+    });
+    return new VectorStorage(ys, true);
+  }
+
+  /** The product x * a of a row vector and a matrix, as a row vector. */
+  static VectorStorage times(VectorStorage x, MatrixStorage a) {
+    int m = a.rows();
+    int n = a.cols();
+    if (x.rows() != 1 || x.cols() != m) {
+      throw new IllegalArgumentException("Matrix inner dimensions must agree.");
+    }
+    double[] ys = zeroed(n);
+    double[] row = new double[n];
+    for (int i = 0; i < m; i++) {
+      a.getRow(i, 0, row, 0, n);
+      axpy(x.data[i], row, ys);
+    }
+    return new VectorStorage(ys, false);
+  }
+}
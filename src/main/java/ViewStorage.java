@@ -0,0 +1,193 @@
+package org.nlogo.extensions.matrix;
+
+/**
+ * A view of (part of) another storage, without copying any elements:
+ * element (i, j) of the view is element
+ * (row0 + i * rowPerRow + j * rowPerCol, col0 + i * colPerRow + j * colPerCol)
+ * of the base storage, which covers blocks, single rows and columns, strided
+ * selections and transposes, and any combination of them.  Views of views
+ * refer straight to the base storage.
+ *
+ * A view holds a share of the base storage (see MatrixStorage.share()), so
+ * views have the same values-not-references behavior as copies: changing
+ * the matrix it was taken from copies that matrix's storage first, and
+ * changing the view turns it into a compact storage of its own
+ * (materialize()).  The share is given up when the view is garbage
+ * collected, if not before, so a view that is dropped right away (as in
+ * matrix:times m matrix:transpose m) doesn't make the next change to m
+ * copy it.  Storage that can't be shared, such as disk-backed storage, is
+ * copied into a compact storage right away instead.
+ */
+final class ViewStorage extends MatrixStorage {
+
+  private final MatrixStorage base;
+  private final int numRows;
+  private final int numCols;
+  private final int row0;
+  private final int col0;
+  private final int rowPerRow;
+  private final int rowPerCol;
+  private final int colPerRow;
+  private final int colPerCol;
+  // the view's share of the base storage
+  private MatrixStorage.Hold baseHold;
+
+  private ViewStorage(MatrixStorage base, int numRows, int numCols, int row0, int col0,
+                      int rowPerRow, int rowPerCol, int colPerRow, int colPerCol) {
+    this.base = base;
+    this.numRows = numRows;
+    this.numCols = numCols;
+    this.row0 = row0;
+    this.col0 = col0;
+    this.rowPerRow = rowPerRow;
+    this.rowPerCol = rowPerCol;
+    this.colPerRow = colPerRow;
+    this.colPerCol = colPerCol;
+  }
+
+  /**
+   * Reports a view of the source whose element (i, j) is element
+   * (row0 + i * rowPerRow + j * rowPerCol, col0 + i * colPerRow + j * colPerCol)
+   * of the source.  The caller checks that these are all in bounds.
+   */
+  private static MatrixStorage of(MatrixStorage source, int numRows, int numCols, int row0, int col0,
+                                  int rowPerRow, int rowPerCol, int colPerRow, int colPerCol) {
+    MatrixStorage view;
+    if (source instanceof ViewStorage) {
+      ViewStorage v = (ViewStorage) source;
+      view = new ViewStorage(v.base, numRows, numCols,
+          v.row0 + row0 * v.rowPerRow + col0 * v.rowPerCol,
+          v.col0 + row0 * v.colPerRow + col0 * v.colPerCol,
+          rowPerRow * v.rowPerRow + colPerRow * v.rowPerCol,
+          rowPerCol * v.rowPerRow + colPerCol * v.rowPerCol,
+          rowPerRow * v.colPerRow + colPerRow * v.colPerCol,
+          rowPerCol * v.colPerRow + colPerCol * v.colPerCol);
+    } else {
+      view = new ViewStorage(source, numRows, numCols, row0, col0, rowPerRow, rowPerCol, colPerRow, colPerCol);
+    }
+    MatrixStorage base = ((ViewStorage) view).base;
+    if (!base.shareable()) {
+      return ((ViewStorage) view).materialize();
+    }
+    base.share();
+    ((ViewStorage) view).baseHold = base.hold(view);
+    return view;
+  }
+
+  static MatrixStorage transpose(MatrixStorage source) {
+    return of(source, source.cols(), source.rows(), 0, 0, 0, 1, 1, 0);
+  }
+
+  /**
+   * Rows r1, r1 + rowStep, ... before r2, and columns c1, c1 + colStep, ...
+   * before c2.
+   */
+  static MatrixStorage block(MatrixStorage source, int r1, int r2, int c1, int c2, int rowStep, int colStep) {
+    int numRows = (r2 - r1 + rowStep - 1) / rowStep;
+    int numCols = (c2 - c1 + colStep - 1) / colStep;
+    return of(source, numRows, numCols, r1, c1, rowStep, 0, 0, colStep);
+  }
+
+  /** Reports a compact copy of the elements, sharing nothing. */
+  MatrixStorage materialize() {
+    return copyRows(this, allocate(numRows, numCols, base));
+  }
+
+  @Override
+  int rows() {
+    return numRows;
+  }
+
+  @Override
+  int cols() {
+    return numCols;
+  }
+
+  @Override
+  double get(int row, int col) {
+    return base.get(row0 + row * rowPerRow + col * rowPerCol, col0 + row * colPerRow + col * colPerCol);
+  }
+
+  @Override
+  void set(int row, int col, double value) {
+    throw new UnsupportedOperationException("Views are read-only; unshare() them first.");
+  }
+
+  @Override
+  void getRow(int row, int col, double[] dest, int offset, int len) {
+    int baseRow = row0 + row * rowPerRow + col * rowPerCol;
+    int baseCol = col0 + row * colPerRow + col * colPerCol;
+    if (rowPerCol == 0 && colPerCol == 1) {
+      base.getRow(baseRow, baseCol, dest, offset, len);
+    } else {
+      for (int j = 0; j < len; j++) {
+        dest[offset + j] = base.get(baseRow + j * rowPerCol, baseCol + j * colPerCol);
+      }
+    }
+  }
+
+  @Override
+  void setRow(int row, int col, double[] src, int offset, int len) {
+    throw new UnsupportedOperationException("Views are read-only; unshare() them first.");
+  }
+
+  @Override
+  MatrixStorage create(int rows, int cols) {
+    return base.create(rows, cols);
+  }
+
+  @Override
+  String kind() {
+    return "view";
+  }
+
+  @Override
+  boolean outOfCore() {
+    return base.outOfCore();
+  }
+
+  @Override
+  MatrixStorage copy() {
+    return materialize();
+  }
+
+  @Override
+  MatrixStorage transpose() {
+    return transpose(this);
+  }
+
+  @Override
+  MatrixStorage submatrix(int r1, int r2, int c1, int c2) {
+    return block(this, r1, r2, c1, c2, 1, 1);
+  }
+
+  @Override
+  void swapRows(int row1, int row2) {
+    throw new UnsupportedOperationException("Views are read-only; unshare() them first.");
+  }
+
+  @Override
+  void swapColumns(int col1, int col2) {
+    throw new UnsupportedOperationException("Views are read-only; unshare() them first.");
+  }
+
+  @Override
+  MatrixStorage unshare() {
+    MatrixStorage result = super.unshare();
+    if (result == this) {
+      // nobody shares the view itself, so it can give up its share of the base
+      result = materialize();
+      baseHold.release();
+    }
+    return result;
+  }
+
+  @Override
+  void release() {
+    // the last matrix using the view also stops using the base
+    if (!isShared()) {
+      baseHold.release();
+    }
+    super.release();
+  }
+}
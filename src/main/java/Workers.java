@@ -0,0 +1,166 @@
+package org.nlogo.extensions.matrix;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The threads that all parallel and background matrix work runs on,
+ * shared by every workspace in the JVM and sized with matrix:set-threads.
+ *
+ * A call splits its work between the calling thread and up to
+ * parallelism() - 1 workers; work smaller than the call's own threshold
+ * stays on the calling thread.  By default the pool has one thread per
+ * processor, and each workspace (such as each run of a parallel
+ * BehaviorSpace experiment) gets an equal share of them, so a single model
+ * uses the whole machine and many models side by side don't oversubscribe
+ * it.  The calling thread always takes part, and takes over the work no
+ * worker got to, so a busy pool only makes a call slower, never stuck.
+ * The workers run with the settings of the workspace they are working for
+ * (see WorkspaceState).
+ */
+final class Workers {
+
+  private Workers() { }
+
+  interface Range {
+    void run(int from, int to);
+  }
+
+  // 0 for one per processor
+  private static volatile int threads = 0;
+  private static final AtomicInteger workspaces = new AtomicInteger();
+  private static final AtomicInteger threadNumber = new AtomicInteger();
+
+  private static final ThreadPoolExecutor POOL = new ThreadPoolExecutor(
+      threads(), threads(), 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), task -> {
+        Thread thread = new Thread(task, "matrix-worker-" + threadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  static {
+    // idle workers go away, so an extension that is loaded but not used costs nothing
+    POOL.allowCoreThreadTimeOut(true);
+  }
+
+  /** The number of threads in the pool. */
+  static int threads() {
+    int n = threads;
+    return n > 0 ? n : Runtime.getRuntime().availableProcessors();
+  }
+
+  /** Sets the number of threads in the pool; 0 for one per processor. */
+  static synchronized void setThreads(int n) {
+    threads = n;
+    int size = threads();
+    if (size > POOL.getMaximumPoolSize()) {
+      POOL.setMaximumPoolSize(size);
+      POOL.setCorePoolSize(size);
+    } else {
+      POOL.setCorePoolSize(size);
+      POOL.setMaximumPoolSize(size);
+    }
+  }
+
+  /**
+   * Runs a long computation in the background (see MatrixFuture).  It
+   * takes up one worker while it runs, and the parallel work it does is
+   * split like any other.
+   */
+  static <T> Future<T> submit(Callable<T> computation) {
+    return POOL.submit(WorkspaceState.current().bind(computation));
+  }
+
+  static void workspaceLoaded() {
+    workspaces.incrementAndGet();
+  }
+
+  static void workspaceUnloaded() {
+    workspaces.decrementAndGet();
+  }
+
+  /** How many threads, the caller's included, a single call may use. */
+  static int parallelism() {
+    return StrictMath.max(1, threads() / StrictMath.max(1, workspaces.get()));
+  }
+
+  /**
+   * Runs body over [0, count), split into ranges that run in parallel when
+   * the total work is at least threshold, and all at once on the calling
+   * thread otherwise.  The ranges are even, a few per thread so that the
+   * threads finish together.  The first exception thrown by body is
+   * rethrown once every range has finished or been skipped.
+   */
+  static void forEach(int count, long work, long threshold, Range body) {
+    int parallelism = parallelism();
+    if (parallelism < 2 || count < 2 || work < threshold) {
+      body.run(0, count);
+      return;
+    }
+    int ranges = (int) StrictMath.min(count, parallelism * 4L);
+    AtomicInteger next = new AtomicInteger();
+    CountDownLatch done = new CountDownLatch(ranges);
+    AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Runnable loop = () -> {
+      int range;
+      while ((range = next.getAndIncrement()) < ranges) {
+        try {
+          // after a failure, the remaining ranges are only counted down
+          if (failure.get() == null) {
+            body.run((int) ((long) count * range / ranges), (int) ((long) count * (range + 1) / ranges));
+          }
+        } catch (RuntimeException | Error ex) {
+          failure.compareAndSet(null, ex);
+        } finally {
+          done.countDown();
+        }
+      }
+    };
+    // the helpers work with the caller's settings (see WorkspaceState)
+    Runnable helper = WorkspaceState.current().bind(loop);
+    List<Future<?>> helpers = new ArrayList<Future<?>>();
+    for (int i = 1; i < StrictMath.min(parallelism, ranges); i++) {
+      helpers.add(POOL.submit(helper));
+    }
+    loop.run();
+    // Helpers that haven't started yet would find nothing left to do.
+    // Cancelling one that is running doesn't stop it, so the ranges it is
+    // working on are waited for below.
+    for (Future<?> future : helpers) {
+      future.cancel(false);
+    }
+    awaitUninterruptibly(done);
+    Throwable ex = failure.get();
+    if (ex instanceof RuntimeException) {
+      throw (RuntimeException) ex;
+    } else if (ex != null) {
+      throw (Error) ex;
+    }
+  }
+
+  private static void awaitUninterruptibly(CountDownLatch latch) {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          latch.await();
+          return;
+        } catch (InterruptedException ex) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package org.nlogo.extensions.matrix;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The settings and counters that belong to one workspace, such as the
+ * off-heap threshold and limit (see OffHeapStorage), the engine (see
+ * Backend) and the accounting of the memory its matrices use (see
+ * MatrixMemory).
+ *
+ * NetLogo makes one MatrixExtension per workspace, and several headless
+ * workspaces may run in one JVM (as in a parallel BehaviorSpace
+ * experiment), so a model changing a setting must not change it for the
+ * others.  The code that reads these settings is mostly far from any
+ * primitive, though, so rather than being passed down to it the state is
+ * made current for the calling thread while each primitive runs (see
+ * MatrixExtension.addPrimitive()), and for the worker threads while they
+ * do work for it (see Workers).
+ */
+final class WorkspaceState {
+
+  private static final ThreadLocal<WorkspaceState> CURRENT = new ThreadLocal<WorkspaceState>();
+
+  // The state of code running outside of any primitive, such as the benchmarks.
+  static final WorkspaceState DEFAULT = new WorkspaceState();
+
+  // New matrices with at least this many elements are kept off the heap;
+  // 0 means off: everything stays on the heap.
+  volatile long offHeapThreshold = 0;
+  volatile long offHeapLimit = Long.MAX_VALUE;
+  // the bytes of the off-heap storage that hasn't been collected yet
+  final AtomicLong offHeapReserved = new AtomicLong();
+
+  volatile Backend backend = Backend.initial();
+
+  final MatrixMemory memory = new MatrixMemory();
+
+  /** The state of the workspace the calling thread is working for. */
+  static WorkspaceState current() {
+    WorkspaceState state = CURRENT.get();
+    return state != null ? state : DEFAULT;
+  }
+
+  /**
+   * Makes this the state of the calling thread until exit() is given what
+   * this reports, the state it replaces (primitives may run each other, as
+   * matrix:map runs its reporter).
+   */
+  WorkspaceState enter() {
+    WorkspaceState previous = CURRENT.get();
+    CURRENT.set(this);
+    return previous;
+  }
+
+  static void exit(WorkspaceState previous) {
+    if (previous == null) {
+      CURRENT.remove();
+    } else {
+      CURRENT.set(previous);
+    }
+  }
+
+  /** Reports task, made to run with this as the state of whichever thread runs it. */
+  Runnable bind(Runnable task) {
+    return () -> {
+      WorkspaceState previous = enter();
+      try {
+        task.run();
+      } finally {
+        exit(previous);
+      }
+    };
+  }
+
+  <T> Callable<T> bind(Callable<T> task) {
+    return () -> {
+      WorkspaceState previous = enter();
+      try {
+        return task.call();
+      } finally {
+        exit(previous);
+      }
+    };
+  }
+}
@@ -0,0 +1,42 @@
+package org.nlogo.extensions.matrix
+
+import org.scalatest.funsuite.AnyFunSuite
+
+// export-world writes the elements of the matrices registered by the time
+// the matrix section is written (see MatrixExtension.exportWorld()), and
+// those of matrices first referred to after it, such as a matrix held only
+// by another extension's object, along with the reference.
+class ExportTests extends AnyFunSuite {
+
+  private def matrix(extension: MatrixExtension): extension.LogoMatrix =
+    new extension.LogoMatrix(new Jama.Matrix(Array(Array(1.0, 2.0), Array(3.0, 4.0))))
+
+  private def rows(mat: MatrixExtension#LogoMatrix): Seq[Seq[Double]] =
+    mat.matrix().getArray.toSeq.map(_.toSeq)
+
+  test("a reference before the matrix section holds only the id") {
+    val extension = new MatrixExtension
+    val mat = matrix(extension)
+    assertResult(mat.id().toString)(mat.dump(false, true, true))
+  }
+
+  test("a matrix referred to after the matrix section is written with its elements") {
+    val extension = new MatrixExtension
+    val before = matrix(extension)
+    before.id()
+    val section = extension.exportWorld().toString
+    assert(section.contains(before.id() + ":"))
+    assertResult(before.id().toString)(before.dump(false, true, true))
+
+    val after = matrix(extension)
+    val reference = after.dump(false, true, true)
+    assert(reference.startsWith(after.id() + ":"))
+    // written once; later references need only the id
+    assertResult(after.id().toString)(after.dump(false, true, true))
+
+    val imported = new MatrixExtension
+    val restored = imported.readExtensionObject(null, "", reference)
+      .asInstanceOf[MatrixExtension#LogoMatrix]
+    assertResult(Seq(Seq(1.0, 2.0), Seq(3.0, 4.0)))(rows(restored))
+  }
+}
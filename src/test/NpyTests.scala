@@ -0,0 +1,74 @@
+package org.nlogo.extensions.matrix
+
+import java.io.IOException
+import java.nio.{ ByteBuffer, ByteOrder }
+import java.nio.charset.StandardCharsets
+import java.nio.file.{ Files, Path }
+
+import org.scalatest.funsuite.AnyFunSuite
+
+// Loading .npy files in the layouts that NumPy writes but matrix:save-npy
+// doesn't, and files cut short.  The round trips through matrix:save-npy
+// and matrix:load-npy are in tests.txt.
+class NpyTests extends AnyFunSuite {
+
+  // A version 1.0 .npy file with the given header dictionary, followed by
+  // the elements in the given byte order, padded as NumPy pads it.
+  private def npyFile(dict: String, order: ByteOrder, elements: Seq[Double], float32: Boolean = false): Path = {
+    val header = dict + " " * ((64 - (11 + dict.length) % 64) % 64) + "\n"
+    val buffer = ByteBuffer.allocate(10 + header.length + elements.length * (if (float32) 4 else 8))
+    buffer.put(0x93.toByte).put("NUMPY".getBytes(StandardCharsets.US_ASCII)).put(1.toByte).put(0.toByte)
+    buffer.order(ByteOrder.LITTLE_ENDIAN).putShort(header.length.toShort)
+    buffer.put(header.getBytes(StandardCharsets.ISO_8859_1))
+    buffer.order(order)
+    elements.foreach(e => if (float32) buffer.putFloat(e.toFloat) else buffer.putDouble(e))
+    write(buffer.array())
+  }
+
+  private def write(bytes: Array[Byte]): Path = {
+    val path = Files.createTempFile("matrix-", ".npy")
+    path.toFile.deleteOnExit()
+    Files.write(path, bytes)
+  }
+
+  private def load(path: Path): Seq[Seq[Double]] =
+    Npy.load(path).toSeq.map(_.toSeq)
+
+  test("Fortran order") {
+    val path = npyFile("{'descr': '<f8', 'fortran_order': True, 'shape': (2, 3), }",
+      ByteOrder.LITTLE_ENDIAN, Seq(1, 4, 2, 5, 3, 6))
+    assertResult(Seq(Seq(1.0, 2, 3), Seq(4.0, 5, 6)))(load(path))
+  }
+
+  test("big-endian float64") {
+    val path = npyFile("{'descr': '>f8', 'fortran_order': False, 'shape': (2, 2), }",
+      ByteOrder.BIG_ENDIAN, Seq(1.5, -2, 0.1, 1e300))
+    assertResult(Seq(Seq(1.5, -2), Seq(0.1, 1e300)))(load(path))
+  }
+
+  test("big-endian float32 in Fortran order") {
+    val path = npyFile("{'descr': '>f4', 'fortran_order': True, 'shape': (2, 2), }",
+      ByteOrder.BIG_ENDIAN, Seq(1, 3, 2, 0.1), float32 = true)
+    assertResult(Seq(Seq(1.0, 2), Seq(3.0, 0.1f.toDouble)))(load(path))
+  }
+
+  test("one-dimensional arrays load as a column") {
+    val path = npyFile("{'descr': '<f8', 'fortran_order': False, 'shape': (3,), }",
+      ByteOrder.LITTLE_ENDIAN, Seq(1, 2, 3))
+    assertResult(Seq(Seq(1.0), Seq(2.0), Seq(3.0)))(load(path))
+  }
+
+  test("truncated elements") {
+    val path = npyFile("{'descr': '<f8', 'fortran_order': False, 'shape': (2, 3), }",
+      ByteOrder.LITTLE_ENDIAN, Seq(1, 2, 3, 4, 5))
+    val ex = intercept[IOException](Npy.load(path))
+    assertResult("The .npy file is shorter than its header says.")(ex.getMessage)
+  }
+
+  test("truncated header") {
+    val whole = Files.readAllBytes(npyFile("{'descr': '<f8', 'fortran_order': False, 'shape': (1, 1), }",
+      ByteOrder.LITTLE_ENDIAN, Seq(1)))
+    val ex = intercept[IOException](Npy.load(write(whole.take(40))))
+    assertResult("Unexpected end of file while reading the .npy header.")(ex.getMessage)
+  }
+}
@@ -0,0 +1,153 @@
+package org.nlogo.extensions.matrix
+
+import java.io.File
+import java.lang.management.ManagementFactory
+import java.nio.charset.StandardCharsets
+import java.nio.file.{ Files, Path, Paths }
+
+import org.nlogo.api.Dump
+import org.nlogo.core.{ Model, View }
+import org.nlogo.headless.HeadlessWorkspace
+import org.scalatest.BeforeAndAfterAll
+import org.scalatest.funsuite.AnyFunSuite
+
+import scala.jdk.CollectionConverters._
+
+// Model-like workloads with big matrices, or many of them, each checked
+// against the time and allocation budgets in performance-budgets.txt.
+// These only run with `sbt perf:test`; see BUILDING.md.
+object PerformanceTests {
+
+  case class Workload(name: String, setup: String, timed: String, check: String, expected: String)
+
+  // No time budget (written "-") for workloads whose time depends too much
+  // on the machine for a committed budget to mean anything.
+  case class Budget(millis: Option[Double], megabytes: Double)
+
+  val budgetFile: Path = Paths.get("performance-budgets.txt").toAbsolutePath
+
+  // How far over its budget a workload may go, as a factor.
+  val tolerance: Double = sys.env.get("MATRIX_PERF_TOLERANCE").map(_.toDouble).getOrElse(1.5)
+
+  // Also allowed on top of the tolerance, so that tiny budgets aren't flaky.
+  val slackMillis = 50.0
+  val slackMegabytes = 8.0
+
+  // With MATRIX_PERF_RECORD=true, the budgets are set to what was measured.
+  val record: Boolean = sys.env.get("MATRIX_PERF_RECORD").contains("true")
+
+  val runs = 3
+
+  private val worldFile = File.createTempFile("matrix-perf-", ".csv")
+  worldFile.deleteOnExit()
+  private val worldPath = worldFile.getPath.replace('\\', '/')
+
+  val workloads = Seq(
+    Workload("export-import-10k",
+      "set mats n-values 10000 [ i -> matrix:make-constant 4 4 i ]",
+      s"""export-world "$worldPath" clear-all import-world "$worldPath"""",
+      "(list length mats matrix:get last mats 3 3)", "[10000 9999]"),
+    Workload("times-2000",
+      "set a matrix:map [ x -> random-float 1 ] matrix:make-constant 2000 2000 0 " +
+        "set b matrix:map [ x -> random-float 1 ] matrix:make-constant 2000 2000 0",
+      "set c matrix:times a b",
+      "matrix:dimensions c", "[2000 2000]"),
+    Workload("solve-2000",
+      "set a matrix:plus matrix:map [ x -> random-float 1 ] matrix:make-constant 2000 2000 0 " +
+        "matrix:times-scalar matrix:make-identity 2000 2000 " +
+        "set b matrix:make-constant 2000 1 1",
+      "set c matrix:solve a b",
+      "matrix:dimensions c", "[2000 1]"),
+    Workload("map-1000",
+      "set a matrix:make-constant 1000 1000 1",
+      "set c matrix:map [ x -> x * 2 + 1 ] a",
+      "matrix:get c 999 999", "3")
+  )
+
+  def readBudgets(): Map[String, Budget] =
+    if (!Files.exists(budgetFile)) Map()
+    else Files.readAllLines(budgetFile, StandardCharsets.UTF_8).asScala
+      .map(_.trim)
+      .filterNot(line => line.isEmpty || line.startsWith("#"))
+      .map(_.split("\\s+"))
+      .collect { case Array(name, millis, megabytes) =>
+        name -> Budget(if (millis == "-") None else Some(millis.toDouble), megabytes.toDouble)
+      }
+      .toMap
+
+  def writeBudgets(budgets: Map[String, Budget]): Unit = {
+    val lines =
+      Seq("# workload  milliseconds (- for none)  megabytes allocated",
+          "# Measured with MATRIX_PERF_RECORD=true sbt perf:test; see BUILDING.md.") ++
+      workloads.map(_.name).filter(budgets.contains).map { name =>
+        val budget = budgets(name)
+        val millis = budget.millis.fold("-")(m => f"$m%.0f")
+        f"$name%-20s $millis%10s ${budget.megabytes}%10.1f"
+      }
+    Files.write(budgetFile, lines.asJava, StandardCharsets.UTF_8)
+  }
+
+  // Bytes allocated by all live threads, since NetLogo runs the code on its
+  // own job thread rather than the caller's.
+  def allocatedBytes(): Long = ManagementFactory.getThreadMXBean match {
+    case bean: com.sun.management.ThreadMXBean =>
+      bean.getThreadAllocatedBytes(bean.getAllThreadIds).filter(_ > 0).sum
+    case _ => 0L
+  }
+}
+
+class PerformanceTests extends AnyFunSuite with BeforeAndAfterAll {
+
+  import PerformanceTests._
+
+  private val workspace = HeadlessWorkspace.newInstance
+  private val budgets = readBudgets()
+  private var measured = Map[String, Budget]()
+
+  override def beforeAll(): Unit =
+    workspace.openModel(Model(code = "extensions [matrix]\nglobals [mats a b c]", widgets = List(View())))
+
+  override def afterAll(): Unit = {
+    workspace.dispose()
+    if (record && measured.nonEmpty) {
+      writeBudgets(budgets ++ measured)
+    }
+  }
+
+  for (workload <- workloads) {
+    test(workload.name) {
+      workspace.command("clear-all random-seed 42 " + workload.setup)
+      // one run to warm up, then the best of the others
+      workspace.command(workload.timed)
+      var millis = Double.MaxValue
+      var megabytes = Double.MaxValue
+      for (_ <- 1 to runs) {
+        System.gc()
+        val bytes = allocatedBytes()
+        val start = System.nanoTime
+        workspace.command(workload.timed)
+        millis = millis.min((System.nanoTime - start) / 1e6)
+        megabytes = megabytes.min((allocatedBytes() - bytes) / 1048576.0)
+      }
+      assertResult(workload.expected)(Dump.logoObject(workspace.report(workload.check)))
+      info(f"${millis}%.0f ms, ${megabytes}%.1f MB allocated")
+      // recording keeps "-" for a workload that has no time budget
+      val timed = !budgets.get(workload.name).exists(_.millis.isEmpty)
+      measured += workload.name -> Budget(if (timed) Some(millis) else None, megabytes)
+
+      if (!record) {
+        budgets.get(workload.name) match {
+          case None =>
+            fail(s"No budget for ${workload.name} in $budgetFile; record one with MATRIX_PERF_RECORD=true.")
+          case Some(budget) =>
+            for (limit <- budget.millis) {
+              assert(millis <= limit * tolerance + slackMillis,
+                f"took ${millis}%.0f ms, over the budget of ${limit}%.0f ms")
+            }
+            assert(megabytes <= budget.megabytes * tolerance + slackMegabytes,
+              f"allocated ${megabytes}%.1f MB, over the budget of ${budget.megabytes}%.1f MB")
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package org.nlogo.extensions.matrix
+
+import org.scalatest.funsuite.AnyFunSuite
+
+// Storage shared by matrix:copy or a view (see MatrixStorage.share()) is
+// written in place again once the other matrices sharing it have been
+// dropped.
+class SharingTests extends AnyFunSuite {
+
+  private val extension = new MatrixExtension
+
+  private def matrix(): extension.LogoMatrix =
+    new extension.LogoMatrix(new Jama.Matrix(Array(Array(1.0, 2.0), Array(3.0, 4.0))))
+
+  // Collects garbage until nothing else shares the storage, or gives up.
+  private def awaitUnshared(storage: MatrixStorage): Boolean = {
+    var tries = 0
+    while (storage.isShared && tries < 50) {
+      System.gc()
+      Thread.sleep(20)
+      tries += 1
+    }
+    !storage.isShared
+  }
+
+  // In methods of their own, so that nothing on the test's stack refers to
+  // the matrices they drop.
+  private def dropCopy(mat: extension.LogoMatrix): Unit =
+    mat.share()
+
+  private def dropTranspose(mat: extension.LogoMatrix): Unit =
+    new extension.LogoMatrix(ViewStorage.transpose(mat.storage))
+
+  private def copyOfDroppedCopy(mat: extension.LogoMatrix): extension.LogoMatrix =
+    mat.share().share()
+
+  test("a dropped copy gives up its share") {
+    val mat = matrix()
+    val storage = mat.storage
+    dropCopy(mat)
+    assert(storage.isShared)
+    assert(awaitUnshared(storage))
+    assert(mat.writable() eq storage)
+  }
+
+  test("the last matrix left writes in place") {
+    val mat = matrix()
+    val storage = mat.storage
+    val copy = mat.share()
+    assert(mat.writable() ne storage)
+    assert(copy.writable() eq storage)
+    assertResult(1.0)(copy.storage.get(0, 0))
+  }
+
+  test("a copy of a dropped copy still shares") {
+    val mat = matrix()
+    val storage = mat.storage
+    val copy = copyOfDroppedCopy(mat)
+    for (_ <- 1 to 5) {
+      System.gc()
+      Thread.sleep(20)
+    }
+    assert(storage.isShared)
+    assert(mat.writable() ne storage)
+    assert(copy.writable() eq storage)
+  }
+
+  test("a dropped view gives up its share") {
+    val mat = matrix()
+    val storage = mat.storage
+    dropTranspose(mat)
+    assert(storage.isShared)
+    assert(awaitUnshared(storage))
+    assert(mat.writable() eq storage)
+  }
+
+  test("a live view keeps its values") {
+    val mat = matrix()
+    val storage = mat.storage
+    val view = new extension.LogoMatrix(ViewStorage.transpose(mat.storage))
+    mat.writable().set(0, 1, 9)
+    assert(mat.storage ne storage)
+    assertResult(3.0)(view.storage.get(0, 1))
+  }
+}
@@ -0,0 +1,78 @@
+package org.nlogo.extensions.matrix
+
+import scala.jdk.CollectionConverters._
+
+import org.scalatest.funsuite.AnyFunSuite
+
+// The numbers behind matrix:stats (see Stats), recorded directly rather
+// than through instrumented primitives, which are only there with
+// -Dnetlogo.matrix.stats=true.
+class StatsTests extends AnyFunSuite {
+
+  test("each latency falls in a bucket at most 25% wider than it") {
+    val latencies = (0L to 5000L) ++
+      (2 to 62).flatMap(k => Seq((1L << k) - 1, 1L << k, (1L << k) + 1)) :+ Long.MaxValue
+    for (nanos <- latencies) {
+      val bucket = Stats.Recorder.bucket(nanos)
+      val limit = Stats.Recorder.bucketLimit(bucket)
+      assert(limit >= nanos, s"$nanos ns is over its bucket's limit of $limit")
+      assert(limit - nanos <= nanos / 4, s"$nanos ns is in a bucket up to $limit")
+      if (bucket > 0) {
+        assert(Stats.Recorder.bucketLimit(bucket - 1) < nanos, s"$nanos ns fits in the bucket before")
+      }
+    }
+  }
+
+  test("percentiles are at most 25% above the exact ones") {
+    val recorder = new Stats.Recorder("test")
+    for (i <- 1 to 1000) {
+      recorder.record(i * 1000L, 0, 0)
+    }
+    val summary = recorder.summary()
+    for ((reported, exact) <- Seq(summary.getP50Nanos -> 500000L, summary.getP90Nanos -> 900000L,
+                                  summary.getP99Nanos -> 990000L)) {
+      assert(reported >= exact && reported - exact <= exact / 4, s"reported $reported ns for $exact ns")
+    }
+    assertResult(1000000L)(summary.getMaxNanos)
+  }
+
+  test("percentiles never go over the slowest call") {
+    val recorder = new Stats.Recorder("test")
+    recorder.record(1000, 0, 0)
+    val summary = recorder.summary()
+    assertResult(Seq(1000L, 1000L, 1000L))(Seq(summary.getP50Nanos, summary.getP90Nanos, summary.getP99Nanos))
+  }
+
+  test("calls, time, elements and bytes add up") {
+    val recorder = new Stats.Recorder("test")
+    recorder.record(100, 4, 32)
+    // -1 bytes when the JVM can't tell
+    recorder.record(300, 6, -1)
+    val summary = recorder.summary()
+    assertResult(("test", 2L, 400L, 300L, 10L, 32L))(
+      (summary.getPrimitive, summary.getCalls, summary.getTotalNanos, summary.getMaxNanos,
+       summary.getElements, summary.getAllocatedBytes))
+  }
+
+  // Stats is global, and tests.txt resets it too, so these only look at
+  // primitives of their own.
+  private def summaries(prefix: String): Seq[PrimitiveSummary] =
+    Stats.summaries().asScala.toSeq.filter(_.getPrimitive.startsWith(prefix))
+
+  test("summaries come most total time first") {
+    Stats.record("order-quick", 10, 0, 0)
+    Stats.record("order-slow", 500, 0, 0)
+    Stats.record("order-middle", 200, 0, 0)
+    Stats.record("order-middle", 200, 0, 0)
+    assertResult(Seq("order-slow", "order-middle", "order-quick"))(summaries("order-").map(_.getPrimitive))
+  }
+
+  test("reset-stats drops what was recorded") {
+    Stats.record("reset-test", 10, 4, 32)
+    assertResult(1)(summaries("reset-").size)
+    Stats.reset()
+    assert(summaries("reset-").isEmpty)
+    Stats.record("reset-test", 20, 0, 0)
+    assertResult(Seq(1L -> 20L))(summaries("reset-").map(s => s.getCalls -> s.getTotalNanos))
+  }
+}